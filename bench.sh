@@ -0,0 +1,17 @@
+#!/bin/sh
+# Builds the benchmarks and runs the whole JMH suite, the lookups once per thread count in THREADS. Any arguments
+# are passed to every run, for example -p lines=1000,1000000 to load fewer zone sizes or -prof gc for allocations.
+# The results are written as JSON into target/jmh.
+set -e
+
+cd "$(dirname "$0")"
+
+mvn -B -q -P bench package
+mkdir -p target/jmh
+
+java -jar target/benchmarks.jar -e LookupBenchmark -rf json -rff target/jmh/suite.json "$@"
+
+for threads in ${THREADS:-1 2 4 8}
+do
+    java -jar target/benchmarks.jar LookupBenchmark -t "$threads" -rf json -rff "target/jmh/lookup-$threads.json" "$@"
+done
@@ -0,0 +1,102 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single-pass DomainName validation against the original regex based one
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DomainNameBenchmark
+{
+    @Param({"lower", "mixed"})
+    private String nameCase;
+
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(42);
+        names = new String[1024];
+
+        for (int i = 0; i < names.length; i++)
+        {
+            StringBuilder name = new StringBuilder();
+            int labels = 2 + random.nextInt(3);
+
+            for (int label = 0; label < labels; label++)
+            {
+                if (label > 0)
+                {
+                    name.append('.');
+                }
+
+                int length = 2 + random.nextInt(12);
+
+                for (int c = 0; c < length; c++)
+                {
+                    char letter = (char) ('a' + random.nextInt(26));
+
+                    name.append(nameCase.equals("mixed") && random.nextBoolean() ? Character.toUpperCase(letter) : letter);
+                }
+            }
+
+            names[i] = name.toString();
+        }
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole blackhole)
+    {
+        blackhole.consume(new DomainName(names[next++ & (names.length - 1)]));
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole)
+    {
+        blackhole.consume(LegacyDomainName.canonicalize(names[next++ & (names.length - 1)]));
+    }
+
+    /**
+     * The validation DomainName used before the single-pass rewrite
+     */
+    static class LegacyDomainName
+    {
+        private static final String alphaNumericRegex = "^[a-zA-Z0-9\\.\\-]*$";
+
+        static String canonicalize(String domain)
+        {
+            if (domain.length() > 253)
+            {
+                throw new IllegalArgumentException("Domain name length must be less than 253 characters");
+            }
+
+            if (domain.startsWith(".") || domain.startsWith("-") || domain.endsWith(".") || domain.endsWith("-"))
+            {
+                throw new IllegalArgumentException("The domain name must not start or end with a dash or period");
+            }
+
+            if (domain.contains(".."))
+            {
+                throw new IllegalArgumentException("The domain name must not contain two periods in series");
+            }
+
+            if (!domain.matches(alphaNumericRegex))
+            {
+                throw new IllegalArgumentException("The domain name contains illegal characters");
+            }
+
+            return domain.toLowerCase();
+        }
+    }
+}
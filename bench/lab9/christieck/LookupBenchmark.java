@@ -0,0 +1,118 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking names up through a DomainName against looking them up as text or as the bytes of a query. Run it
+ * with -prof gc, gc.alloc.rate.norm is the bytes allocated per lookup and is 0 for the text and byte paths, and with
+ * -t for the throughput across threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark
+{
+    private static final int ZONE_LINES = 100_000;
+    private static final int NAMES = 1024;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    private RecordStorage storage;
+
+    @Param({"hit", "miss"})
+    private String outcome;
+
+    private File zone;
+    private DNS dnsServer;
+
+    private String[] names;
+    private ByteBuffer[] queries;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        zone = File.createTempFile("lookup", ".txt");
+        ZoneFiles.copy(ZoneFiles.cached(ZONE_LINES), zone);
+
+        dnsServer = new DNS(zone.getPath(), null, storage);
+
+        if (!dnsServer.start())
+        {
+            throw new IllegalStateException("The DNS server was not able to be started");
+        }
+
+        names = new String[NAMES];
+        queries = new ByteBuffer[names.length];
+
+        for (int i = 0; i < names.length; i++)
+        {
+            // Every other name in upper case, as resolvers may send them
+            int host = (int) ((i * 2654435761L) % ZONE_LINES);
+            String name = (outcome.equals("hit") ? "host" : "missing") + host + ".zone" + (host % 1000) + ".example.com";
+
+            names[i] = i % 2 == 0 ? name : name.toUpperCase();
+            queries[i] = ByteBuffer.wrap(names[i].getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        dnsServer.stop();
+
+        ZoneFiles.delete(zone);
+    }
+
+    @Benchmark
+    public void domainName(QueryState state, Blackhole blackhole)
+    {
+        blackhole.consume(dnsServer.lookup(new DomainName(names[state.next()]), RecordType.A));
+    }
+
+    @Benchmark
+    public long text(QueryState state)
+    {
+        return dnsServer.lookupIPv4(names[state.next()]);
+    }
+
+    /**
+     * Looks the names up the way DatagramServer does, through a reused view of the bytes
+     */
+    @Benchmark
+    public long bytes(QueryState state)
+    {
+        ByteBuffer query = queries[state.next()];
+
+        if (!dnsServer.mightResolve(query.array(), 0, query.capacity()))
+        {
+            return DNS.NO_ADDRESS;
+        }
+
+        return dnsServer.lookupIPv4(state.name.set(query, 0, query.capacity()));
+    }
+
+    /**
+     * The view a thread reuses for every lookup, like a DatagramServer worker's, and the thread's place in the names
+     */
+    @State(Scope.Thread)
+    public static class QueryState
+    {
+        final ByteSequence name = new ByteSequence();
+
+        private int next;
+
+        int next()
+        {
+            return next++ & (NAMES - 1);
+        }
+    }
+}
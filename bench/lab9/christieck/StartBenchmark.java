@@ -0,0 +1,65 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long DNS.start() takes to load synthetic zones from a thousand to fifty million records. Every
+ * iteration starts a new server from a fresh copy of the zone. The largest zones need a large heap, pass
+ * -jvmArgs -Xmx16g or fewer sizes with -p lines=1000,1000000.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartBenchmark
+{
+    @Param({"1000", "100000", "1000000", "10000000", "50000000"})
+    private int lines;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    private RecordStorage storage;
+
+    private File zone;
+    private File entries;
+    private DNS dnsServer;
+
+    @Setup(Level.Trial)
+    public void writeZone() throws IOException
+    {
+        zone = ZoneFiles.cached(lines);
+        entries = File.createTempFile("start", ".txt");
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException
+    {
+        ZoneFiles.copy(zone, entries);
+
+        dnsServer = new DNS(entries.getPath(), null, storage);
+    }
+
+    @Benchmark
+    public boolean start()
+    {
+        return dnsServer.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        dnsServer.stop();
+        dnsServer = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteEntries()
+    {
+        ZoneFiles.delete(entries);
+    }
+}
@@ -0,0 +1,62 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long DNS.stop() takes to save the records of synthetic zones, in either format. Every iteration
+ * stops a server just started from a fresh copy of the zone.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StopBenchmark
+{
+    @Param({"1000", "100000", "1000000", "10000000"})
+    private int lines;
+
+    @Param({"TEXT", "BINARY"})
+    private SnapshotFormat format;
+
+    private File zone;
+    private File entries;
+    private DNS dnsServer;
+
+    @Setup(Level.Trial)
+    public void writeZone() throws IOException
+    {
+        zone = ZoneFiles.cached(lines);
+        entries = File.createTempFile("stop", ".txt");
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException
+    {
+        ZoneFiles.copy(zone, entries);
+
+        dnsServer = new DNS(entries.getPath(), format);
+
+        if (!dnsServer.start())
+        {
+            throw new IllegalStateException("The DNS server was not able to be started");
+        }
+    }
+
+    @Benchmark
+    public boolean stop()
+    {
+        return dnsServer.stop();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteEntries()
+    {
+        ZoneFiles.delete(entries);
+    }
+}
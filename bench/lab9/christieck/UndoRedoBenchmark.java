@@ -0,0 +1,88 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures undo and redo behind an undo history of the given depth. The deepest histories are past what the undo
+ * stack keeps in memory, so walking them back pages the older changes in from the spill file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UndoRedoBenchmark
+{
+    private static final int ZONE_LINES = 1000;
+
+    @Param({"100", "10000", "100000"})
+    private int depth;
+
+    private File entries;
+    private DNS dnsServer;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException
+    {
+        entries = File.createTempFile("undo", ".txt");
+        ZoneFiles.copy(ZoneFiles.cached(ZONE_LINES), entries);
+
+        dnsServer = new DNS(entries.getPath());
+
+        if (!dnsServer.start())
+        {
+            throw new IllegalStateException("The DNS server was not able to be started");
+        }
+
+        // Applied as one stream so building a deep history does not take an fsync per change
+        StringBuilder commands = new StringBuilder();
+
+        for (int i = 0; i < depth; i++)
+        {
+            commands.append("ADD 10.2.").append((i >> 8) & 0xFF).append('.').append(i & 0xFF)
+                    .append(" history").append(i).append(".bench.com\n");
+        }
+
+        dnsServer.applyUpdates(new StringReader(commands.toString()));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        dnsServer.stop();
+
+        ZoneFiles.delete(entries);
+    }
+
+    /**
+     * Undoes the latest change and redoes it, which leaves the history as deep as it was
+     */
+    @Benchmark
+    public void undoRedo()
+    {
+        dnsServer.undo();
+        dnsServer.redo();
+    }
+
+    /**
+     * Undoes the whole history once per iteration
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void undoAll()
+    {
+        while (dnsServer.canUndo())
+        {
+            dnsServer.undo();
+        }
+    }
+}
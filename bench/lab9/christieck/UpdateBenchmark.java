@@ -0,0 +1,73 @@
+package lab9.christieck;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of DNS.update(String) on a zone of a hundred thousand records, including the parsing,
+ * the write-ahead log's fsync and the undo history. The commands add and then delete the same records, so the zone
+ * keeps its size however long it runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateBenchmark
+{
+    private static final int ZONE_LINES = 100_000;
+    private static final int COMMANDS = 4096;
+
+    private File entries;
+    private DNS dnsServer;
+
+    private String[] adds;
+    private String[] deletes;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        entries = File.createTempFile("update", ".txt");
+        ZoneFiles.copy(ZoneFiles.cached(ZONE_LINES), entries);
+
+        dnsServer = new DNS(entries.getPath());
+
+        if (!dnsServer.start())
+        {
+            throw new IllegalStateException("The DNS server was not able to be started");
+        }
+
+        adds = new String[COMMANDS];
+        deletes = new String[COMMANDS];
+
+        for (int i = 0; i < COMMANDS; i++)
+        {
+            String record = "10.1." + (i >> 8) + "." + (i & 0xFF) + " update" + i + ".bench.com";
+
+            adds[i] = "ADD " + record;
+            deletes[i] = "DEL " + record;
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        dnsServer.stop();
+
+        ZoneFiles.delete(entries);
+    }
+
+    @Benchmark
+    public IPAddress update()
+    {
+        int command = next++;
+        int record = (command >> 1) & (COMMANDS - 1);
+
+        return dnsServer.update((command & 1) == 0 ? adds[record] : deletes[record]);
+    }
+}
@@ -0,0 +1,69 @@
+package lab9.christieck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The synthetic zones the benchmarks load. Each size is written once into the temp directory and reused by every
+ * benchmark and fork, writeZone is seeded so the zones are the same on every machine.
+ */
+final class ZoneFiles
+{
+    private ZoneFiles()
+    {
+    }
+
+    /**
+     * Gets the zone file of the size, writing it if no earlier run did
+     *
+     * @param lines The number of records
+     * @return The zone file, which must not be started from directly as stop() rewrites it
+     * @throws IOException If the zone could not be written
+     */
+    static File cached(int lines) throws IOException
+    {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "lab9-zones");
+        File zone = new File(directory, "zone-" + lines + ".txt");
+
+        if (!zone.exists())
+        {
+            Files.createDirectories(directory.toPath());
+
+            File partial = File.createTempFile("zone-" + lines, ".tmp", directory);
+
+            ZoneLoadBenchmark.writeZone(partial, lines);
+            Files.move(partial.toPath(), zone.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return zone;
+    }
+
+    /**
+     * Copies a zone into an entries file for a DNS server, without the log or undo history of an earlier server
+     *
+     * @param zone The zone to copy
+     * @param entries The entries file, replaced
+     * @throws IOException If the zone could not be copied
+     */
+    static void copy(File zone, File entries) throws IOException
+    {
+        delete(entries);
+
+        Files.copy(zone.toPath(), entries.toPath());
+    }
+
+    /**
+     * Deletes an entries file and the files the DNS server keeps next to it
+     *
+     * @param entries The entries file
+     */
+    static void delete(File entries)
+    {
+        entries.delete();
+
+        new File(entries.getPath() + ".wal").delete();
+        new File(entries.getPath() + ".undo").delete();
+    }
+}
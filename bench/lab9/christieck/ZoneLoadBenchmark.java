@@ -0,0 +1,129 @@
+package lab9.christieck;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Reports the time and peak heap it takes DNS.start() to load a synthetic zone file
+ *
+ * Usage: ZoneLoadBenchmark [lines] [mmap|scanner], run each mode in its own JVM so the heap peaks do not mix
+ */
+public class ZoneLoadBenchmark
+{
+    /**
+     * Writes a zone file of random addresses and unique domain names
+     *
+     * @param file The file to write
+     * @param lines The number of lines to write
+     * @throws IOException If the file could not be written
+     */
+    static void writeZone(File file, int lines) throws IOException
+    {
+        Random random = new Random(42);
+
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16))
+        {
+            for (int i = 0; i < lines; i++)
+            {
+                out.write(random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256));
+                out.write("\t\t");
+                out.write("host" + i + ".zone" + (i % 1000) + ".example.com\n");
+            }
+        }
+    }
+
+    /**
+     * Loads the file the way DNS.start() did before the memory-mapped loader
+     *
+     * @param file The zone file
+     * @return The loaded records
+     * @throws FileNotFoundException If the file does not exist
+     */
+    static Map<DomainName, IPAddress> loadWithScanner(File file) throws FileNotFoundException
+    {
+        Map<DomainName, IPAddress> records = new HashMap<>();
+
+        try (Scanner in = new Scanner(file))
+        {
+            while (in.hasNext())
+            {
+                String ipAddress = in.next();
+                String domainName = in.next();
+
+                records.put(new DomainName(domainName), new IPAddress(ipAddress));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Gets the sum of the peak usage of the heap pools since the last reset
+     *
+     * @return The peak heap usage in bytes
+     */
+    static long peakHeap()
+    {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    static void resetPeakHeap()
+    {
+        System.gc();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            pool.resetPeakUsage();
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String mode = args.length > 1 ? args[1] : "mmap";
+
+        File zone = File.createTempFile("zone", ".txt");
+        zone.deleteOnExit();
+
+        writeZone(zone, lines);
+        resetPeakHeap();
+
+        long startTime = System.nanoTime();
+        int records;
+
+        if (mode.equals("scanner"))
+        {
+            records = loadWithScanner(zone).size();
+        } else
+        {
+            DNS dnsServer = new DNS(zone.getPath());
+
+            if (!dnsServer.start())
+            {
+                throw new IOException("The DNS server was not able to be started");
+            }
+
+            records = lines - (int) dnsServer.getSkippedRecordCount();
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.printf("%s: %d records in %d ms, peak heap %d MB%n", mode, records, elapsed / 1_000_000, peakHeap() >> 20);
+    }
+}
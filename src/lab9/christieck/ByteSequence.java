@@ -0,0 +1,61 @@
+package lab9.christieck;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of a run of single-byte characters in a buffer, so parsers can read tokens without copying them
+ */
+final class ByteSequence implements CharSequence
+{
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Points this sequence at a new run of bytes
+     *
+     * @param buffer The buffer holding the bytes
+     * @param start The index of the first byte
+     * @param end The index just past the last byte
+     * @return This sequence
+     */
+    ByteSequence set(ByteBuffer buffer, int start, int end)
+    {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+
+        return this;
+    }
+
+    @Override
+    public int length()
+    {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return new ByteSequence().set(buffer, this.start + start, this.start + end);
+    }
+
+    @Override
+    public String toString()
+    {
+        char[] chars = new char[length()];
+
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = charAt(i);
+        }
+
+        return new String(chars);
+    }
+}
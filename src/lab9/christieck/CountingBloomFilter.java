@@ -0,0 +1,277 @@
+package lab9.christieck;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of the domain names with records, so a lookup of a name that does not exist can be turned
+ * away without building a DomainName or probing the records. Each name bumps four 4 bit counters, sixteen to a long,
+ * and with about eight counters per name one in thirty or so missing names still gets through to the records.
+ * Removing a name takes its counters back down, a counter that ever reaches fifteen stays there so it can never fall
+ * below the true count.
+ *
+ * A name is hashed like its text, the way DomainName hashes it, so the hash can also be computed straight from the
+ * bytes of a query. Only the writers change the filter, under the update lock. A name is added before the version
+ * that has it is published and removed only after the version without it is, so the filter holds every name of every
+ * version a reader can see, even while a batch that removes a name and adds it back is half applied.
+ */
+final class CountingBloomFilter
+{
+    private static final int COUNTERS_PER_NAME = 8;
+    private static final int MIN_COUNTERS = 1024;
+
+    private final AtomicLongArray table;
+    private final int counterMask;
+    private final int capacity;
+
+    private int size;
+
+    /**
+     * The number of wildcard names, which answer for missing names under them
+     */
+    private volatile int wildcardCount;
+
+    /**
+     * Creates an empty filter
+     *
+     * @param expectedNames How many names it holds before it needs to be rebuilt larger
+     */
+    CountingBloomFilter(int expectedNames)
+    {
+        long counters = Math.max(MIN_COUNTERS, (long) expectedNames * COUNTERS_PER_NAME);
+        int length = (int) Math.min(1L << 30, Long.highestOneBit(counters - 1) << 1);
+
+        table = new AtomicLongArray(length / 16);
+        counterMask = length - 1;
+        capacity = length / COUNTERS_PER_NAME;
+    }
+
+    /**
+     * Adds a name that now has records
+     *
+     * @param domain The domain name
+     */
+    void add(DomainName domain)
+    {
+        int hash = spread(domain.hashCode());
+        int step = step(domain.hashCode());
+
+        for (int i = 0; i < 4; i++)
+        {
+            int counter = (hash + i * step) & counterMask;
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            long word = table.get(index);
+
+            if (((word >>> shift) & 0xF) != 0xF)
+            {
+                table.set(index, word + (1L << shift));
+            }
+        }
+
+        size++;
+
+        if (domain.isWildcard())
+        {
+            wildcardCount++;
+        }
+    }
+
+    /**
+     * Removes a name that no longer has records
+     *
+     * @param domain The domain name
+     */
+    void remove(DomainName domain)
+    {
+        int hash = spread(domain.hashCode());
+        int step = step(domain.hashCode());
+
+        for (int i = 0; i < 4; i++)
+        {
+            int counter = (hash + i * step) & counterMask;
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            long word = table.get(index);
+            long count = (word >>> shift) & 0xF;
+
+            if (count != 0xF && count != 0)
+            {
+                table.set(index, word - (1L << shift));
+            }
+        }
+
+        size--;
+
+        if (domain.isWildcard())
+        {
+            wildcardCount--;
+        }
+    }
+
+    /**
+     * Whether the name may have records of its own
+     *
+     * @param domain The domain name
+     * @return False if it certainly has none
+     */
+    boolean mightContain(DomainName domain)
+    {
+        return mightContain(domain.hashCode());
+    }
+
+    /**
+     * Whether a lookup of the name may find records of its own or from a wildcard, straight from its bytes. Nothing
+     * is validated, a name that is not valid simply is not in the filter.
+     *
+     * @param name The ASCII bytes of the name, in any case
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return False if the lookup certainly finds nothing
+     */
+    boolean mightResolve(byte[] name, int offset, int length)
+    {
+        boolean wildcards = hasWildcards();
+
+        // Hash the name from its end, so each suffix after a period has its hash on the way
+        int hash = 0;
+        int power = 1;
+
+        for (int i = offset + length - 1; i >= offset; i--)
+        {
+            int c = name[i] & 0xFF;
+
+            if (c >= 'A' && c <= 'Z')
+            {
+                c += 'a' - 'A';
+            }
+
+            if (c == '.' && wildcards && mightContainWildcard(hash, power))
+            {
+                return true;
+            }
+
+            hash += c * power;
+            power *= 31;
+        }
+
+        return mightContain(hash);
+    }
+
+    /**
+     * Whether a lookup of the name may find records of its own or from a wildcard, straight from its text
+     *
+     * @param name The name, in any case and not yet validated
+     * @return False if the lookup certainly finds nothing
+     */
+    boolean mightResolve(CharSequence name)
+    {
+        boolean wildcards = hasWildcards();
+        int hash = 0;
+        int power = 1;
+
+        for (int i = name.length() - 1; i >= 0; i--)
+        {
+            char c = name.charAt(i);
+
+            if (c >= 'A' && c <= 'Z')
+            {
+                c += 'a' - 'A';
+            }
+
+            if (c == '.' && wildcards && mightContainWildcard(hash, power))
+            {
+                return true;
+            }
+
+            hash += c * power;
+            power *= 31;
+        }
+
+        return mightContain(hash);
+    }
+
+    /**
+     * Whether there may be a wildcard for the names under a suffix
+     *
+     * @param hash The hash of the suffix after a period
+     * @param power 31 to the length of the suffix
+     * @return False if there certainly is none
+     */
+    private boolean mightContainWildcard(int hash, int power)
+    {
+        // The hash of "*." followed by the suffix
+        return mightContain(('*' * 31 + '.') * power + hash);
+    }
+
+    /**
+     * Whether any name is a wildcard, which may answer for names that are not in the filter themselves
+     *
+     * @return If there are wildcard names
+     */
+    boolean hasWildcards()
+    {
+        return wildcardCount > 0;
+    }
+
+    /**
+     * Gets the number of names
+     *
+     * @return The number of names
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Whether the filter holds as many names as it was sized for, past which false positives climb quickly
+     *
+     * @return If it should be rebuilt larger
+     */
+    boolean isFull()
+    {
+        return size >= capacity;
+    }
+
+    /**
+     * Whether the name with the hash code may have records of its own
+     *
+     * @param hashCode The hash code of the domain name
+     * @return False if it certainly has none
+     */
+    boolean mightContain(int hashCode)
+    {
+        int hash = spread(hashCode);
+        int step = step(hashCode);
+
+        for (int i = 0; i < 4; i++)
+        {
+            int counter = (hash + i * step) & counterMask;
+
+            if (((table.get(counter >>> 4) >>> ((counter & 15) << 2)) & 0xF) == 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45D9F3B;
+        x = ((x >>> 16) ^ x) * 0x45D9F3B;
+
+        return (x >>> 16) ^ x;
+    }
+
+    /**
+     * The distance between the counters of a name, odd so the four are always different
+     */
+    private static int step(int x)
+    {
+        x *= 0x9E3779B9;
+
+        return (x ^ (x >>> 15)) | 1;
+    }
+}
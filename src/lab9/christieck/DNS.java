@@ -2,227 +2,1967 @@ package lab9.christieck;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * The actual DNS server that handles the storing and looking up of DNS records
  */
 public class DNS
 {
+    /**
+     * What lookupIPv4 answers for a name with no IPv4 address
+     */
+    public static final long NO_ADDRESS = -1;
+
     private File storageFile;
 
-    private static Map<DomainName, IPAddress> dnsMap;
-    private static UndoRedoStack<DNSEvent> dnsEvents;
+    /**
+     * The working copy of the records, only touched under the update lock
+     */
+    private RecordStore dnsMap;
+
+    /**
+     * Whether the records are kept on the heap or off it
+     */
+    private final RecordStorage storage;
+
+    /**
+     * The domain names of each IPv4 address in the working copy, changed together with it
+     */
+    private ReverseIndex reverseIndex = ReverseIndex.EMPTY;
+
+    /**
+     * The domain names of the working copy by zone, changed together with it
+     */
+    private ZoneIndex zoneIndex = ZoneIndex.EMPTY;
+
+    /**
+     * Every domain name of the working copy, so lookups of names that do not exist skip the records. Changed in place
+     * together with the working copy and replaced by a larger one when it fills up.
+     */
+    private volatile CountingBloomFilter nameFilter = new CountingBloomFilter(0);
+
+    /**
+     * The names that lost their last record since the last version was published, they stay in the filter until the
+     * version without them is
+     */
+    private final List<DomainName> removedNames = new ArrayList<>();
+
+    /**
+     * The shared parents of the stored names, written only with the update lock held
+     */
+    private DomainName.Pool namePool = new DomainName.Pool();
+    private final UndoRedoStack<DNSEvent> dnsEvents;
+
+    /**
+     * Serializes the writers so the map and the event history change together, readers never take it
+     */
+    private final Object updateLock = new Object();
+
+    /**
+     * The records lookups read, replaced by the writers once an update, transaction or undo is fully applied
+     */
+    private volatile Snapshot current;
+
+    /**
+     * How many of the latest versions of the records can still be read with snapshot(sequence)
+     */
+    private static final int HISTORY_SIZE = 1024;
+
+    private final AtomicReferenceArray<Snapshot> history = new AtomicReferenceArray<>(HISTORY_SIZE);
+
+    /**
+     * How many direct memory tables of an off-heap store the history keeps reachable, the current one included. The
+     * versions that read from an older table are dropped from the history, so its memory is freed once no one holds
+     * them.
+     */
+    private static final int HISTORY_TABLES = 4;
+
+    /**
+     * The first sequence number of each table the history keeps, oldest first, only touched under the update lock
+     */
+    private final ArrayDeque<Long> tableStarts = new ArrayDeque<>(Collections.singleton(0L));
+
+    private volatile boolean isStarted = false;
+
+    /**
+     * Runs the background saves one at a time so they never race each other to the rename
+     */
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "dns-save");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    /**
+     * How often, in milliseconds, expired records are removed. Lookups skip them even before they are.
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    /**
+     * The deadlines of the records that expire, only touched under the update lock. A timer is left in place when
+     * its record is deleted or given another deadline, it is checked against the record when it fires.
+     */
+    private TimingWheel<DomainName, IPAddress> expiryWheel = new TimingWheel<>(TICK_MILLIS,
+            System.currentTimeMillis());
+
+    /**
+     * Advances the expiry wheel while the server is started
+     */
+    private final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "dns-expiry");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    private ScheduledFuture<?> expiryTask;
+
+    /**
+     * The write-ahead log is compacted into the entries file once it grows past this many bytes
+     */
+    private static final long COMPACT_LOG_SIZE = 64L << 20;
+
+    /**
+     * How many commands of an update file are applied per hold of the update lock
+     */
+    private static final int UPDATE_BATCH_SIZE = 4096;
+
+    private WriteAheadLog writeAheadLog;
+    private long logPosition;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+
+    private SnapshotFormat saveFormat;
+    private SnapshotFormat loadedFormat = SnapshotFormat.TEXT;
+
+    private ZoneFileLoader.ErrorHandler loadErrorHandler;
+    private long skippedRecordCount;
+
+    /**
+     * Where lookups of names without records go, null to answer them as not found
+     */
+    private volatile ForwardingResolver forwarder;
+
+    public DNS(String fileName)
+    {
+        this(fileName, null);
+    }
+
+    /**
+     * Creates a DNS server that saves its records in the given format
+     *
+     * @param fileName The entries file, which is read in whichever format it is in
+     * @param saveFormat The format to save the records in, null to keep the format the file was in
+     */
+    public DNS(String fileName, SnapshotFormat saveFormat)
+    {
+        this(fileName, saveFormat, RecordStorage.HEAP);
+    }
+
+    /**
+     * Creates a DNS server that saves its records in the given format and keeps them in the given storage
+     *
+     * @param fileName The entries file, which is read in whichever format it is in
+     * @param saveFormat The format to save the records in, null to keep the format the file was in
+     * @param storage Where to keep the records, OFF_HEAP for very large zones
+     */
+    public DNS(String fileName, SnapshotFormat saveFormat, RecordStorage storage)
+    {
+        storageFile = new File(fileName);
+        this.saveFormat = saveFormat;
+        this.storage = storage;
+
+        dnsMap = RecordStore.empty(storage);
+        current = new Snapshot(0, dnsMap, ReverseIndex.EMPTY, ZoneIndex.EMPTY);
+
+        // Older undo and redo history goes to segment files next to the entries file instead of the heap
+        dnsEvents = new UndoRedoStack<>(UndoRedoStack.DEFAULT_CAPACITY, new File(fileName + ".undo"),
+                new File(fileName + ".redo"), new DNSEventCodec());
+    }
+
+    /**
+     * Starts the DNS server and reads the list of domains and IP addresses from the file
+     *
+     * @return Whether the DNS server was started successfully
+     */
+    public boolean start()
+    {
+        if (isStarted)
+        {
+            return true;
+        }
+
+        ZoneFileLoader loader = new ZoneFileLoader();
+
+        // The loader merges on several threads, so load into a concurrent map and build the trie from it once
+        ConcurrentHashMap<DomainName, RecordSet> loaded = new ConcurrentHashMap<>(16, 0.75f,
+                Runtime.getRuntime().availableProcessors());
+
+        try
+        {
+            loadedFormat = ZoneFileLoader.isBinary(storageFile) ? SnapshotFormat.BINARY : SnapshotFormat.TEXT;
+
+            // A domain is always merged by the same thread in file order, so its addresses keep the order of the lines
+            loader.load(storageFile, (address, domain, expires) ->
+                    loaded.compute(domain, (name, set) -> added(set, address, expires)), loadErrorHandler);
+
+            skippedRecordCount = loader.getMalformedCount();
+
+            if (skippedRecordCount > 0 && loadErrorHandler == null)
+            {
+                System.err.println("Skipped " + skippedRecordCount + " malformed lines in " + storageFile);
+            }
+
+            WriteAheadLog log = new WriteAheadLog(new File(storageFile.getPath() + ".wal"));
+
+            long replayed = log.replay((type, address, domain, expires) ->
+            {
+                if (type == WriteAheadLog.ADD)
+                {
+                    loaded.compute(domain, (name, set) -> added(set, address, expires));
+                } else
+                {
+                    loaded.computeIfPresent(domain, (name, set) ->
+                            set.indexOf(address) < 0 ? set : set.without(set.indexOf(address)));
+                }
+            });
+
+            RecordStore.Builder records = RecordStore.builder(storage);
+            ReverseIndex.Builder reverse = new ReverseIndex.Builder();
+            DomainName.Pool pool = new DomainName.Pool();
+            ZoneIndex.Builder zones = new ZoneIndex.Builder();
+
+            long now = System.currentTimeMillis();
+            List<DomainName> expiring = new ArrayList<>();
+            CountingBloomFilter names = new CountingBloomFilter(loaded.size());
+
+            loaded.forEach((name, loadedSet) ->
+            {
+                RecordSet set = unexpired(loadedSet, now);
+
+                if (set == null)
+                {
+                    return;
+                }
+
+                // The records, the zones and the reverse index all share the one compacted copy of the name
+                DomainName domain = name.compact(pool);
+
+                pool.retain(domain);
+
+                records.put(domain, set);
+                zones.add(domain);
+                names.add(domain);
+
+                for (int i = 0; i < set.size(); i++)
+                {
+                    if (!set.get(i).isIPv6())
+                    {
+                        reverse.add(set.get(i).getValue(), domain);
+                    }
+                }
+
+                if (set.isExpiring())
+                {
+                    expiring.add(domain);
+                }
+            });
+
+            synchronized (updateLock)
+            {
+                dnsMap = records.build();
+                reverseIndex = reverse.build();
+                zoneIndex = zones.build();
+                nameFilter = names;
+                namePool = pool;
+                removedNames.clear();
+                publish();
+
+                // The records are all new, so are their timers
+                expiryWheel = new TimingWheel<>(TICK_MILLIS, now);
+
+                for (DomainName domain : expiring)
+                {
+                    RecordSet set = dnsMap.get(domain);
+
+                    for (int i = 0; i < set.size(); i++)
+                    {
+                        if (set.getExpires(i) != 0)
+                        {
+                            expiryWheel.schedule(domain, set.get(i), set.getExpires(i));
+                        }
+                    }
+                }
+            }
+
+            log.open();
+            writeAheadLog = log;
+            isStarted = true;
+
+            expiryTask = expiryExecutor.scheduleWithFixedDelay(this::expire, TICK_MILLIS, TICK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+
+            // Fold the replayed changes into the entries file so the next start has nothing to replay
+            if (replayed > 0)
+            {
+                try
+                {
+                    save();
+                } catch (IOException e)
+                {
+                    System.err.println("Could not compact the log into " + storageFile + ": " + e.getMessage());
+                }
+            }
+
+            return true;
+        } catch (IOException | RuntimeException e)
+        {
+            // A log that replays a record it can not apply fails the start like one that can not be read
+            System.err.println("Could not load the DNS records from " + storageFile + ": " + e.getMessage());
+
+            synchronized (updateLock)
+            {
+                dnsMap = RecordStore.empty(storage);
+                reverseIndex = ReverseIndex.EMPTY;
+                zoneIndex = ZoneIndex.EMPTY;
+                nameFilter = new CountingBloomFilter(0);
+                namePool = new DomainName.Pool();
+                removedNames.clear();
+                publish();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets where the malformed lines of the entries file are reported when the server starts
+     *
+     * @param handler The handler for malformed lines, null to only count them
+     */
+    public void setLoadErrorHandler(ZoneFileLoader.ErrorHandler handler)
+    {
+        loadErrorHandler = handler;
+    }
+
+    /**
+     * Sets where lookups of names without records of their own, or from a wildcard, are forwarded to. Forwarded
+     * answers are only cached, they never become records of this server.
+     *
+     * @param forwarder The forwarding resolver, null to answer such names as not found
+     */
+    public void setForwarder(ForwardingResolver forwarder)
+    {
+        this.forwarder = forwarder;
+    }
+
+    /**
+     * Gets the number of malformed lines that were skipped when the server last started
+     *
+     * @return The number of skipped lines
+     */
+    public long getSkippedRecordCount()
+    {
+        return skippedRecordCount;
+    }
+
+    /**
+     * Stops the DNS server. The undo and redo history still in memory is kept for the next start, the older history
+     * spilled to the .undo and .redo files is dropped and the files removed.
+     *
+     * @return Whether the DNS server was stopped successfully
+     */
+    public boolean stop()
+    {
+        if (!isStarted)
+        {
+            return true;
+        }
+
+        try
+        {
+            save();
+
+            synchronized (updateLock)
+            {
+                expiryTask.cancel(false);
+                writeAheadLog.close();
+                writeAheadLog = null;
+
+                // The history in memory carries over to the next start, only the spilled part goes with its files
+                dnsEvents.closeSpillFiles();
+            }
+
+            isStarted = false;
+            return true;
+        } catch (IOException e)
+        {
+            System.err.println("Could not save the DNS records to " + storageFile + ": " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Saves the records to the entries file, replacing it atomically once the new copy is safely on disk.
+     * The write-ahead log is emptied, as everything in it is now in the entries file.
+     *
+     * @throws IOException If the records could not be saved, the entries file is left untouched
+     */
+    public void save() throws IOException
+    {
+        try
+        {
+            saveInBackground().get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while saving the records");
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Saves the records to the entries file on a background thread, lookups and updates keep running meanwhile
+     *
+     * @return The pending save, which fails with the IOException if the records could not be saved
+     */
+    public Future<Void> saveInBackground()
+    {
+        return saveExecutor.submit(() ->
+        {
+            try
+            {
+                RecordStore snapshot;
+                WriteAheadLog log;
+
+                synchronized (updateLock)
+                {
+                    snapshot = dnsMap;
+                    log = writeAheadLog;
 
-    private boolean isStarted = false;
+                    if (log != null)
+                    {
+                        log.rotate();
+                    }
+                }
+
+                writeSnapshot(snapshot, storageFile, saveFormat != null ? saveFormat : loadedFormat);
+
+                if (log != null)
+                {
+                    log.dropRotated();
+                }
+
+                return null;
+            } finally
+            {
+                compactionPending.set(false);
+            }
+        });
+    }
+
+    /**
+     * Writes the records to another file, for example to convert between the text and binary formats.
+     * The entries file and the write-ahead log are left alone.
+     *
+     * @param file The file to write
+     * @param format The format to write the records in
+     * @throws IOException If the records could not be written
+     */
+    public void export(File file, SnapshotFormat format) throws IOException
+    {
+        writeSnapshot(current.records, file, format);
+    }
+
+    /**
+     * Writes a version of the records to a file, as it never changes no lock is needed. Records that have expired
+     * by then are left out.
+     *
+     * @param snapshot The records to write
+     * @param file The file to write
+     * @param format The format to write the records in
+     * @throws IOException If the records could not be written
+     */
+    private static void writeSnapshot(RecordStore snapshot, File file, SnapshotFormat format) throws IOException
+    {
+        ZoneFileWriter writer = new ZoneFileWriter(file, format);
+        long now = System.currentTimeMillis();
+
+        try
+        {
+            writer.open();
+
+            snapshot.forEach((domain, set) ->
+            {
+                try
+                {
+                    for (int i = 0; i < set.size(); i++)
+                    {
+                        if (!set.isExpired(i, now))
+                        {
+                            writer.write(set.get(i), domain, set.getExpires(i));
+                        }
+                    }
+                } catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            writer.commit();
+        } catch (UncheckedIOException e)
+        {
+            writer.abort();
+
+            throw e.getCause();
+        } catch (IOException e)
+        {
+            writer.abort();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the IP address for the specified domain name, or from the wildcard covering it, or from the forwarder if
+     * neither has one, safe to call from any number of threads
+     *
+     * @param domain The domain to lookup the IP address for
+     * @return The IP address for the domain name
+     */
+    public IPAddress lookup(DomainName domain)
+    {
+        return lookup(domain, RecordType.ANY);
+    }
+
+    /**
+     * Gets an IP address of the type for the specified domain name, from the forwarder only if the name has no
+     * records of any type here
+     *
+     * @param domain The domain to lookup the IP address for
+     * @param type A, AAAA or ANY for either
+     * @return The IP address, null if the domain name has no record of the type
+     */
+    public IPAddress lookup(DomainName domain, RecordType type)
+    {
+        Snapshot snapshot = current;
+        boolean mightHaveRecords = mightHaveRecords(domain);
+        IPAddress address = mightHaveRecords ? snapshot.lookup(domain, type) : null;
+        ForwardingResolver forwarder = this.forwarder;
+
+        if (address == null && forwarder != null && !(mightHaveRecords && snapshot.hasRecords(domain)))
+        {
+            address = forwarder.lookup(domain, type);
+        }
+
+        return address;
+    }
+
+    /**
+     * Gets every IP address of the domain name, rotated so each call starts at the next one
+     *
+     * @param domain The domain to lookup the IP addresses for
+     * @return The IP addresses, empty if the domain name has no records
+     */
+    public List<IPAddress> lookupAll(DomainName domain)
+    {
+        return lookupAll(domain, RecordType.ANY);
+    }
+
+    /**
+     * Gets every IP address of the type for the domain name, rotated so each call starts at the next one, or the
+     * forwarder's if the name has no records of any type here
+     *
+     * @param domain The domain to lookup the IP addresses for
+     * @param type A, AAAA or ANY for both
+     * @return The IP addresses, empty if the domain name has no records of the type
+     */
+    public List<IPAddress> lookupAll(DomainName domain, RecordType type)
+    {
+        Snapshot snapshot = current;
+        boolean mightHaveRecords = mightHaveRecords(domain);
+        List<IPAddress> addresses = mightHaveRecords
+                ? snapshot.lookupAll(domain, type)
+                : Collections.emptyList();
+        ForwardingResolver forwarder = this.forwarder;
+
+        if (addresses.isEmpty() && forwarder != null && !(mightHaveRecords && snapshot.hasRecords(domain)))
+        {
+            addresses = forwarder.lookupAll(domain, type);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Whether the domain name has records of any type, here or, if it has none here, at the forwarder. Tells a name
+     * that does not exist apart from one without records of the type that was looked up.
+     *
+     * @param domain The domain name to check
+     * @return If the name has any unexpired records
+     */
+    public boolean exists(DomainName domain)
+    {
+        if (mightHaveRecords(domain) && current.hasRecords(domain))
+        {
+            return true;
+        }
+
+        ForwardingResolver forwarder = this.forwarder;
+
+        // The forwarder caches both types of a name together, so asking it again costs no upstream query
+        return forwarder != null && !forwarder.lookupAll(domain, RecordType.ANY).isEmpty();
+    }
+
+    /**
+     * Whether a lookup of the name could find anything, straight from the bytes of a query. Names that do not exist
+     * are turned away by a Bloom filter of the names without building a DomainName or probing the records, but a
+     * true answer only means the name has to be looked up.
+     *
+     * @param name The ASCII bytes of the name, in any case and not yet validated
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return False if a lookup of the name certainly finds nothing
+     */
+    public boolean mightResolve(byte[] name, int offset, int length)
+    {
+        return forwarder != null || nameFilter.mightResolve(name, offset, length);
+    }
+
+    /**
+     * Gets an IPv4 address for a domain name given as text, taking turns between its records like lookup. The name
+     * is hashed and compared against the stored names in place and the address comes back as a primitive, so a
+     * lookup of a name with IPv4 records, or of one that does not exist, allocates nothing. Only a name answered by a
+     * wildcard or the forwarder goes through lookup(DomainName, RecordType) and allocates.
+     *
+     * @param name The domain name in any case, a name that is not valid has no address
+     * @return The 32 bit address in the low bits, NO_ADDRESS if the name has no IPv4 address
+     */
+    public long lookupIPv4(CharSequence name)
+    {
+        int hash = DomainName.hashIgnoreCase(name);
+        CountingBloomFilter filter = nameFilter;
+
+        if (filter.mightContain(hash))
+        {
+            long address = current.records.nextIPv4(name, hash, System.currentTimeMillis());
+
+            if (address != NO_ADDRESS)
+            {
+                return address;
+            }
+        }
+
+        // Only a wildcard or the forwarder can still answer, and the filter rules out most wildcards without allocating
+        if (forwarder == null && !(filter.hasWildcards() && filter.mightResolve(name)))
+        {
+            return NO_ADDRESS;
+        }
+
+        DomainName domain = toDomainName(name);
+        IPAddress address = domain != null ? lookup(domain, RecordType.A) : null;
+
+        return address != null ? address.getValue() & 0xFFFFFFFFL : NO_ADDRESS;
+    }
+
+    /**
+     * Copies the IPv4 addresses of a domain name given as text, rotated so each call starts at the next one like
+     * lookupAll, without allocating anything unless a wildcard or the forwarder answers
+     *
+     * @param name The domain name in any case, a name that is not valid has no addresses
+     * @param addresses Where the 32 bit addresses are copied, only as many as fit
+     * @return The number of addresses copied, 0 if the name has no IPv4 address
+     */
+    public int lookupAllIPv4(CharSequence name, int[] addresses)
+    {
+        return lookupAllIPv4(name, addresses, null);
+    }
+
+    /**
+     * Copies the IPv4 addresses of a domain name given as text and the times they expire, like lookupAllIPv4
+     *
+     * @param name The domain name in any case, a name that is not valid has no addresses
+     * @param addresses Where the 32 bit addresses are copied, only as many as fit
+     * @param expires Where the time each copied address expires in milliseconds is copied, 0 for one that never does
+     *                or that the forwarder answered with, or null
+     * @return The number of addresses copied, 0 if the name has no IPv4 address
+     */
+    public int lookupAllIPv4(CharSequence name, int[] addresses, long[] expires)
+    {
+        int hash = DomainName.hashIgnoreCase(name);
+        CountingBloomFilter filter = nameFilter;
+
+        if (filter.mightContain(hash))
+        {
+            int count = current.records.rotateIPv4(name, hash, System.currentTimeMillis(), addresses, expires);
+
+            if (count > 0)
+            {
+                return count;
+            }
+        }
+
+        // Only a wildcard or the forwarder can still answer, and the filter rules out most wildcards without allocating
+        if (forwarder == null && !(filter.hasWildcards() && filter.mightResolve(name)))
+        {
+            return 0;
+        }
+
+        DomainName domain = toDomainName(name);
+        List<IPAddress> found = domain != null ? lookupAll(domain, RecordType.A) : Collections.emptyList();
+        int count = Math.min(found.size(), addresses.length);
+        Snapshot snapshot = current;
+
+        for (int i = 0; i < count; i++)
+        {
+            addresses[i] = found.get(i).getValue();
+
+            if (expires != null)
+            {
+                expires[i] = snapshot.expires(domain, found.get(i));
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Builds the DomainName of a name that was looked up as text
+     *
+     * @return The domain name, null if the name is not valid
+     */
+    private static DomainName toDomainName(CharSequence name)
+    {
+        try
+        {
+            return new DomainName(name);
+        } catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the current version may have records for the name, of its own or from a wildcard
+     */
+    private boolean mightHaveRecords(DomainName domain)
+    {
+        CountingBloomFilter filter = nameFilter;
+
+        return filter.hasWildcards() || filter.mightContain(domain);
+    }
+
+    /**
+     * Gets the zone's own name, if it has records, and every name under it, so listZone(amazon.com) answers
+     * "*.amazon.com" without scanning the records. Wildcard names such as *.amazon.com are listed like any other.
+     *
+     * @param zone The zone to list
+     * @return The domain names, in no particular order
+     */
+    public List<DomainName> listZone(DomainName zone)
+    {
+        return current.listZone(zone);
+    }
+
+    /**
+     * Gets the domain names that point at the IPv4 address
+     *
+     * @param address The IPv4 address to find the domain names of
+     * @return The domain names, empty if there are none
+     * @throws IllegalArgumentException If the address is IPv6, which is not indexed
+     */
+    public List<DomainName> reverseLookup(IPAddress address)
+    {
+        return current.reverseLookup(address);
+    }
+
+    /**
+     * Gets the domain names that point at any IPv4 address of the CIDR range
+     *
+     * @param network The network address of the range
+     * @param prefixLength The number of leading bits of the network address that fix the range, 0 to 32
+     * @return The domain names ordered by address, each only once
+     * @throws IllegalArgumentException If the address is IPv6 or the prefix length is out of range
+     */
+    public List<DomainName> reverseLookup(IPAddress network, int prefixLength)
+    {
+        return current.reverseLookup(network, prefixLength);
+    }
+
+    /**
+     * Gets the current version of the records, which later updates do not change
+     *
+     * @return The current version
+     */
+    public Snapshot snapshot()
+    {
+        return current;
+    }
+
+    /**
+     * Gets an earlier version of the records, for example snapshot(snapshot().getSequence() - n) for the records
+     * before the last n changes. Only the last HISTORY_SIZE versions are kept, and with off-heap records only those
+     * that read from the last HISTORY_TABLES tables.
+     *
+     * @param sequence The sequence number of the version
+     * @return The version of the records
+     * @throws IllegalArgumentException If the version does not exist or is no longer kept
+     */
+    public Snapshot snapshot(long sequence)
+    {
+        Snapshot latest = current;
+
+        if (sequence == latest.sequence)
+        {
+            return latest;
+        }
+
+        if (sequence < 0 || sequence > latest.sequence)
+        {
+            throw new IllegalArgumentException("There is no version " + sequence + " of the records");
+        }
+
+        Snapshot snapshot = history.get((int) (sequence % HISTORY_SIZE));
+
+        if (snapshot == null || snapshot.sequence != sequence)
+        {
+            throw new IllegalArgumentException("Version " + sequence + " of the records is no longer kept");
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Makes the working copy of the records visible to lookups as a new version, the caller holds the update lock
+     */
+    private void publish()
+    {
+        if (dnsMap != current.records)
+        {
+            Snapshot snapshot = new Snapshot(current.sequence + 1, dnsMap, reverseIndex, zoneIndex);
+            Object table = dnsMap.offHeapTable();
+
+            history.set((int) (snapshot.sequence % HISTORY_SIZE), snapshot);
+
+            if (table != current.records.offHeapTable())
+            {
+                tableStarts.addLast(snapshot.sequence);
+            }
+
+            current = snapshot;
+
+            while (tableStarts.size() > HISTORY_TABLES)
+            {
+                forget(tableStarts.removeFirst(), tableStarts.peekFirst());
+            }
+        }
+
+        // Names enter the filter before the version that has them is published and leave it only after
+        for (DomainName domain : removedNames)
+        {
+            nameFilter.remove(domain);
+        }
+
+        removedNames.clear();
+    }
+
+    /**
+     * Drops versions from the history, the caller holds the update lock
+     *
+     * @param from The sequence number of the first version to drop
+     * @param to The sequence number after the last version to drop
+     */
+    private void forget(long from, long to)
+    {
+        for (long sequence = Math.max(from, to - HISTORY_SIZE); sequence < to; sequence++)
+        {
+            int slot = (int) (sequence % HISTORY_SIZE);
+            Snapshot snapshot = history.get(slot);
+
+            if (snapshot != null && snapshot.sequence == sequence)
+            {
+                history.set(slot, null);
+            }
+        }
+    }
+
+    /**
+     * Updates a domain and IP address
+     *
+     * @param command The command to perform
+     * @return The IP address of the record
+     */
+    public IPAddress update(String command)
+    {
+        DNSEvent event = parseCommand(command);
+
+        if (event != null)
+        {
+            return update(event, false);
+        }
+
+        return null;
+    }
+
+    /**
+     * Applies a file of ADD and DEL commands, one per line, in batches that each take the update lock once.
+     * Meant to be called off the UI thread, bad lines are collected in the summary instead of thrown.
+     *
+     * @param file The file of update commands
+     * @return The summary of applied and rejected commands
+     * @throws IOException If the file could not be read
+     */
+    public UpdateSummary applyUpdates(File file) throws IOException
+    {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), "US-ASCII"))
+        {
+            return applyUpdates(reader);
+        }
+    }
+
+    /**
+     * Applies a stream of ADD and DEL commands, one per line, in batches that each take the update lock once
+     *
+     * @param reader The stream of update commands
+     * @return The summary of applied and rejected commands
+     * @throws IOException If the stream could not be read
+     */
+    public UpdateSummary applyUpdates(Reader reader) throws IOException
+    {
+        UpdateSummary summary = new UpdateSummary();
+        BufferedReader in = new BufferedReader(reader, 1 << 16);
+
+        List<DNSEvent> batch = new ArrayList<>(UPDATE_BATCH_SIZE);
+        long[] batchLines = new long[UPDATE_BATCH_SIZE];
+
+        long lineNumber = 0;
+        String line;
+
+        while ((line = in.readLine()) != null)
+        {
+            lineNumber++;
+
+            try
+            {
+                DNSEvent event = parseCommand(line);
+
+                if (event == null)
+                {
+                    if (!line.trim().isEmpty())
+                    {
+                        summary.rejected(lineNumber, "Expected ADD or DEL, an IP address, a domain name and an optional TTL");
+                    }
+
+                    continue;
+                }
+
+                batchLines[batch.size()] = lineNumber;
+                batch.add(event);
+            } catch (IllegalArgumentException ex)
+            {
+                summary.rejected(lineNumber, ex.getMessage());
+            }
+
+            if (batch.size() == UPDATE_BATCH_SIZE)
+            {
+                applyBatch(batch, batchLines, summary);
+                batch.clear();
+            }
+        }
+
+        applyBatch(batch, batchLines, summary);
+
+        return summary;
+    }
+
+    /**
+     * Applies a batch of parsed commands under a single hold of the update lock and a single log fsync, publishing
+     * one version for the whole batch so lookups never see part of it
+     *
+     * @param batch The parsed commands
+     * @param batchLines The line number of each command
+     * @param summary Where the outcome of each command is counted
+     */
+    private void applyBatch(List<DNSEvent> batch, long[] batchLines, UpdateSummary summary)
+    {
+        long before;
+        long position;
+
+        synchronized (updateLock)
+        {
+            before = logPosition;
+
+            for (int i = 0; i < batch.size(); i++)
+            {
+                try
+                {
+                    applyEvent(batch.get(i), false);
+
+                    summary.applied();
+                } catch (InputMismatchException ex)
+                {
+                    summary.rejected(batchLines[i], ex.getMessage());
+                }
+            }
+
+            publish();
+
+            position = logPosition;
+        }
+
+        if (position != before)
+        {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Parses an "ADD|DEL ip domain" or "ADD ip domain ttl" command
+     *
+     * @param command The command to parse
+     * @return The event for the command, null if it does not have three or four fields
+     * @throws IllegalArgumentException If a field is invalid or a DEL has a TTL
+     */
+    private static DNSEvent parseCommand(String command)
+    {
+        String[] vars = new String[4];
+        int count = 0;
+
+        int length = command.length();
+        int index = 0;
+
+        while (index < length)
+        {
+            while (index < length && Character.isWhitespace(command.charAt(index)))
+            {
+                index++;
+            }
+
+            int start = index;
+
+            while (index < length && !Character.isWhitespace(command.charAt(index)))
+            {
+                index++;
+            }
+
+            if (index > start)
+            {
+                if (count == vars.length)
+                {
+                    return null;
+                }
+
+                vars[count++] = command.substring(start, index);
+            }
+        }
+
+        if (count >= 3)
+        {
+            DNSEventType eventType = DNSEventType.fromCode(vars[0]);
+
+            if (eventType == null)
+            {
+                throw new IllegalArgumentException("Invalid action type specified. Only ADD or DEL");
+            }
+
+            if (count == 4 && eventType != DNSEventType.ADD)
+            {
+                throw new IllegalArgumentException("Only ADD takes a TTL");
+            }
+
+            IPAddress address = new IPAddress(vars[1]);
+            DomainName domain = new DomainName(vars[2]);
+
+            if (count == 4)
+            {
+                return eventType.getEvent(domain, address, expiresAfter(ZoneFileLoader.parseTtl(vars[3])));
+            }
+
+            return eventType.getEvent(domain, address);
+        }
+
+        return null;
+    }
+
+    /**
+     * Updates a domain and IP address
+     *
+     * @param event The event to perform
+     * @return The IP address of the record
+     */
+    public IPAddress update(DNSEvent event, boolean isModification)
+    {
+        IPAddress result;
+        long position;
+
+        synchronized (updateLock)
+        {
+            long before = logPosition;
+            result = apply(event, isModification);
+
+            if (logPosition == before)
+            {
+                // Nothing was changed, so there is nothing to make durable
+                return result;
+            }
+
+            position = logPosition;
+        }
+
+        // Wait outside the lock so the writers queued behind us can share the next fsync
+        awaitDurable(position);
+
+        return result;
+    }
+
+    /**
+     * Applies the event to the records, appends it to the write-ahead log and publishes the new version, the
+     * caller holds the update lock
+     *
+     * @param event The event to perform
+     * @param isModification Whether the event is an undo or redo, which is not recorded as a new event
+     * @return The IP address of the record
+     */
+    private IPAddress apply(DNSEvent event, boolean isModification)
+    {
+        IPAddress result = applyEvent(event, isModification);
+
+        publish();
+
+        return result;
+    }
+
+    /**
+     * Applies the event to the working copy of the records, the caller holds the update lock
+     *
+     * @param event The event to perform
+     * @param isModification Whether the event is an undo or redo, which is not recorded as a new event
+     * @return The IP address of the record
+     */
+    private IPAddress applyEvent(DNSEvent event, boolean isModification)
+    {
+        DomainName domain = event.getDomain();
+        IPAddress address = event.getAddress();
+
+        if (event.getType() == DNSEventType.BATCH)
+        {
+            // Nothing is published until the whole batch is in, so lookups never see part of it
+            logMarker(WriteAheadLog.BATCH_BEGIN);
+
+            for (DNSEvent child : event.getEvents())
+            {
+                applyEvent(child, true);
+            }
+
+            logMarker(WriteAheadLog.BATCH_END);
+
+            if (!isModification) dnsEvents.push(event);
+
+            return null;
+        }
+
+        RecordSet set = dnsMap.get(domain);
+        int index = set != null ? set.indexOf(address) : -1;
+        long now = System.currentTimeMillis();
+
+        // An expired record is as good as gone, whether or not the expiry wheel has removed it yet
+        boolean expired = index >= 0 && set.isExpired(index, now);
+
+        if (event.getType() == DNSEventType.ADD)
+        {
+            if (index >= 0 && !expired)
+            {
+                // The domain already has the address, nothing changes and nothing is recorded
+                return address;
+            }
+
+            if (isModification && event.expires != 0 && event.expires <= now)
+            {
+                // Undoing the delete or redoing the add of a record that has expired since brings nothing back
+                return null;
+            }
+
+            if (!isModification) dnsEvents.push(event);
+
+            log(WriteAheadLog.ADD, domain, address, event.expires);
+
+            if (event.expires != 0)
+            {
+                expiryWheel.schedule(domain, address, event.expires);
+            }
+
+            if (expired)
+            {
+                // The address is still indexed, only its expiry changes
+                dnsMap = dnsMap.with(domain, set.without(index).with(address, event.expires, index));
+
+                return null;
+            }
+
+            // A new name is compacted before it is stored, an existing one keeps the key it already has
+            domain = domain.compact(namePool);
+            dnsMap = dnsMap.with(domain, set == null
+                    ? RecordSet.of(address, event.expires)
+                    : set.with(address, event.expires, event.index));
+
+            if (set == null)
+            {
+                namePool.retain(domain);
+                zoneIndex = zoneIndex.with(domain);
+                addName(domain);
+            }
+
+            if (!address.isIPv6())
+            {
+                reverseIndex = reverseIndex.with(address.getValue(), domain);
+            }
+
+            return null;
+        }
+
+        if (event.getType() == DNSEventType.DELETE)
+        {
+            if (set != null)
+            {
+                if (index >= 0 && (!expired || isModification))
+                {
+                    // Remember where the address was and when it expires so undoing the delete puts it back the same
+                    event.index = index;
+                    event.expires = set.getExpires(index);
+
+                    if (!isModification) dnsEvents.push(event);
+
+                    log(WriteAheadLog.DELETE, domain, address, 0);
+                    remove(domain, set, index);
+
+                    return address;
+                }
+
+                // Undoing the add of a record that has expired since leaves nothing to remove
+                if (isModification)
+                {
+                    return null;
+                }
+
+                throw new InputMismatchException("The specified domain name and IP address do not match any entries in the DNS");
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes an address from the working copy of the records and the indexes, the caller holds the update lock
+     *
+     * @param domain The domain name of the record
+     * @param set The record set of the domain
+     * @param index The position of the address in the set
+     */
+    private void remove(DomainName domain, RecordSet set, int index)
+    {
+        IPAddress address = set.get(index);
+        RecordSet remaining = set.without(index);
+
+        dnsMap = remaining == null ? dnsMap.without(domain) : dnsMap.with(domain, remaining);
+
+        if (remaining == null)
+        {
+            zoneIndex = zoneIndex.without(domain);
+            namePool.release(domain);
+            removedNames.add(domain);
+        }
+
+        if (!address.isIPv6())
+        {
+            reverseIndex = reverseIndex.without(address.getValue(), domain);
+        }
+    }
+
+    /**
+     * Adds a name that now has records to the filter of names, the caller holds the update lock and the working copy
+     * already has the name
+     *
+     * @param domain The domain name
+     */
+    private void addName(DomainName domain)
+    {
+        if (!nameFilter.isFull())
+        {
+            nameFilter.add(domain);
+
+            return;
+        }
+
+        // Readers keep using the old filter until the larger one has every name, including the names still waiting
+        // to be removed once the version without them is published
+        CountingBloomFilter filter = new CountingBloomFilter(nameFilter.size() * 2);
+
+        dnsMap.forEach((name, set) -> filter.add(name));
+        removedNames.forEach(filter::add);
+        nameFilter = filter;
+    }
+
+    /**
+     * Removes the records whose deadlines have passed from the expiry wheel and publishes the result. Expiry is not
+     * a change of its own: it is neither logged, as loading drops expired records anyway, nor undone.
+     */
+    private void expire()
+    {
+        synchronized (updateLock)
+        {
+            long now = System.currentTimeMillis();
+
+            expiryWheel.advance(now, (domain, address, deadline) ->
+            {
+                RecordSet set = dnsMap.get(domain);
+                int index = set != null ? set.indexOf(address) : -1;
+
+                // The record may have been deleted or added again with another deadline since the timer was set
+                if (index >= 0 && set.getExpires(index) == deadline)
+                {
+                    remove(domain, set, index);
+                }
+            });
+
+            publish();
+        }
+    }
+
+    /**
+     * Gets the record set with the address added at the end, or with its expiry replaced if it is already there
+     *
+     * @param set The record set of the domain, null if it has none
+     * @param address The address to add
+     * @param expires When the address expires in milliseconds, 0 for never
+     * @return The record set with the address
+     */
+    private static RecordSet added(RecordSet set, IPAddress address, long expires)
+    {
+        if (set == null)
+        {
+            return RecordSet.of(address, expires);
+        }
+
+        int index = set.indexOf(address);
+
+        if (index < 0)
+        {
+            return set.with(address, expires, set.size());
+        }
+
+        return set.getExpires(index) == expires ? set : set.without(index).with(address, expires, index);
+    }
+
+    /**
+     * Gets the record set without the addresses that have expired
+     *
+     * @param set The record set of the domain
+     * @param now The current time in milliseconds
+     * @return The addresses that are left, null if none are
+     */
+    private static RecordSet unexpired(RecordSet set, long now)
+    {
+        for (int i = set.size() - 1; set != null && i >= 0; i--)
+        {
+            if (set.isExpired(i, now))
+            {
+                set = set.without(i);
+            }
+        }
+
+        return set;
+    }
+
+    /**
+     * Gets the deadline of a record added now with the TTL
+     *
+     * @param ttlSeconds The TTL in seconds
+     * @return When the record expires in milliseconds
+     */
+    private static long expiresAfter(long ttlSeconds)
+    {
+        return System.currentTimeMillis() + ttlSeconds * 1000;
+    }
+
+    /**
+     * Appends an applied change to the write-ahead log, the caller holds the update lock
+     */
+    private void log(byte type, DomainName domain, IPAddress address, long expires)
+    {
+        if (writeAheadLog != null)
+        {
+            logPosition = writeAheadLog.append(type, address, domain, expires);
+        }
+    }
+
+    /**
+     * Appends a transaction boundary to the write-ahead log, the caller holds the update lock
+     */
+    private void logMarker(byte type)
+    {
+        if (writeAheadLog != null)
+        {
+            logPosition = writeAheadLog.appendMarker(type);
+        }
+    }
+
+    /**
+     * Starts a transaction, whose updates are all applied together or not at all and undone in one step
+     *
+     * @return The new transaction
+     */
+    public Transaction beginTransaction()
+    {
+        return new Transaction();
+    }
+
+    /**
+     * Checks a transaction against the current records, the caller holds the update lock
+     *
+     * @param events The updates of the transaction in order
+     * @return The updates that change something, deletes of missing records are dropped
+     * @throws InputMismatchException If a delete does not match the record it would remove
+     */
+    private List<DNSEvent> validate(List<DNSEvent> events)
+    {
+        Map<DomainName, RecordSet> pending = new HashMap<>();
+        List<DNSEvent> effective = new ArrayList<>(events.size());
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < events.size(); i++)
+        {
+            DNSEvent event = events.get(i);
+            DomainName domain = event.getDomain();
+
+            RecordSet set = pending.containsKey(domain) ? pending.get(domain) : dnsMap.get(domain);
+            int index = set != null ? set.indexOf(event.getAddress()) : -1;
+            boolean expired = index >= 0 && set.isExpired(index, now);
+
+            if (event.getType() == DNSEventType.ADD)
+            {
+                if (index < 0 || expired)
+                {
+                    pending.put(domain, added(set, event.getAddress(), event.expires));
+                    effective.add(event);
+                }
+
+                continue;
+            }
+
+            if (set == null)
+            {
+                continue;
+            }
+
+            if (index < 0 || expired)
+            {
+                throw new InputMismatchException("Update " + (i + 1) + " of the transaction: the specified domain name and IP address do not match any entries in the DNS");
+            }
+
+            pending.put(domain, set.without(index));
+            effective.add(event);
+        }
+
+        return effective;
+    }
+
+    /**
+     * Waits for the write-ahead log to reach the position and starts a compaction once it has grown too large
+     *
+     * @param position The position of the last appended change
+     */
+    private void awaitDurable(long position)
+    {
+        WriteAheadLog log = writeAheadLog;
+
+        if (log == null)
+        {
+            return;
+        }
+
+        try
+        {
+            log.awaitDurable(position);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("The update could not be written to the log", e);
+        }
+
+        if (log.size() > COMPACT_LOG_SIZE && compactionPending.compareAndSet(false, true))
+        {
+            saveInBackground();
+        }
+    }
+
+    /**
+     * Adds a domain and IP address to the DNS lookup table
+     *
+     * @param domain The domain to add
+     * @param ipAddress The IP address to add
+     */
+    public void add(DomainName domain, IPAddress ipAddress)
+    {
+        update(DNSEventType.ADD.getEvent(domain, ipAddress), false);
+    }
+
+    /**
+     * Adds a domain and IP address that expire after the TTL. Adding an address the domain already has only renews
+     * it once it has expired.
+     *
+     * @param domain The domain to add
+     * @param ipAddress The IP address to add
+     * @param ttlSeconds How many seconds the record lives
+     * @throws IllegalArgumentException If the TTL is not at least one second
+     */
+    public void add(DomainName domain, IPAddress ipAddress, long ttlSeconds)
+    {
+        update(DNSEventType.ADD.getEvent(domain, ipAddress, expiresAfter(checkTtl(ttlSeconds))), false);
+    }
+
+    private static long checkTtl(long ttlSeconds)
+    {
+        if (ttlSeconds < 1 || ttlSeconds > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The TTL must be a number of seconds from 1 to " + Integer.MAX_VALUE);
+        }
+
+        return ttlSeconds;
+    }
+
+    /**
+     * Deletes a domain name from the DNS records
+     *
+     * @param domain The domain to delete the record for
+     * @param address The IP address to delete the record for
+     */
+    public boolean delete(DomainName domain, IPAddress address)
+    {
+        return update(DNSEventType.DELETE.getEvent(domain, address), false) != null;
+    }
+
+    /**
+     * Gets the last event and executes the inverse of it to undo it
+     */
+    public void undo()
+    {
+        long before;
+        long position;
+
+        synchronized (updateLock)
+        {
+            before = logPosition;
+            apply(dnsEvents.undo().getInverse(), true);
+            position = logPosition;
+        }
+
+        // Like update, the fsync is shared with the writers queued behind us instead of holding the lock
+        if (position != before)
+        {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Gets the last undone event and redoes it
+     */
+    public void redo()
+    {
+        long before;
+        long position;
+
+        synchronized (updateLock)
+        {
+            before = logPosition;
+            apply(dnsEvents.redo(), true);
+            position = logPosition;
+        }
+
+        if (position != before)
+        {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Whether there are any events that can be undone
+     *
+     * @return If there are any events able to be undone
+     */
+    public boolean canUndo()
+    {
+        synchronized (updateLock)
+        {
+            return isStarted && dnsEvents.canUndo();
+        }
+    }
+
+    /**
+     * Whether there are any events that can be redone
+     *
+     * @return If there are any events able to be redone
+     */
+    public boolean canRedo()
+    {
+        synchronized (updateLock)
+        {
+            return isStarted && dnsEvents.canRedo();
+        }
+    }
+
+    /**
+     * A group of updates that is validated as a whole, applied under one hold of the update lock and recorded as a
+     * single undo step. Lookups never see the records with only part of the transaction applied.
+     */
+    public class Transaction
+    {
+        private final List<DNSEvent> events = new ArrayList<>();
+        private boolean committed;
+
+        private Transaction() { }
+
+        /**
+         * Queues adding a domain and IP address
+         *
+         * @param domain The domain to add
+         * @param address The IP address to add
+         * @return This transaction
+         */
+        public Transaction add(DomainName domain, IPAddress address)
+        {
+            return queue(DNSEventType.ADD.getEvent(domain, address));
+        }
+
+        /**
+         * Queues adding a domain and IP address that expire after the TTL, counted from when the add is queued
+         *
+         * @param domain The domain to add
+         * @param address The IP address to add
+         * @param ttlSeconds How many seconds the record lives
+         * @return This transaction
+         * @throws IllegalArgumentException If the TTL is not at least one second
+         */
+        public Transaction add(DomainName domain, IPAddress address, long ttlSeconds)
+        {
+            return queue(DNSEventType.ADD.getEvent(domain, address, expiresAfter(checkTtl(ttlSeconds))));
+        }
+
+        /**
+         * Queues deleting a domain and IP address
+         *
+         * @param domain The domain to delete the record for
+         * @param address The IP address to delete the record for
+         * @return This transaction
+         */
+        public Transaction delete(DomainName domain, IPAddress address)
+        {
+            return queue(DNSEventType.DELETE.getEvent(domain, address));
+        }
+
+        /**
+         * Queues an "ADD|DEL ip domain" or "ADD ip domain ttl" command, lines without three or four fields are ignored
+         *
+         * @param command The command to queue
+         * @return This transaction
+         */
+        public Transaction update(String command)
+        {
+            DNSEvent event = parseCommand(command);
+
+            return event != null ? queue(event) : this;
+        }
+
+        /**
+         * Validates and applies every queued update, or none of them
+         *
+         * @return The number of updates that changed the records
+         * @throws InputMismatchException If a delete does not match the records, nothing is applied
+         */
+        public int commit()
+        {
+            if (committed)
+            {
+                throw new IllegalStateException("The transaction has already been committed");
+            }
+
+            committed = true;
+
+            List<DNSEvent> effective;
+            long position;
+
+            synchronized (updateLock)
+            {
+                effective = validate(events);
+
+                if (effective.isEmpty())
+                {
+                    return 0;
+                }
+
+                apply(new DNSEvent(effective), false);
+
+                position = logPosition;
+            }
+
+            awaitDurable(position);
+
+            return effective.size();
+        }
+
+        private Transaction queue(DNSEvent event)
+        {
+            if (committed)
+            {
+                throw new IllegalStateException("The transaction has already been committed");
+            }
 
-    public DNS(String fileName)
-    {
-        storageFile = new File(fileName);
+            events.add(event);
 
-        dnsEvents = new UndoRedoStack<>();
-        dnsMap = new HashMap<>();
+            return this;
+        }
     }
 
     /**
-     * Starts the DNS server and reads the list of domains and IP addresses from the file
-     *
-     * @return Whether the DNS server was started successfully
+     * An immutable version of the records, taking one copies nothing
      */
-    public boolean start()
+    public static final class Snapshot
     {
-        if (isStarted)
+        private final long sequence;
+        private final RecordStore records;
+        private final ReverseIndex reverseIndex;
+        private final ZoneIndex zoneIndex;
+
+        private Snapshot(long sequence, RecordStore records, ReverseIndex reverseIndex, ZoneIndex zoneIndex)
         {
-            return true;
+            this.sequence = sequence;
+            this.records = records;
+            this.reverseIndex = reverseIndex;
+            this.zoneIndex = zoneIndex;
         }
 
-        try (Scanner in = new Scanner(storageFile))
+        /**
+         * Gets the sequence number of this version, which goes up by one with every applied change
+         *
+         * @return The sequence number
+         */
+        public long getSequence()
         {
-            while (in.hasNext() && in.hasNext())
-            {
-                String ipAddress = in.next();
-                String domainName = in.next();
+            return sequence;
+        }
 
-                try
-                {
-                    IPAddress address = new IPAddress(ipAddress);
-                    DomainName domain = new DomainName(domainName);
+        /**
+         * Gets an IP address the domain name had in this version, taking turns between its records
+         *
+         * @param domain The domain to lookup the IP address for
+         * @return The IP address, null if the domain name had no record
+         */
+        public IPAddress lookup(DomainName domain)
+        {
+            return lookup(domain, RecordType.ANY);
+        }
+
+        /**
+         * Gets an IP address of the type the domain name had in this version, taking turns between its records
+         *
+         * @param domain The domain to lookup the IP address for
+         * @param type A, AAAA or ANY for either
+         * @return The IP address, null if the domain name had no record of the type
+         */
+        public IPAddress lookup(DomainName domain, RecordType type)
+        {
+            long now = System.currentTimeMillis();
+            IPAddress address = records.next(domain, type, now);
 
-                    dnsMap.put(domain, address);
-                } catch (IllegalArgumentException ex)
+            if (address == null)
+            {
+                DomainName wildcard = zoneIndex.wildcardFor(domain);
+
+                if (wildcard != null)
                 {
-                    System.err.println("Skipping (" + domainName + ", " + ipAddress + "): " + ex.getMessage());
+                    address = records.next(wildcard, type, now);
                 }
             }
 
-            return isStarted = true;
-        } catch (FileNotFoundException e) { }
-
-        return false;
-    }
+            return address;
+        }
 
-    /**
-     * Stops the DNS server
-     *
-     * @return Whether the DNS server was stopped successfully
-     */
-    public boolean stop()
-    {
-        if (!isStarted)
+        /**
+         * Gets every IP address the domain name had in this version, rotated so each call starts at the next one
+         *
+         * @param domain The domain to lookup the IP addresses for
+         * @return The IP addresses, empty if the domain name had no records
+         */
+        public List<IPAddress> lookupAll(DomainName domain)
         {
-            return true;
+            return lookupAll(domain, RecordType.ANY);
         }
 
-        try (PrintWriter printer = new PrintWriter(storageFile))
+        /**
+         * Gets every IP address of the type the domain name had in this version, rotated so each call starts at the
+         * next one
+         *
+         * @param domain The domain to lookup the IP addresses for
+         * @param type A, AAAA or ANY for both
+         * @return The IP addresses, empty if the domain name had no records of the type
+         */
+        public List<IPAddress> lookupAll(DomainName domain, RecordType type)
         {
-            for (Map.Entry<DomainName, IPAddress> entry : dnsMap.entrySet())
-            {
-                printer.println(entry.getValue() + "\t\t" + entry.getKey());
-            }
-
-            isStarted = false;
-            return true;
-        } catch (IOException e) { }
+            long now = System.currentTimeMillis();
+            List<IPAddress> addresses = records.rotate(domain, type, now);
 
-        return false;
-    }
+            if (addresses.isEmpty())
+            {
+                DomainName wildcard = zoneIndex.wildcardFor(domain);
 
-    /**
-     * Gets the IP address for the specified domain name
-     *
-     * @param domain The domain to lookup the IP address for
-     * @return The IP address for the domain name
-     */
-    public IPAddress lookup(DomainName domain)
-    {
-        return dnsMap.get(domain);
-    }
+                if (wildcard != null)
+                {
+                    addresses = records.rotate(wildcard, type, now);
+                }
+            }
 
-    /**
-     * Updates a domain and IP address
-     *
-     * @param command The command to perform
-     * @return The IP address of the record
-     */
-    public IPAddress update(String command)
-    {
-        String[] vars = command.split("\\s+");
+            return addresses;
+        }
 
-        if (vars.length == 3)
+        /**
+         * Whether the domain name had unexpired records of any type in this version, its own or a wildcard's that
+         * covers it. Only a name without any is sent to the forwarder, a name that is here but has no record of the
+         * type asked for is answered as having none.
+         *
+         * @param domain The domain name to check
+         * @return True if the domain name is answered here
+         */
+        public boolean hasRecords(DomainName domain)
         {
-            DNSEventType eventType = DNSEventType.fromCode(vars[0]);
+            long now = System.currentTimeMillis();
 
-            if (eventType == null)
+            if (hasUnexpired(records.get(domain), now))
             {
-                throw new IllegalArgumentException("Invalid action type specified. Only ADD or DEL");
+                return true;
             }
 
-            IPAddress address = new IPAddress(vars[1]);
-            DomainName domain = new DomainName(vars[2]);
+            DomainName wildcard = zoneIndex.wildcardFor(domain);
 
-            return update(eventType.getEvent(domain, address), false);
+            return wildcard != null && hasUnexpired(records.get(wildcard), now);
         }
 
-        return null;
-    }
+        /**
+         * Gets when an address the domain name had in this version expires, from its own records or the wildcard's
+         * that covers it
+         *
+         * @param domain The domain name
+         * @param address One of the addresses it was looked up with
+         * @return The time in milliseconds, 0 if it never expires or is not one of the name's records
+         */
+        public long expires(DomainName domain, IPAddress address)
+        {
+            RecordSet set = records.get(domain);
+            int index = set != null ? set.indexOf(address) : -1;
 
-    /**
-     * Updates a domain and IP address
-     *
-     * @param event The event to perform
-     * @return The IP address of the record
-     */
-    public IPAddress update(DNSEvent event, boolean isModification)
-    {
-        DomainName domain = event.getDomain();
-        IPAddress address = event.getAddress();
+            if (index < 0)
+            {
+                DomainName wildcard = zoneIndex.wildcardFor(domain);
 
-        if (event.getType() == DNSEventType.ADD)
-        {
-            if (!isModification) dnsEvents.push(event);
+                set = wildcard != null ? records.get(wildcard) : null;
+                index = set != null ? set.indexOf(address) : -1;
+            }
 
-            return dnsMap.put(domain, address);
+            return index >= 0 ? set.getExpires(index) : 0;
         }
 
-        if (event.getType() == DNSEventType.DELETE)
+        private static boolean hasUnexpired(RecordSet set, long now)
         {
-            IPAddress foundAddress = dnsMap.get(domain);
-
-            if (foundAddress != null)
+            for (int i = 0; set != null && i < set.size(); i++)
             {
-                if (address.equals(foundAddress))
+                if (!set.isExpired(i, now))
                 {
-                    if (!isModification) dnsEvents.push(event);
-
-                    return dnsMap.remove(domain);
+                    return true;
                 }
-
-                throw new InputMismatchException("The specified domain name and IP address do not match any entries in the DNS");
             }
-        }
-
-        return null;
-    }
 
-    /**
-     * Adds a domain and IP address to the DNS lookup table
-     *
-     * @param domain The domain to add
-     * @param ipAddress The IP address to add
-     */
-    public void add(DomainName domain, IPAddress ipAddress)
-    {
-        update(DNSEventType.ADD.getEvent(domain, ipAddress), false);
-    }
+            return false;
+        }
 
-    /**
-     * Deletes a domain name from the DNS records
-     *
-     * @param domain The domain to delete the record for
-     * @param address The IP address to delete the record for
-     */
-    public boolean delete(DomainName domain, IPAddress address)
-    {
-        return update(DNSEventType.DELETE.getEvent(domain, address), false) != null;
-    }
+        /**
+         * Gets the zone's own name, if it had records, and every name under it in this version
+         *
+         * @param zone The zone to list, such as amazon.com
+         * @return The domain names, in no particular order
+         */
+        public List<DomainName> listZone(DomainName zone)
+        {
+            return zoneIndex.list(zone);
+        }
 
-    /**
-     * Gets the last event and executes the inverse of it to undo it
-     */
-    public void undo()
-    {
-        DNSEvent inverse = dnsEvents.undo().getInverse();
+        /**
+         * Gets the domain names that pointed at the IPv4 address in this version
+         *
+         * @param address The IPv4 address to find the domain names of
+         * @return The domain names, empty if there were none
+         * @throws IllegalArgumentException If the address is IPv6, which is not indexed
+         */
+        public List<DomainName> reverseLookup(IPAddress address)
+        {
+            return reverseIndex.get(ipv4Value(address));
+        }
 
-        update(inverse, true);
-    }
+        /**
+         * Gets the domain names that pointed at any IPv4 address of the CIDR range in this version, such as
+         * reverseLookup(new IPAddress("54.192.0.0"), 12)
+         *
+         * @param network The network address of the range
+         * @param prefixLength The number of leading bits of the network address that fix the range, 0 to 32
+         * @return The domain names ordered by address, each only once
+         * @throws IllegalArgumentException If the address is IPv6 or the prefix length is out of range
+         */
+        public List<DomainName> reverseLookup(IPAddress network, int prefixLength)
+        {
+            if (prefixLength < 0 || prefixLength > 32)
+            {
+                throw new IllegalArgumentException("The prefix length must be between 0 and 32");
+            }
 
-    /**
-     * Gets the last undone event and redoes it
-     */
-    public void redo()
-    {
-        DNSEvent event = dnsEvents.redo();
+            return reverseIndex.range(ipv4Value(network), prefixLength);
+        }
 
-        update(event, true);
-    }
+        private static int ipv4Value(IPAddress address)
+        {
+            if (address.isIPv6())
+            {
+                throw new IllegalArgumentException("Reverse lookups only index IPv4 addresses");
+            }
 
-    /**
-     * Whether there are any events that can be undone
-     *
-     * @return If there are any events able to be undone
-     */
-    public boolean canUndo()
-    {
-        return isStarted && dnsEvents.canUndo();
-    }
+            return address.getValue();
+        }
 
-    /**
-     * Whether there are any events that can be redone
-     *
-     * @return If there are any events able to be redone
-     */
-    public boolean canRedo()
-    {
-        return isStarted &&dnsEvents.canRedo();
+        /**
+         * Gets the number of domain names with records in this version
+         *
+         * @return The number of domain names
+         */
+        public int size()
+        {
+            return records.size();
+        }
     }
 
     /**
@@ -235,6 +1975,18 @@ public class DNS
         private DomainName domain;
         private IPAddress address;
 
+        private List<DNSEvent> events;
+
+        /**
+         * Where the address was in the record set of a delete, or is to go for an add. Past the end means appending.
+         */
+        private int index = Integer.MAX_VALUE;
+
+        /**
+         * When the added address expires, or when the deleted one would have, in milliseconds, 0 for never
+         */
+        private long expires;
+
         public DNSEvent(DNSEventType type, DomainName domain, IPAddress address)
         {
             this.type = type;
@@ -243,6 +1995,25 @@ public class DNS
             this.address = address;
         }
 
+        private DNSEvent(DNSEventType type, DomainName domain, IPAddress address, int index, long expires)
+        {
+            this(type, domain, address);
+
+            this.index = index;
+            this.expires = expires;
+        }
+
+        /**
+         * Creates a batch event that applies and undoes the events together
+         *
+         * @param events The events of the batch in order
+         */
+        public DNSEvent(List<DNSEvent> events)
+        {
+            this.type = DNSEventType.BATCH;
+            this.events = events;
+        }
+
         /**
          * Gets the inverse event
          *
@@ -250,6 +2021,18 @@ public class DNS
          */
         public DNSEvent getInverse()
         {
+            if (type == DNSEventType.BATCH)
+            {
+                List<DNSEvent> inverse = new ArrayList<>(events.size());
+
+                for (int i = events.size() - 1; i >= 0; i--)
+                {
+                    inverse.add(events.get(i).getInverse());
+                }
+
+                return new DNSEvent(inverse);
+            }
+
             DNSEventType newType = null;
 
             switch (type)
@@ -264,7 +2047,9 @@ public class DNS
                     break;
             }
 
-            return new DNSEvent(newType, domain, address);
+            // Undoing a delete puts the address back where it was with the same deadline, undoing an add removes it
+            // wherever it is
+            return new DNSEvent(newType, domain, address, index, expires);
         }
 
         public DomainName getDomain()
@@ -281,6 +2066,72 @@ public class DNS
         {
             return type;
         }
+
+        public List<DNSEvent> getEvents()
+        {
+            return events;
+        }
+    }
+
+    /**
+     * Writes DNS events to the undo spill file, a batch as its size followed by its events
+     */
+    private static class DNSEventCodec implements UndoRedoStack.Codec<DNSEvent>
+    {
+        @Override
+        public void write(DNSEvent event, DataOutput out) throws IOException
+        {
+            out.writeByte(event.getType().ordinal());
+
+            if (event.getType() == DNSEventType.BATCH)
+            {
+                out.writeInt(event.getEvents().size());
+
+                for (DNSEvent child : event.getEvents())
+                {
+                    write(child, out);
+                }
+
+                return;
+            }
+
+            IPAddress address = event.getAddress();
+
+            out.writeBoolean(address.isIPv6());
+            out.writeLong(address.getHigh());
+            out.writeLong(address.getLow());
+            out.writeUTF(event.getDomain().toString());
+            out.writeInt(event.index);
+            out.writeLong(event.expires);
+        }
+
+        @Override
+        public DNSEvent read(DataInput in) throws IOException
+        {
+            DNSEventType type = DNSEventType.values()[in.readByte()];
+
+            if (type == DNSEventType.BATCH)
+            {
+                int size = in.readInt();
+                List<DNSEvent> events = new ArrayList<>(size);
+
+                for (int i = 0; i < size; i++)
+                {
+                    events.add(read(in));
+                }
+
+                return new DNSEvent(events);
+            }
+
+            boolean ipv6 = in.readBoolean();
+            long high = in.readLong();
+            long low = in.readLong();
+
+            IPAddress address = ipv6 ? new IPAddress(high, low) : new IPAddress((int) low);
+            DomainName domain = DomainName.ofCanonical(in.readUTF());
+
+            return new DNSEvent(type, domain, address, in.readInt(), in.readLong());
+        }
     }
 
     /**
@@ -288,7 +2139,7 @@ public class DNS
      */
     private enum DNSEventType
     {
-        ADD("ADD"), DELETE("DEL");
+        ADD("ADD"), DELETE("DEL"), BATCH(null);
 
         private String code;
 
@@ -314,6 +2165,19 @@ public class DNS
             return new DNSEvent(this, domain, address);
         }
 
+        /**
+         * Gets the DNS event for this event type with an expiry
+         *
+         * @param domain The domain name
+         * @param address The IP address
+         * @param expires When the record expires in milliseconds, 0 for never
+         * @return The DNS event
+         */
+        public DNSEvent getEvent(DomainName domain, IPAddress address, long expires)
+        {
+            return new DNSEvent(this, domain, address, Integer.MAX_VALUE, expires);
+        }
+
         /**
          * Gets the DNS event from the specified code
          *
@@ -324,7 +2188,7 @@ public class DNS
         {
             for (DNSEventType type : values())
             {
-                if (type.getCode().equalsIgnoreCase(code))
+                if (type.getCode() != null && type.getCode().equalsIgnoreCase(code))
                 {
                     return type;
                 }
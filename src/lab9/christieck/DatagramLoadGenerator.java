@@ -0,0 +1,246 @@
+package lab9.christieck;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Floods a DatagramServer with A record queries over loopback and reports the answered queries per second
+ */
+public class DatagramLoadGenerator
+{
+    private static final int IN_FLIGHT_PER_THREAD = 64;
+    private static final long RESPONSE_TIMEOUT_NANOS = 200_000_000L;
+
+    private InetSocketAddress target;
+    private List<ByteBuffer> queries;
+
+    private LongAdder answered = new LongAdder();
+    private LongAdder lost = new LongAdder();
+
+    private volatile boolean running;
+
+    public DatagramLoadGenerator(InetSocketAddress target, List<String> domains)
+    {
+        if (domains.isEmpty())
+        {
+            throw new IllegalArgumentException("There must be at least one domain to query");
+        }
+
+        this.target = target;
+        this.queries = new ArrayList<>(domains.size());
+
+        for (String domain : domains)
+        {
+            queries.add(encodeQuery(domain));
+        }
+    }
+
+    /**
+     * Runs the load for the given duration
+     *
+     * @param threads The number of sending threads
+     * @param seconds How long to send queries for
+     * @return The answered queries per second
+     * @throws InterruptedException If interrupted while waiting for the senders
+     */
+    public double run(int threads, int seconds) throws InterruptedException
+    {
+        answered.reset();
+        lost.reset();
+        running = true;
+
+        List<Thread> senders = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++)
+        {
+            final int offset = i * (queries.size() / threads);
+            Thread sender = new Thread(() -> send(offset), "dns-load-" + i);
+
+            sender.start();
+            senders.add(sender);
+        }
+
+        long startTime = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+
+        for (Thread sender : senders)
+        {
+            sender.join();
+        }
+
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+
+        return answered.sum() / elapsed;
+    }
+
+    /**
+     * Gets the number of queries that were never answered in the last run
+     *
+     * @return The number of lost queries
+     */
+    public long getLost()
+    {
+        return lost.sum();
+    }
+
+    /**
+     * The sender loop, keeps a window of queries in flight on its own channel
+     *
+     * @param offset Where in the query list this sender starts
+     */
+    private void send(int offset)
+    {
+        ByteBuffer response = ByteBuffer.allocateDirect(512);
+        ByteBuffer[] ownQueries = new ByteBuffer[queries.size()];
+
+        for (int i = 0; i < ownQueries.length; i++)
+        {
+            ownQueries[i] = queries.get(i).duplicate();
+        }
+
+        try (DatagramChannel channel = DatagramChannel.open())
+        {
+            channel.connect(target);
+            channel.configureBlocking(false);
+
+            int next = offset;
+            int inFlight = 0;
+            long lastResponse = System.nanoTime();
+
+            while (running)
+            {
+                while (inFlight < IN_FLIGHT_PER_THREAD)
+                {
+                    ByteBuffer query = ownQueries[next++ % ownQueries.length];
+
+                    query.rewind();
+
+                    if (channel.write(query) == 0)
+                    {
+                        break;
+                    }
+
+                    inFlight++;
+                }
+
+                response.clear();
+
+                if (channel.read(response) > 0)
+                {
+                    answered.increment();
+                    inFlight--;
+                    lastResponse = System.nanoTime();
+                } else if (System.nanoTime() - lastResponse > RESPONSE_TIMEOUT_NANOS)
+                {
+                    lost.add(inFlight);
+                    inFlight = 0;
+                    lastResponse = System.nanoTime();
+                }
+            }
+        } catch (IOException e)
+        {
+            System.err.println("Sender failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a recursion-free A record query for the domain
+     *
+     * @param domain The domain to query
+     * @return The query packet, senders send their own duplicates of it
+     */
+    private static ByteBuffer encodeQuery(String domain)
+    {
+        ByteBuffer query = ByteBuffer.allocateDirect(12 + domain.length() + 2 + 4);
+
+        query.putShort((short) domain.hashCode());
+        query.putShort((short) 0);
+        query.putShort((short) 1);
+        query.putShort((short) 0);
+        query.putShort((short) 0);
+        query.putShort((short) 0);
+
+        for (String label : domain.split("\\."))
+        {
+            query.put((byte) label.length());
+
+            for (int i = 0; i < label.length(); i++)
+            {
+                query.put((byte) label.charAt(i));
+            }
+        }
+
+        query.put((byte) 0);
+        query.putShort((short) 1);
+        query.putShort((short) 1);
+
+        query.flip();
+        return query;
+    }
+
+    /**
+     * Reads the domain names out of an entries file, in either format and with or without TTLs
+     *
+     * @param file The entries file
+     * @return The domain names in the file, in no particular order
+     * @throws IOException If the file could not be read
+     */
+    private static List<String> readDomains(File file) throws IOException
+    {
+        // The loader hands records over from several threads at once
+        List<String> domains = Collections.synchronizedList(new ArrayList<>());
+
+        new ZoneFileLoader().load(file, (address, domain, expires) -> domains.add(domain.toString()), null);
+
+        return domains;
+    }
+
+    /**
+     * Starts an in-process server on loopback for the entries file and measures it
+     *
+     * Usage: DatagramLoadGenerator entries-file [threads] [seconds] [server workers]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: DatagramLoadGenerator <entries file> [threads] [seconds] [server workers]");
+            System.exit(1);
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        DNS dnsServer = new DNS(args[0]);
+
+        if (!dnsServer.start())
+        {
+            System.err.println("The DNS server was not able to be started");
+            System.exit(1);
+        }
+
+        DatagramServer server = new DatagramServer(dnsServer, new InetSocketAddress("127.0.0.1", 0), workers);
+        server.start();
+
+        InetSocketAddress target = (InetSocketAddress) server.getLocalAddress();
+        DatagramLoadGenerator generator = new DatagramLoadGenerator(target, readDomains(new File(args[0])));
+
+        // Warm up the JIT before measuring
+        generator.run(threads, 2);
+
+        double queriesPerSecond = generator.run(threads, seconds);
+
+        System.out.printf("%d threads, %d seconds: %.0f queries/sec, %d lost%n", threads, seconds, queriesPerSecond, generator.getLost());
+
+        server.stop();
+    }
+}
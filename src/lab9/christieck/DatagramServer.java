@@ -0,0 +1,525 @@
+package lab9.christieck;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A headless front end that answers RFC 1035 A, AAAA and ANY queries over UDP from the records of a DNS server
+ */
+public class DatagramServer
+{
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_PACKET_LENGTH = 512;
+    private static final int ANSWER_HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 253;
+    private static final int MAX_IPV4_ANSWERS = (MAX_PACKET_LENGTH - HEADER_LENGTH) / (ANSWER_HEADER_LENGTH + 4);
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_ANY = 255;
+    private static final int CLASS_IN = 1;
+    private static final int ANSWER_TTL = 60;
+
+    private static final int RCODE_OK = 0;
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_NOT_IMPLEMENTED = 4;
+
+    private DNS dnsServer;
+    private InetSocketAddress bindAddress;
+    private int workerCount;
+
+    private DatagramChannel channel;
+    private List<Thread> workers = new ArrayList<>();
+
+    public DatagramServer(DNS dnsServer, InetSocketAddress bindAddress, int workerCount)
+    {
+        if (workerCount < 1)
+        {
+            throw new IllegalArgumentException("There must be at least one worker thread");
+        }
+
+        this.dnsServer = dnsServer;
+        this.bindAddress = bindAddress;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Binds the channel and starts the worker threads that answer queries
+     *
+     * @throws IOException If the channel could not be bound
+     */
+    public synchronized void start() throws IOException
+    {
+        if (channel != null)
+        {
+            return;
+        }
+
+        channel = DatagramChannel.open();
+        channel.bind(bindAddress);
+
+        for (int i = 0; i < workerCount; i++)
+        {
+            Thread worker = new Thread(this::serve, "dns-udp-" + i);
+
+            worker.setDaemon(true);
+            worker.start();
+
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Closes the channel and waits for the worker threads to finish
+     */
+    public synchronized void stop()
+    {
+        if (channel == null)
+        {
+            return;
+        }
+
+        try
+        {
+            channel.close();
+
+            for (Thread worker : workers)
+            {
+                worker.join();
+            }
+        } catch (IOException e)
+        {
+            System.err.println("Failed to close the channel: " + e.getMessage());
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        workers.clear();
+        channel = null;
+    }
+
+    /**
+     * Gets the address the server is listening on
+     *
+     * @return The local address of the channel
+     * @throws IOException If the address could not be read
+     */
+    public synchronized SocketAddress getLocalAddress() throws IOException
+    {
+        return channel != null ? channel.getLocalAddress() : null;
+    }
+
+    /**
+     * The worker loop, each worker owns its buffers so an A query answered from the records and a query for a name the
+     * DNS server certainly has no answer for allocate nothing
+     */
+    private void serve()
+    {
+        DatagramChannel channel = this.channel;
+
+        ByteBuffer request = ByteBuffer.allocateDirect(MAX_PACKET_LENGTH);
+        ByteBuffer response = ByteBuffer.allocateDirect(MAX_PACKET_LENGTH);
+        Scratch scratch = new Scratch();
+
+        while (channel.isOpen())
+        {
+            try
+            {
+                request.clear();
+                SocketAddress client = channel.receive(request);
+
+                request.flip();
+
+                if (answer(request, response, scratch))
+                {
+                    channel.send(response, client);
+                }
+            } catch (ClosedChannelException e)
+            {
+                return;
+            } catch (IOException e)
+            {
+                System.err.println("Failed to answer query: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encodes the response to the query into the response buffer
+     *
+     * @param request The query packet
+     * @param response The buffer to write the response into
+     * @param scratch The worker's buffers for the queried name and its addresses
+     * @return Whether there is a response to send
+     */
+    boolean answer(ByteBuffer request, ByteBuffer response, Scratch scratch)
+    {
+        byte[] name = scratch.name;
+
+        int length = request.limit();
+
+        if (length < HEADER_LENGTH)
+        {
+            return false;
+        }
+
+        int flags = request.getShort(2) & 0xFFFF;
+
+        if ((flags & 0x8000) != 0)
+        {
+            // Never answer a response, it could be reflected back at us
+            return false;
+        }
+
+        int opcode = (flags >> 11) & 0xF;
+        int questionCount = request.getShort(4) & 0xFFFF;
+
+        if (opcode != 0)
+        {
+            return writeHeader(request, response, flags, RCODE_NOT_IMPLEMENTED, 0, 0);
+        }
+
+        if (questionCount != 1)
+        {
+            return writeHeader(request, response, flags, RCODE_FORMAT_ERROR, 0, 0);
+        }
+
+        int position = HEADER_LENGTH;
+        int nameLength = 0;
+        boolean legal = true;
+
+        while (true)
+        {
+            if (position >= length)
+            {
+                return writeHeader(request, response, flags, RCODE_FORMAT_ERROR, 0, 0);
+            }
+
+            int labelLength = request.get(position++) & 0xFF;
+
+            if (labelLength == 0)
+            {
+                break;
+            }
+
+            if (labelLength > 63 || position + labelLength > length || (nameLength > 0 ? nameLength + 1 : 0) + labelLength > MAX_NAME_LENGTH)
+            {
+                return writeHeader(request, response, flags, RCODE_FORMAT_ERROR, 0, 0);
+            }
+
+            if (nameLength > 0)
+            {
+                name[nameLength++] = '.';
+            }
+
+            boolean wildcard = nameLength == 0 && labelLength == 1;
+
+            for (int i = 0; i < labelLength; i++)
+            {
+                byte b = request.get(position++);
+
+                // No record has a name with other bytes, and a period inside a label would read as a label break once joined
+                legal &= isHostnameByte(b) || wildcard && b == '*';
+                name[nameLength++] = b;
+            }
+        }
+
+        if (position + 4 > length)
+        {
+            return writeHeader(request, response, flags, RCODE_FORMAT_ERROR, 0, 0);
+        }
+
+        int type = request.getShort(position) & 0xFFFF;
+        int queryClass = request.getShort(position + 2) & 0xFFFF;
+        int questionEnd = position + 4;
+
+        if (queryClass != CLASS_IN)
+        {
+            return writeHeader(request, response, flags, RCODE_NOT_IMPLEMENTED, 1, 0, questionEnd);
+        }
+
+        if (!legal || !dnsServer.mightResolve(name, 0, nameLength))
+        {
+            return writeHeader(request, response, flags, RCODE_NAME_ERROR, 1, 0, questionEnd);
+        }
+
+        if (type == TYPE_A)
+        {
+            int count = dnsServer.lookupAllIPv4(scratch.nameText.set(scratch.nameBuffer, 0, nameLength), scratch.addresses, scratch.expires);
+
+            if (count > 0)
+            {
+                return writeIPv4Answers(request, response, flags, questionEnd, scratch.addresses, scratch.expires, count);
+            }
+        }
+
+        // Any other query, or an A query for a name without IPv4 addresses that still needs the right response code
+        DomainName domain;
+
+        try
+        {
+            domain = new DomainName(new String(name, 0, nameLength, StandardCharsets.ISO_8859_1));
+        } catch (IllegalArgumentException e)
+        {
+            return writeHeader(request, response, flags, RCODE_NAME_ERROR, 1, 0, questionEnd);
+        }
+
+        RecordType recordType = type == TYPE_AAAA ? RecordType.AAAA : type == TYPE_ANY ? RecordType.ANY : null;
+
+        // The lookup rotates over the type asked for alone, an A query already found it has no IPv4 addresses
+        List<IPAddress> addresses = recordType != null ? dnsServer.lookupAll(domain, recordType) : Collections.emptyList();
+
+        if (addresses.isEmpty())
+        {
+            // A name that exists without records of the type gets no answers rather than a name error
+            return writeHeader(request, response, flags, dnsServer.exists(domain) ? RCODE_OK : RCODE_NAME_ERROR, 1, 0, questionEnd);
+        }
+
+        // The records come rotated, so when they do not all fit each answer still leads with a different one
+        int answers = 0;
+        int answersEnd = questionEnd;
+        boolean truncated = false;
+
+        for (IPAddress address : addresses)
+        {
+            int answerLength = ANSWER_HEADER_LENGTH + (address.isIPv6() ? 16 : 4);
+
+            if (answersEnd + answerLength <= MAX_PACKET_LENGTH)
+            {
+                answers++;
+                answersEnd += answerLength;
+            } else
+            {
+                truncated = true;
+            }
+        }
+
+        writeHeader(request, response, flags, RCODE_OK, 1, answers, questionEnd, truncated);
+
+        response.limit(response.capacity());
+        response.position(questionEnd);
+
+        DNS.Snapshot snapshot = dnsServer.snapshot();
+        long now = System.currentTimeMillis();
+
+        for (IPAddress address : addresses)
+        {
+            int answerLength = ANSWER_HEADER_LENGTH + (address.isIPv6() ? 16 : 4);
+
+            // Skips the same records the count above left out
+            if (response.position() + answerLength > MAX_PACKET_LENGTH)
+            {
+                continue;
+            }
+
+            int ttl = answerTtl(snapshot.expires(domain, address), now);
+
+            if (address.isIPv6())
+            {
+                putAnswerHeader(response, TYPE_AAAA, ttl, 16);
+                response.putLong(address.getHigh());
+                response.putLong(address.getLow());
+            } else
+            {
+                putAnswerHeader(response, TYPE_A, ttl, 4);
+                response.putInt(address.getValue());
+            }
+        }
+
+        response.flip();
+        return true;
+    }
+
+    /**
+     * Encodes the response to an A query from the IPv4 addresses, as many as fit
+     *
+     * @param request The query packet
+     * @param response The buffer to write the response into
+     * @param flags The flags of the query
+     * @param questionEnd The offset just past the question section of the request
+     * @param addresses The 32 bit addresses, already rotated
+     * @param expires When each address expires in milliseconds, 0 for never
+     * @param count The number of addresses, more than fit in a packet when some had to be left out
+     * @return Always true, so callers can return it directly
+     */
+    private static boolean writeIPv4Answers(ByteBuffer request, ByteBuffer response, int flags, int questionEnd, int[] addresses,
+            long[] expires, int count)
+    {
+        int answers = Math.min(count, (MAX_PACKET_LENGTH - questionEnd) / (ANSWER_HEADER_LENGTH + 4));
+
+        writeHeader(request, response, flags, RCODE_OK, 1, answers, questionEnd, answers < count);
+
+        response.limit(response.capacity());
+        response.position(questionEnd);
+
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < answers; i++)
+        {
+            putAnswerHeader(response, TYPE_A, answerTtl(expires[i], now), 4);
+            response.putInt(addresses[i]);
+        }
+
+        response.flip();
+        return true;
+    }
+
+    /**
+     * Gets the TTL an answer is sent with, so a client never caches a record for longer than it has left
+     *
+     * @param expires When the record expires in milliseconds, 0 for never
+     * @param now The current time in milliseconds
+     * @return The TTL in seconds, at most ANSWER_TTL
+     */
+    private static int answerTtl(long expires, long now)
+    {
+        if (expires == 0)
+        {
+            return ANSWER_TTL;
+        }
+
+        return (int) Math.max(0, Math.min(ANSWER_TTL, (expires - now + 999) / 1000));
+    }
+
+    /**
+     * Writes the fixed part of an answer record, its name pointing back at the question
+     */
+    private static void putAnswerHeader(ByteBuffer response, int type, int ttl, int length)
+    {
+        response.putShort((short) (0xC000 | HEADER_LENGTH));
+        response.putShort((short) type);
+        response.putShort((short) CLASS_IN);
+        response.putInt(ttl);
+        response.putShort((short) length);
+    }
+
+    /**
+     * Writes a response header with no question section
+     */
+    private static boolean writeHeader(ByteBuffer request, ByteBuffer response, int flags, int rcode, int questions, int answers)
+    {
+        return writeHeader(request, response, flags, rcode, questions, answers, HEADER_LENGTH);
+    }
+
+    /**
+     * Writes a response header that holds every answer
+     */
+    private static boolean writeHeader(ByteBuffer request, ByteBuffer response, int flags, int rcode, int questions, int answers, int questionEnd)
+    {
+        return writeHeader(request, response, flags, rcode, questions, answers, questionEnd, false);
+    }
+
+    /**
+     * Writes the response header and copies the question section from the request
+     *
+     * @param request The query packet
+     * @param response The buffer to write the response into
+     * @param flags The flags of the query
+     * @param rcode The response code
+     * @param questions The number of questions echoed back
+     * @param answers The number of answer records that will follow
+     * @param questionEnd The offset just past the question section of the request
+     * @param truncated Whether answers were left out to fit the packet, so the client knows to ask over TCP
+     * @return Always true, so callers can return it directly
+     */
+    private static boolean writeHeader(ByteBuffer request, ByteBuffer response, int flags, int rcode, int questions, int answers, int questionEnd, boolean truncated)
+    {
+        response.clear();
+
+        // QR and AA set, opcode and RD echoed back, recursion is not available
+        int responseFlags = 0x8000 | 0x0400 | (flags & 0x7900) | (rcode & 0xF);
+
+        if (truncated)
+        {
+            responseFlags |= 0x0200;
+        }
+
+        response.putShort(request.getShort(0));
+        response.putShort((short) responseFlags);
+        response.putShort((short) questions);
+        response.putShort((short) answers);
+        response.putShort((short) 0);
+        response.putShort((short) 0);
+
+        for (int i = HEADER_LENGTH; i < questionEnd; i++)
+        {
+            response.put(request.get(i));
+        }
+
+        response.flip();
+        return true;
+    }
+
+    /**
+     * Checks that a byte of a label is a letter, digit or dash, the only ones a host name can have
+     */
+    private static boolean isHostnameByte(byte b)
+    {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-';
+    }
+
+    /**
+     * The buffers a worker reuses for every query, the name is read into the bytes and looked up through the view
+     */
+    static final class Scratch
+    {
+        final byte[] name = new byte[MAX_NAME_LENGTH];
+        final ByteBuffer nameBuffer = ByteBuffer.wrap(name);
+        final ByteSequence nameText = new ByteSequence();
+        // One more than fit in a packet, so a name with too many addresses shows up as truncated
+        final int[] addresses = new int[MAX_IPV4_ANSWERS + 1];
+        final long[] expires = new long[MAX_IPV4_ANSWERS + 1];
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: DatagramServer <entries file> <port> [worker threads] [upstream host[:port]]");
+            System.exit(1);
+        }
+
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        DNS dnsServer = new DNS(args[0]);
+
+        if (args.length > 3)
+        {
+            int colon = args[3].lastIndexOf(':');
+            InetSocketAddress upstream = colon > 0
+                    ? new InetSocketAddress(args[3].substring(0, colon), Integer.parseInt(args[3].substring(colon + 1)))
+                    : new InetSocketAddress(args[3], 53);
+
+            dnsServer.setForwarder(new ForwardingResolver(new DatagramUpstream(upstream)));
+        }
+
+        if (!dnsServer.start())
+        {
+            System.err.println("The DNS server was not able to be started");
+            System.exit(1);
+        }
+
+        DatagramServer server = new DatagramServer(dnsServer, new InetSocketAddress(Integer.parseInt(args[1])), workers);
+        server.start();
+
+        System.out.println("Answering queries on " + server.getLocalAddress() + " with " + workers + " workers");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            server.stop();
+            dnsServer.stop();
+        }));
+
+        Thread.currentThread().join();
+    }
+}
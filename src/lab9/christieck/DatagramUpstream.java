@@ -0,0 +1,344 @@
+package lab9.christieck;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Forwards names to another DNS server over UDP, such as a public resolver or a local DatagramServer standing in for
+ * one. Each name is asked for with an A and an AAAA query sent together.
+ * <p>
+ * Each resolve borrows a connected socket and hands it back when done, so concurrent resolves never read each other's
+ * responses and the sockets are opened once rather than per name.
+ */
+public class DatagramUpstream implements Upstream, Closeable
+{
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_PACKET_LENGTH = 512;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+
+    private static final int RCODE_OK = 0;
+    private static final int RCODE_NAME_ERROR = 3;
+
+    /**
+     * How long a missing name is cached for when the upstream sends no SOA record to say
+     */
+    private static final long DEFAULT_NEGATIVE_TTL = 30;
+
+    private static final int ATTEMPTS = 2;
+
+    private final InetSocketAddress server;
+    private final int timeoutMillis;
+
+    private final ConcurrentLinkedQueue<DatagramSocket> idleSockets = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates an upstream that waits up to two seconds per attempt
+     *
+     * @param server The address of the DNS server
+     */
+    public DatagramUpstream(InetSocketAddress server)
+    {
+        this(server, 2000);
+    }
+
+    /**
+     * Creates an upstream
+     *
+     * @param server The address of the DNS server
+     * @param timeoutMillis How long to wait for the answers before asking again, twice at most
+     */
+    public DatagramUpstream(InetSocketAddress server, int timeoutMillis)
+    {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Answer resolve(DomainName domain) throws IOException
+    {
+        DatagramSocket socket = borrowSocket();
+        boolean healthy = false;
+
+        try
+        {
+            for (int attempt = 1; ; attempt++)
+            {
+                int id = ThreadLocalRandom.current().nextInt(1 << 16) & ~1;
+
+                // The two queries share an ID but for the last bit, so a stray or spoofed response is told apart
+                socket.send(query(id, domain, TYPE_A));
+                socket.send(query(id | 1, domain, TYPE_AAAA));
+
+                try
+                {
+                    Answer answer = receive(socket, id);
+
+                    healthy = true;
+                    return answer;
+                } catch (SocketTimeoutException e)
+                {
+                    if (attempt == ATTEMPTS)
+                    {
+                        // Late answers left on the socket carry an old ID, which the next resolve skips
+                        healthy = true;
+                        throw new IOException("The upstream " + server + " did not answer for " + domain, e);
+                    }
+                }
+            }
+        } finally
+        {
+            returnSocket(socket, healthy);
+        }
+    }
+
+    /**
+     * Closes the idle sockets, resolves still running close theirs when they finish
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        DatagramSocket socket;
+
+        while ((socket = idleSockets.poll()) != null)
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Takes an idle socket, or opens one if every socket is in use
+     *
+     * @return A socket connected to the upstream
+     * @throws IOException If the upstream is closed or the socket could not be opened
+     */
+    private DatagramSocket borrowSocket() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("The upstream " + server + " is closed");
+        }
+
+        DatagramSocket socket = idleSockets.poll();
+
+        if (socket != null)
+        {
+            return socket;
+        }
+
+        socket = new DatagramSocket();
+
+        try
+        {
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(server);
+        } catch (IOException | RuntimeException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        return socket;
+    }
+
+    /**
+     * Hands a socket back for the next resolve
+     *
+     * @param socket The borrowed socket
+     * @param healthy Whether the socket can be used again, a socket that failed is closed instead
+     */
+    private void returnSocket(DatagramSocket socket, boolean healthy)
+    {
+        if (!healthy || closed)
+        {
+            socket.close();
+            return;
+        }
+
+        idleSockets.offer(socket);
+
+        // A close that ran while this resolve was using the socket has already emptied the queue
+        if (closed && idleSockets.remove(socket))
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Receives the answers to both queries
+     *
+     * @param socket The connected socket
+     * @param id The ID of the A query, the AAAA query has the next one
+     * @return The addresses of both answers
+     * @throws IOException If the upstream failed to answer or the wait timed out
+     */
+    private Answer receive(DatagramSocket socket, int id) throws IOException
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_PACKET_LENGTH], MAX_PACKET_LENGTH);
+        List<IPAddress> addresses = new ArrayList<>();
+
+        boolean[] answered = new boolean[2];
+        long ttl = Long.MAX_VALUE;
+        boolean exists = true;
+
+        while (!answered[0] || !answered[1])
+        {
+            socket.receive(packet);
+
+            ByteBuffer response = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+
+            if (response.remaining() < HEADER_LENGTH || (response.getShort(0) & 0xFFFE) != id
+                    || (response.getShort(2) & 0x8000) == 0 || answered[response.getShort(0) & 1])
+            {
+                continue;
+            }
+
+            answered[response.getShort(0) & 1] = true;
+
+            int rcode = response.getShort(2) & 0xF;
+
+            if (rcode == RCODE_NAME_ERROR)
+            {
+                exists = false;
+            } else if (rcode != RCODE_OK)
+            {
+                throw new IOException("The upstream " + server + " failed with response code " + rcode);
+            }
+
+            ttl = Math.min(ttl, parse(response, addresses));
+        }
+
+        if (!exists || addresses.isEmpty())
+        {
+            return new Answer(new ArrayList<>(), ttl != Long.MAX_VALUE ? ttl : DEFAULT_NEGATIVE_TTL);
+        }
+
+        return new Answer(addresses, ttl);
+    }
+
+    /**
+     * Reads the A and AAAA records of a response
+     *
+     * @param response The response packet
+     * @param addresses Where the addresses are added
+     * @return The lowest TTL of the addresses, or for a response without any, the negative TTL of its SOA record.
+     *         Long.MAX_VALUE if it has neither.
+     * @throws IOException If the response is malformed
+     */
+    private static long parse(ByteBuffer response, List<IPAddress> addresses) throws IOException
+    {
+        int questions = response.getShort(4) & 0xFFFF;
+        int answers = response.getShort(6) & 0xFFFF;
+        int authorities = response.getShort(8) & 0xFFFF;
+
+        long ttl = Long.MAX_VALUE;
+        long negativeTtl = Long.MAX_VALUE;
+
+        try
+        {
+            response.position(HEADER_LENGTH);
+
+            for (int i = 0; i < questions; i++)
+            {
+                skipName(response);
+                response.position(response.position() + 4);
+            }
+
+            for (int i = 0; i < answers + authorities; i++)
+            {
+                skipName(response);
+
+                int type = response.getShort() & 0xFFFF;
+                int recordClass = response.getShort() & 0xFFFF;
+                long recordTtl = response.getInt() & 0xFFFFFFFFL;
+                int length = response.getShort() & 0xFFFF;
+                int end = response.position() + length;
+
+                if (recordClass == CLASS_IN && i < answers && (type == TYPE_A && length == 4 || type == TYPE_AAAA && length == 16))
+                {
+                    addresses.add(length == 4
+                            ? new IPAddress(response.getInt())
+                            : new IPAddress(response.getLong(), response.getLong()));
+
+                    ttl = Math.min(ttl, recordTtl);
+                } else if (recordClass == CLASS_IN && i >= answers && type == TYPE_SOA)
+                {
+                    // A missing name is cached for the lower of the SOA's own TTL and its minimum field
+                    skipName(response);
+                    skipName(response);
+                    response.position(response.position() + 16);
+
+                    negativeTtl = Math.min(recordTtl, response.getInt() & 0xFFFFFFFFL);
+                }
+
+                response.position(end);
+            }
+        } catch (RuntimeException e)
+        {
+            throw new IOException("The upstream sent a malformed response", e);
+        }
+
+        return ttl != Long.MAX_VALUE ? ttl : negativeTtl;
+    }
+
+    /**
+     * Moves past a name, which ends in a zero length label or a pointer to another name
+     */
+    private static void skipName(ByteBuffer response)
+    {
+        while (true)
+        {
+            int length = response.get() & 0xFF;
+
+            if (length == 0)
+            {
+                return;
+            }
+
+            if ((length & 0xC0) == 0xC0)
+            {
+                response.get();
+
+                return;
+            }
+
+            response.position(response.position() + length);
+        }
+    }
+
+    /**
+     * Encodes a query with recursion desired
+     */
+    private static DatagramPacket query(int id, DomainName domain, int type)
+    {
+        ByteBuffer query = ByteBuffer.allocate(HEADER_LENGTH + domain.wireLength() + 4);
+
+        query.putShort((short) id);
+        query.putShort((short) 0x0100);
+        query.putShort((short) 1);
+        query.putShort((short) 0);
+        query.putShort((short) 0);
+        query.putShort((short) 0);
+
+        domain.writeWire(query);
+        query.putShort((short) type);
+        query.putShort((short) CLASS_IN);
+
+        return new DatagramPacket(query.array(), query.position());
+    }
+}
@@ -1,46 +1,583 @@
 package lab9.christieck;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * A class for a domain name
+ *
+ * A name is kept as lowercase ASCII bytes, the first sixteen packed into two longs and only the rest in an array, so
+ * a typical label costs no array at all. A name that is stored in the records is compacted: it keeps just its first
+ * label and points at its parent, which is shared through the store's pool, so ".com" or ".co.uk" exist once however
+ * many names end in them. A name parsed for a lookup keeps its whole text and is never pooled, the two forms are
+ * equal whenever their text is. The hash is that of the text, computed once.
  */
 public class DomainName
 {
-    private String domain;
+    private static final int MAX_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
 
-    private static final String alphaNumericRegex = "^[a-zA-Z0-9\\.\\-]*$";
+    /**
+     * The bytes of the first label, or of the whole name when it has no parent, eight to a long from the high byte
+     * down. Unused bytes are zero, which no domain name contains.
+     */
+    private final long head;
+    private final long next;
 
-    public DomainName(String domain)
-    {
-        validateDomainName(domain);
+    /**
+     * The bytes past the sixteenth, null for shorter labels
+     */
+    private final byte[] rest;
+
+    /**
+     * The pooled name after the first label, null if the bytes hold the whole name
+     */
+    private final DomainName parent;
 
-        this.domain = domain.toLowerCase();
+    private final int hash;
+
+    public DomainName(CharSequence domain)
+    {
+        this(domain, true);
     }
 
     /**
-     * Validates the domain name
+     * Packs the text of a domain name, validating and lowercasing it in the same pass over its characters
      *
-     * @param domain The domain name to validate
+     * @param domain The domain name
+     * @param validate Whether to validate it, false if it is already known to be valid and lowercase
      */
-    private static void validateDomainName(String domain)
+    private DomainName(CharSequence domain, boolean validate)
     {
-        if (domain.length() > 253)
+        int length = domain.length();
+
+        if (length > MAX_LENGTH)
         {
             throw new IllegalArgumentException("Domain name length must be less than 253 characters");
         }
 
-        if (domain.startsWith(".") || domain.startsWith("-") || domain.endsWith(".") || domain.endsWith("-"))
+        long head = 0;
+        long next = 0;
+        byte[] rest = length > 16 ? new byte[length - 16] : null;
+
+        int hash = 0;
+        int labelLength = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = domain.charAt(i);
+
+            if (validate)
+            {
+                if (c == '.')
+                {
+                    if (i == 0 || i == length - 1)
+                    {
+                        throw new IllegalArgumentException("The domain name must not start or end with a dash or period");
+                    }
+
+                    if (labelLength == 0)
+                    {
+                        throw new IllegalArgumentException("The domain name must not contain two periods in series");
+                    }
+
+                    labelLength = 0;
+                } else
+                {
+                    if (c == '-')
+                    {
+                        if (i == 0 || i == length - 1)
+                        {
+                            throw new IllegalArgumentException("The domain name must not start or end with a dash or period");
+                        }
+                    } else if (c >= 'A' && c <= 'Z')
+                    {
+                        c = (char) (c + ('a' - 'A'));
+                    } else if (c == '*' && i == 0 && length > 1 && domain.charAt(1) == '.')
+                    {
+                        // A "*" first label makes it a wildcard for the names under the rest of the domain
+                    } else if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9'))
+                    {
+                        throw new IllegalArgumentException("The domain name contains illegal characters");
+                    }
+
+                    if (++labelLength > MAX_LABEL_LENGTH)
+                    {
+                        throw new IllegalArgumentException("Each label of the domain name must be at most 63 characters");
+                    }
+                }
+            }
+
+            if (i < 8)
+            {
+                head |= (long) c << (56 - 8 * i);
+            } else if (i < 16)
+            {
+                next |= (long) c << (56 - 8 * (i - 8));
+            } else
+            {
+                rest[i - 16] = (byte) c;
+            }
+
+            hash = 31 * hash + c;
+        }
+
+        this.head = head;
+        this.next = next;
+        this.rest = rest;
+        this.parent = null;
+        this.hash = hash;
+    }
+
+    /**
+     * Creates a name from part of the bytes of another name's first label
+     *
+     * @param source The name to take the bytes from
+     * @param start The index of the first byte
+     * @param end The index after the last byte
+     * @param parent The name after these bytes, null if they are the whole name
+     * @param hash The hash of the whole name
+     */
+    private DomainName(DomainName source, int start, int end, DomainName parent, int hash)
+    {
+        long head = 0;
+        long next = 0;
+        byte[] rest = end - start > 16 ? new byte[end - start - 16] : null;
+
+        for (int i = start; i < end; i++)
+        {
+            long b = source.labelByte(i);
+            int index = i - start;
+
+            if (index < 8)
+            {
+                head |= b << (56 - 8 * index);
+            } else if (index < 16)
+            {
+                next |= b << (56 - 8 * (index - 8));
+            } else
+            {
+                rest[index - 16] = (byte) b;
+            }
+        }
+
+        this.head = head;
+        this.next = next;
+        this.rest = rest;
+        this.parent = parent;
+        this.hash = hash;
+    }
+
+    private DomainName(long head, DomainName parent, int hash)
+    {
+        this.head = head;
+        this.next = 0;
+        this.rest = null;
+        this.parent = parent;
+        this.hash = hash;
+    }
+
+    /**
+     * Wraps a domain name that is already known to be valid and lowercase, skipping the validation
+     *
+     * @param domain The canonical domain name, such as one read back from a binary snapshot
+     * @return The domain name
+     */
+    static DomainName ofCanonical(CharSequence domain)
+    {
+        return new DomainName(domain, false);
+    }
+
+    /**
+     * Gets the form of this name to keep in the records, which shares its parent with every other stored name under
+     * the same parent. Only names that are stored should be compacted, and a new one is retained in the pool.
+     *
+     * @param pool The pool of the store the name is kept in
+     * @return The compacted name, this name if it already is
+     */
+    DomainName compact(Pool pool)
+    {
+        if (parent != null)
+        {
+            return this;
+        }
+
+        DomainName pooled = pool.get(this);
+
+        return pooled != null ? pooled : split(pool);
+    }
+
+    /**
+     * Splits off the first label and points it at the pooled parent
+     *
+     * @param pool The pool the parent is interned in
+     * @return The compacted name, this name if it has a single label
+     */
+    private DomainName split(Pool pool)
+    {
+        int dot = indexOfDot();
+
+        if (dot < 0)
+        {
+            return this;
+        }
+
+        int length = labelLength();
+        DomainName parent = pool.intern(new DomainName(this, dot + 1, length, null, hashOf(dot + 1, length)));
+
+        return new DomainName(this, 0, dot, parent, hash);
+    }
+
+    /**
+     * Gets the name after the first label, such as example.com for www.example.com
+     *
+     * @return The parent name, null for a single label
+     */
+    DomainName parent()
+    {
+        if (parent != null)
+        {
+            return parent;
+        }
+
+        int dot = indexOfDot();
+        int length = labelLength();
+
+        return dot < 0 ? null : new DomainName(this, dot + 1, length, null, hashOf(dot + 1, length));
+    }
+
+    /**
+     * Gets the wildcard that answers for the missing names under this one, such as *.example.com
+     *
+     * @return The wildcard name
+     */
+    DomainName wildcard()
+    {
+        int hash = 31 * '*' + '.';
+
+        for (DomainName name = this; name != null; name = name.parent)
+        {
+            for (int i = 0; i < name.labelLength(); i++)
+            {
+                hash = 31 * hash + name.labelByte(i);
+            }
+
+            if (name.parent != null)
+            {
+                hash = 31 * hash + '.';
+            }
+        }
+
+        return new DomainName((long) '*' << 56, this, hash);
+    }
+
+    /**
+     * Counts the labels of the name
+     *
+     * @return The number of labels, 2 for example.com
+     */
+    int labelCount()
+    {
+        int count = 1;
+
+        for (DomainName name = this; name != null; name = name.parent)
+        {
+            for (int i = 0; i < name.labelLength(); i++)
+            {
+                if (name.labelByte(i) == '.')
+                {
+                    count++;
+                }
+            }
+
+            if (name.parent != null)
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the length of the name's text
+     *
+     * @return The number of characters
+     */
+    int length()
+    {
+        return parent == null ? labelLength() : labelLength() + 1 + parent.length();
+    }
+
+    /**
+     * Writes the name's text as ASCII bytes, without building a String
+     *
+     * @param buffer The buffer to write to, which has length() bytes remaining
+     */
+    void writeTo(ByteBuffer buffer)
+    {
+        for (DomainName name = this; name != null; name = name.parent)
+        {
+            for (int i = 0; i < name.labelLength(); i++)
+            {
+                buffer.put((byte) name.labelByte(i));
+            }
+
+            if (name.parent != null)
+            {
+                buffer.put((byte) '.');
+            }
+        }
+    }
+
+    /**
+     * Gets the length of the name in the wire format of a DNS message
+     *
+     * @return The number of bytes writeWire writes
+     */
+    int wireLength()
+    {
+        // Each period becomes the next label's length, plus the first label's length and the closing zero
+        return length() + 2;
+    }
+
+    /**
+     * Writes the name in the wire format of a DNS message, each label after its length and a zero length label last
+     *
+     * @param buffer The buffer to write to, which has wireLength() bytes remaining
+     */
+    void writeWire(ByteBuffer buffer)
+    {
+        int lengthIndex = buffer.position();
+
+        buffer.put((byte) 0);
+
+        for (DomainName name = this; name != null; name = name.parent)
+        {
+            for (int i = 0; i < name.labelLength(); i++)
+            {
+                int b = name.labelByte(i);
+
+                if (b == '.')
+                {
+                    lengthIndex = startLabel(buffer, lengthIndex);
+                } else
+                {
+                    buffer.put((byte) b);
+                }
+            }
+
+            if (name.parent != null)
+            {
+                lengthIndex = startLabel(buffer, lengthIndex);
+            }
+        }
+
+        startLabel(buffer, lengthIndex);
+    }
+
+    /**
+     * Fills in the length of the label just written and leaves a zero length byte for the next one
+     *
+     * @param buffer The buffer being written to
+     * @param lengthIndex The index of the length byte of the label just written
+     * @return The index of the new length byte
+     */
+    private static int startLabel(ByteBuffer buffer, int lengthIndex)
+    {
+        buffer.put(lengthIndex, (byte) (buffer.position() - lengthIndex - 1));
+        buffer.put((byte) 0);
+
+        return buffer.position() - 1;
+    }
+
+    /**
+     * Compares the name's text with ASCII bytes, without building a String
+     *
+     * @param buffer The buffer holding the bytes
+     * @param index The index of the first byte
+     * @param length The number of bytes
+     * @return Whether the bytes are the name's text
+     */
+    boolean equalsAscii(ByteBuffer buffer, int index, int length)
+    {
+        if (length() != length)
+        {
+            return false;
+        }
+
+        for (DomainName name = this; name != null; name = name.parent)
+        {
+            for (int i = 0; i < name.labelLength(); i++)
+            {
+                if (buffer.get(index++) != name.labelByte(i))
+                {
+                    return false;
+                }
+            }
+
+            if (name.parent != null && buffer.get(index++) != '.')
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares the name's text with a name in any case, without building a DomainName of it. A name that is not valid
+     * simply is not equal.
+     *
+     * @param name The text of the name
+     * @return Whether it is the name's text once lowercased
+     */
+    boolean equalsIgnoreCase(CharSequence name)
+    {
+        if (length() != name.length())
         {
-            throw new IllegalArgumentException("The domain name must not start or end with a dash or period");
+            return false;
         }
 
-        if (domain.contains(".."))
+        int index = 0;
+
+        for (DomainName domain = this; domain != null; domain = domain.parent)
         {
-            throw new IllegalArgumentException("The domain name must not contain two periods in series");
+            for (int i = 0; i < domain.labelLength(); i++)
+            {
+                if (toLowerCase(name.charAt(index++)) != domain.labelByte(i))
+                {
+                    return false;
+                }
+            }
+
+            if (domain.parent != null && name.charAt(index++) != '.')
+            {
+                return false;
+            }
         }
 
-        if (!domain.matches(alphaNumericRegex))
+        return true;
+    }
+
+    /**
+     * Hashes a name in any case the way a DomainName of it hashes, so it can be looked up without building one
+     *
+     * @param name The text of the name
+     * @return The hash code of its DomainName
+     */
+    static int hashIgnoreCase(CharSequence name)
+    {
+        int hash = 0;
+
+        for (int i = 0; i < name.length(); i++)
         {
-            throw new IllegalArgumentException("The domain name contains illegal characters");
+            hash = 31 * hash + toLowerCase(name.charAt(i));
+        }
+
+        return hash;
+    }
+
+    private static char toLowerCase(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Whether this is a wildcard such as "*.example.com", which answers for the missing names under example.com
+     *
+     * @return If the first label is "*"
+     */
+    public boolean isWildcard()
+    {
+        // A "*" is only valid as the whole first label
+        return head >>> 56 == '*';
+    }
+
+    int labelLength()
+    {
+        if (rest != null)
+        {
+            return 16 + rest.length;
+        }
+
+        if (next != 0)
+        {
+            return 8 + (71 - Long.numberOfTrailingZeros(next)) / 8;
+        }
+
+        return (71 - Long.numberOfTrailingZeros(head)) / 8;
+    }
+
+    int labelByte(int index)
+    {
+        if (index < 8)
+        {
+            return (int) (head >>> (56 - 8 * index)) & 0xFF;
+        }
+
+        if (index < 16)
+        {
+            return (int) (next >>> (56 - 8 * (index - 8))) & 0xFF;
+        }
+
+        return rest[index - 16];
+    }
+
+    private int indexOfDot()
+    {
+        int length = labelLength();
+
+        for (int i = 0; i < length; i++)
+        {
+            if (labelByte(i) == '.')
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int hashOf(int start, int end)
+    {
+        int hash = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            hash = 31 * hash + labelByte(i);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Gets a byte of the name's text, following the parents
+     *
+     * @param index The index of the byte
+     * @return The byte
+     */
+    private int byteAt(int index)
+    {
+        DomainName name = this;
+
+        while (true)
+        {
+            int labelLength = name.labelLength();
+
+            if (index < labelLength)
+            {
+                return name.labelByte(index);
+            }
+
+            if (index == labelLength)
+            {
+                return '.';
+            }
+
+            index -= labelLength + 1;
+            name = name.parent;
         }
     }
 
@@ -53,23 +590,211 @@ public class DomainName
     @Override
     public boolean equals(Object domain)
     {
-        if (domain instanceof DomainName)
+        if (domain == this)
+        {
+            return true;
+        }
+
+        if (!(domain instanceof DomainName))
+        {
+            return false;
+        }
+
+        DomainName other = (DomainName) domain;
+
+        if (hash != other.hash)
         {
-            return toString().equalsIgnoreCase(domain.toString());
+            return false;
         }
 
-        return false;
+        if (parent == other.parent)
+        {
+            return head == other.head && next == other.next && Arrays.equals(rest, other.rest);
+        }
+
+        // One side is compacted and the other is not, or they split at different labels, so compare the text
+        int length = length();
+
+        if (length != other.length())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            if (byteAt(i) != other.byteAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     @Override
     public int hashCode()
     {
-        return domain.hashCode();
+        return hash;
     }
 
     @Override
     public String toString()
     {
-        return domain;
+        ByteBuffer text = ByteBuffer.allocate(length());
+
+        writeTo(text);
+
+        return new String(text.array(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The parents of the names in one store, one instance per distinct name. Lookups never add to it, so random
+     * queries can not grow it, only the names that are stored can, and a parent is released once no stored name and
+     * no other parent is under it. Old versions of the records keep the instances they point at, a parent added again
+     * later is just a new instance with the same text.
+     *
+     * It is an open-addressing table of the names themselves with a count of the names under each, so an entry costs
+     * a slot rather than a map node. It is not thread-safe, the store's writer owns it.
+     */
+    static final class Pool
+    {
+        private DomainName[] table = new DomainName[1024];
+        private int[] counts = new int[table.length];
+        private int size;
+
+        DomainName get(DomainName name)
+        {
+            return table[slot(table, name)];
+        }
+
+        /**
+         * Counts a compacted name that is now stored against its parent
+         *
+         * @param name The stored name
+         */
+        void retain(DomainName name)
+        {
+            int slot = name.parent != null ? slot(table, name.parent) : -1;
+
+            if (slot >= 0 && table[slot] != null)
+            {
+                counts[slot]++;
+            }
+        }
+
+        /**
+         * Uncounts a name that is no longer stored, releasing its parent and the parents above it that are left with
+         * nothing under them
+         *
+         * @param name The name that was removed, in either form
+         */
+        void release(DomainName name)
+        {
+            DomainName parent = name.parent();
+
+            while (parent != null)
+            {
+                int slot = slot(table, parent);
+
+                if (table[slot] == null || --counts[slot] > 0)
+                {
+                    return;
+                }
+
+                parent = table[slot].parent;
+                delete(slot);
+            }
+        }
+
+        /**
+         * Gets the pooled instance of the name, compacting and adding it if it is new
+         *
+         * @param name The name to intern
+         * @return The pooled name
+         */
+        private DomainName intern(DomainName name)
+        {
+            DomainName pooled = table[slot(table, name)];
+
+            if (pooled != null)
+            {
+                return pooled;
+            }
+
+            // Splitting interns the parents first, which can grow the table, so find the slot afterwards
+            pooled = name.split(this);
+            retain(pooled);
+
+            if (2 * (size + 1) > table.length)
+            {
+                DomainName[] larger = new DomainName[table.length * 2];
+                int[] largerCounts = new int[larger.length];
+
+                for (int i = 0; i < table.length; i++)
+                {
+                    if (table[i] != null)
+                    {
+                        int slot = slot(larger, table[i]);
+
+                        larger[slot] = table[i];
+                        largerCounts[slot] = counts[i];
+                    }
+                }
+
+                table = larger;
+                counts = largerCounts;
+            }
+
+            table[slot(table, pooled)] = pooled;
+            size++;
+
+            return pooled;
+        }
+
+        /**
+         * Empties a slot, moving the entries after it that probed past it back so they can still be found
+         */
+        private void delete(int slot)
+        {
+            int mask = table.length - 1;
+            int hole = slot;
+
+            table[hole] = null;
+            counts[hole] = 0;
+            size--;
+
+            for (int i = (hole + 1) & mask; table[i] != null; i = (i + 1) & mask)
+            {
+                int home = home(table[i], mask);
+
+                // The entry can fill the hole unless its home slot lies cyclically between the hole and it
+                if (((i - home) & mask) >= ((i - hole) & mask))
+                {
+                    table[hole] = table[i];
+                    counts[hole] = counts[i];
+                    table[i] = null;
+                    counts[i] = 0;
+                    hole = i;
+                }
+            }
+        }
+
+        private static int home(DomainName name, int mask)
+        {
+            return (name.hash ^ (name.hash >>> 16)) & mask;
+        }
+
+        private static int slot(DomainName[] table, DomainName name)
+        {
+            int mask = table.length - 1;
+            int slot = home(name, mask);
+
+            while (table[slot] != null && !table[slot].equals(name))
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
     }
 }
@@ -0,0 +1,245 @@
+package lab9.christieck;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers the names a DNS server has no records for by asking an upstream resolver, keeping the answers in a bounded
+ * W-TinyLFU cache until their TTL runs out. Names that do not exist upstream are cached too. Threads that miss on
+ * the same name at once share a single upstream query.
+ *
+ * @see DNS#setForwarder(ForwardingResolver)
+ */
+public class ForwardingResolver
+{
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    /**
+     * The longest an answer is cached for, whatever TTL the upstream gave it
+     */
+    private static final long MAX_TTL = 24 * 60 * 60;
+
+    private final Upstream upstream;
+    private final TinyLfuCache<DomainName, Upstream.Answer> cache;
+
+    private final ConcurrentHashMap<DomainName, FutureTask<Upstream.Answer>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder upstreamQueries = new LongAdder();
+    private final LongAdder upstreamFailures = new LongAdder();
+
+    public ForwardingResolver(Upstream upstream)
+    {
+        this(upstream, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a resolver
+     *
+     * @param upstream Where the names are forwarded to
+     * @param cacheSize The most names whose answers are cached
+     */
+    public ForwardingResolver(Upstream upstream, int cacheSize)
+    {
+        this.upstream = upstream;
+        this.cache = new TinyLfuCache<>(cacheSize);
+    }
+
+    /**
+     * Gets the first address of the type the upstream has for the domain name
+     *
+     * @param domain The domain to lookup the IP address for
+     * @param type A, AAAA or ANY for either
+     * @return The IP address, null if there is none or the upstream failed
+     */
+    public IPAddress lookup(DomainName domain, RecordType type)
+    {
+        Upstream.Answer answer = resolve(domain);
+
+        if (answer != null)
+        {
+            for (IPAddress address : answer.getAddresses())
+            {
+                if (type.matches(address))
+                {
+                    return address;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets every address of the type the upstream has for the domain name, in the order it answered with
+     *
+     * @param domain The domain to lookup the IP addresses for
+     * @param type A, AAAA or ANY for both
+     * @return The IP addresses, empty if there are none or the upstream failed
+     */
+    public List<IPAddress> lookupAll(DomainName domain, RecordType type)
+    {
+        Upstream.Answer answer = resolve(domain);
+
+        if (answer == null)
+        {
+            return Collections.emptyList();
+        }
+
+        if (type == RecordType.ANY)
+        {
+            return answer.getAddresses();
+        }
+
+        List<IPAddress> addresses = new ArrayList<>(answer.getAddresses().size());
+
+        for (IPAddress address : answer.getAddresses())
+        {
+            if (type.matches(address))
+            {
+                addresses.add(address);
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Gets the cached answer for the name, asking the upstream on a miss
+     *
+     * @param domain The domain name
+     * @return The answer, null if the upstream failed
+     */
+    private Upstream.Answer resolve(DomainName domain)
+    {
+        Upstream.Answer answer = cache.get(domain, System.currentTimeMillis());
+
+        if (answer != null)
+        {
+            return answer;
+        }
+
+        FutureTask<Upstream.Answer> task = new FutureTask<>(() -> query(domain));
+        FutureTask<Upstream.Answer> running = inFlight.putIfAbsent(domain, task);
+
+        if (running == null)
+        {
+            running = task;
+
+            try
+            {
+                task.run();
+            } finally
+            {
+                inFlight.remove(domain, task);
+            }
+        }
+
+        try
+        {
+            return running.get();
+        } catch (ExecutionException e)
+        {
+            return null;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            return null;
+        }
+    }
+
+    /**
+     * Asks the upstream and caches the answer, run by the one thread that missed first
+     */
+    private Upstream.Answer query(DomainName domain) throws IOException
+    {
+        upstreamQueries.increment();
+
+        Upstream.Answer answer;
+
+        try
+        {
+            answer = upstream.resolve(domain);
+        } catch (IOException | RuntimeException e)
+        {
+            upstreamFailures.increment();
+
+            throw e;
+        }
+
+        long ttl = Math.min(answer.getTtlSeconds(), MAX_TTL);
+
+        if (ttl > 0)
+        {
+            cache.put(domain, answer, System.currentTimeMillis() + ttl * 1000);
+        }
+
+        return answer;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache
+     *
+     * @return The number of cache hits
+     */
+    public long getHitCount()
+    {
+        return cache.getHitCount();
+    }
+
+    /**
+     * Gets the number of lookups that were not in the cache or had expired there
+     *
+     * @return The number of cache misses
+     */
+    public long getMissCount()
+    {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Gets the number of answers dropped to keep the cache within its size, including new answers that were not
+     * admitted because they were asked for less than the answer they would have replaced
+     *
+     * @return The number of evictions
+     */
+    public long getEvictionCount()
+    {
+        return cache.getEvictionCount();
+    }
+
+    /**
+     * Gets the number of queries sent upstream, fewer than the misses when threads shared a query
+     *
+     * @return The number of upstream queries
+     */
+    public long getUpstreamQueryCount()
+    {
+        return upstreamQueries.sum();
+    }
+
+    /**
+     * Gets the number of upstream queries that failed, their names are not cached
+     *
+     * @return The number of failed queries
+     */
+    public long getUpstreamFailureCount()
+    {
+        return upstreamFailures.sum();
+    }
+
+    /**
+     * Gets the number of names in the cache
+     *
+     * @return The number of cached answers
+     */
+    public int getCacheSize()
+    {
+        return cache.size();
+    }
+}
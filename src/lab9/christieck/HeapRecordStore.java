@@ -0,0 +1,109 @@
+package lab9.christieck;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The records as a persistent hash trie of record sets on the heap
+ */
+final class HeapRecordStore implements RecordStore
+{
+    static final HeapRecordStore EMPTY = new HeapRecordStore(PersistentHashMap.empty());
+
+    private final PersistentHashMap<DomainName, RecordSet> records;
+
+    private HeapRecordStore(PersistentHashMap<DomainName, RecordSet> records)
+    {
+        this.records = records;
+    }
+
+    @Override
+    public RecordSet get(DomainName domain)
+    {
+        return records.get(domain);
+    }
+
+    @Override
+    public IPAddress next(DomainName domain, RecordType type, long now)
+    {
+        RecordSet set = records.get(domain);
+
+        return set != null ? set.next(type, now) : null;
+    }
+
+    @Override
+    public List<IPAddress> rotate(DomainName domain, RecordType type, long now)
+    {
+        RecordSet set = records.get(domain);
+
+        return set != null ? set.rotate(type, now) : Collections.emptyList();
+    }
+
+    @Override
+    public long nextIPv4(CharSequence name, int hash, long now)
+    {
+        RecordSet set = records.get(hash, name, DomainName::equalsIgnoreCase);
+
+        return set != null ? set.nextIPv4(now) : -1;
+    }
+
+    @Override
+    public int rotateIPv4(CharSequence name, int hash, long now, int[] rotated, long[] expires)
+    {
+        RecordSet set = records.get(hash, name, DomainName::equalsIgnoreCase);
+
+        return set != null ? set.rotateIPv4(now, rotated, expires) : 0;
+    }
+
+    @Override
+    public RecordStore with(DomainName domain, RecordSet set)
+    {
+        PersistentHashMap<DomainName, RecordSet> newRecords = records.put(domain, set);
+
+        return newRecords == records ? this : new HeapRecordStore(newRecords);
+    }
+
+    @Override
+    public RecordStore without(DomainName domain)
+    {
+        PersistentHashMap<DomainName, RecordSet> newRecords = records.remove(domain);
+
+        return newRecords == records ? this : new HeapRecordStore(newRecords);
+    }
+
+    @Override
+    public int size()
+    {
+        return records.size();
+    }
+
+    @Override
+    public Object offHeapTable()
+    {
+        return null;
+    }
+
+    @Override
+    public void forEach(BiConsumer<DomainName, RecordSet> action)
+    {
+        records.forEach(action);
+    }
+
+    static final class Builder implements RecordStore.Builder
+    {
+        private final PersistentHashMap.Builder<DomainName, RecordSet> records = new PersistentHashMap.Builder<>();
+
+        @Override
+        public void put(DomainName domain, RecordSet set)
+        {
+            records.put(domain, set);
+        }
+
+        @Override
+        public RecordStore build()
+        {
+            return new HeapRecordStore(records.build());
+        }
+    }
+}
@@ -1,32 +1,324 @@
 package lab9.christieck;
 
-import sun.net.util.IPAddressUtil;
-
 /**
- * A class for an IP address
+ * A class for an IPv4 or IPv6 address, stored as the two longs of the 128-bit IPv6 address or, for IPv4, the 32-bit
+ * value in the low long. The family is kept apart from the bits, so an IPv4-mapped IPv6 address (::ffff:a.b.c.d) stays
+ * an AAAA record and never equals the IPv4 address it maps.
  */
 public class IPAddress
 {
-    private String address;
+    private static final long MAPPED_PREFIX = 0xFFFFL << 32;
+
+    private final long high;
+    private final long low;
+    private final boolean ipv6;
+
+    /**
+     * The textual form, only built once it is asked for so idle records stay small
+     */
+    private String text;
 
     public IPAddress(String address)
     {
-        validateIpAddress(address);
+        this((CharSequence) address);
+    }
 
-        this.address = address;
+    public IPAddress(int address)
+    {
+        this.high = 0;
+        this.low = address & 0xFFFFFFFFL;
+        this.ipv6 = false;
+    }
+
+    /**
+     * Creates an IPv6 address from its 128-bit value
+     *
+     * @param high The first 64 bits of the address
+     * @param low The last 64 bits of the address
+     */
+    public IPAddress(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+        this.ipv6 = true;
     }
 
     /**
-     * Validates the IP address
+     * Parses a dotted-quad IPv4 or a colon-separated IPv6 address, without allocating anything but the address
      *
-     * @param address The IP address to validate
+     * @param address The IP address to parse
      */
-    private static void validateIpAddress(String address)
+    IPAddress(CharSequence address)
     {
-        if (!IPAddressUtil.isIPv4LiteralAddress(address))
+        int length = address.length();
+
+        if (indexOf(address, ':') < 0)
+        {
+            this.high = 0;
+            this.low = parseAddress(address, 0, length) & 0xFFFFFFFFL;
+            this.ipv6 = false;
+
+            return;
+        }
+
+        // The groups before and after the "::" are collected separately and put together at the end
+        long prefixHigh = 0;
+        long prefixLow = 0;
+        long suffixHigh = 0;
+        long suffixLow = 0;
+
+        int prefixGroups = 0;
+        int suffixGroups = 0;
+        boolean compressed = false;
+
+        int i = 0;
+
+        if (length >= 2 && address.charAt(0) == ':' && address.charAt(1) == ':')
+        {
+            compressed = true;
+            i = 2;
+        }
+
+        while (i < length)
+        {
+            int start = i;
+            int group = 0;
+
+            while (i < length && hexValue(address.charAt(i)) >= 0)
+            {
+                group = group * 16 + hexValue(address.charAt(i));
+
+                if (++i - start > 4)
+                {
+                    throw new IllegalArgumentException("The IP address is not valid");
+                }
+            }
+
+            int groups = 1;
+
+            if (i < length && address.charAt(i) == '.')
+            {
+                // An IPv4 address can end an IPv6 address, it fills the last two groups
+                group = parseAddress(address, start, length);
+                groups = 2;
+                i = length;
+            } else if (i == start)
+            {
+                throw new IllegalArgumentException("The IP address is not valid");
+            }
+
+            int shift = 16 * groups;
+
+            if (compressed)
+            {
+                suffixHigh = (suffixHigh << shift) | (suffixLow >>> (64 - shift));
+                suffixLow = (suffixLow << shift) | (group & 0xFFFFFFFFL);
+                suffixGroups += groups;
+            } else
+            {
+                prefixHigh = (prefixHigh << shift) | (prefixLow >>> (64 - shift));
+                prefixLow = (prefixLow << shift) | (group & 0xFFFFFFFFL);
+                prefixGroups += groups;
+            }
+
+            if (i == length)
+            {
+                break;
+            }
+
+            if (address.charAt(i) != ':' || ++i == length)
+            {
+                throw new IllegalArgumentException("The IP address is not valid");
+            }
+
+            if (address.charAt(i) == ':')
+            {
+                if (compressed)
+                {
+                    throw new IllegalArgumentException("The IP address is not valid");
+                }
+
+                compressed = true;
+                i++;
+            }
+        }
+
+        int groups = prefixGroups + suffixGroups;
+
+        if (compressed ? groups > 7 : groups != 8)
         {
             throw new IllegalArgumentException("The IP address is not valid");
         }
+
+        // Move the groups before the "::" to the front, the ones after it are already at the end
+        int shift = 16 * (8 - prefixGroups);
+
+        if (shift >= 128)
+        {
+            prefixHigh = 0;
+            prefixLow = 0;
+        } else if (shift >= 64)
+        {
+            prefixHigh = prefixLow << (shift - 64);
+            prefixLow = 0;
+        } else if (shift > 0)
+        {
+            prefixHigh = (prefixHigh << shift) | (prefixLow >>> (64 - shift));
+            prefixLow = prefixLow << shift;
+        }
+
+        this.high = prefixHigh | suffixHigh;
+        this.low = prefixLow | suffixLow;
+        this.ipv6 = true;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address
+     *
+     * @param address The IP address to parse
+     * @return The address
+     */
+    static IPAddress parse(CharSequence address)
+    {
+        return new IPAddress(address);
+    }
+
+    /**
+     * Parses and validates a dotted-quad IPv4 address without allocating
+     *
+     * @param address The IP address to parse
+     * @return The packed 32-bit value of the address
+     */
+    static int parseAddress(CharSequence address)
+    {
+        return parseAddress(address, 0, address.length());
+    }
+
+    /**
+     * Parses and validates a dotted-quad IPv4 address in part of the characters
+     *
+     * @param address The characters holding the IP address
+     * @param start The index of the first character of the address
+     * @param end The index after the last character of the address
+     * @return The packed 32-bit value of the address
+     */
+    private static int parseAddress(CharSequence address, int start, int end)
+    {
+        int value = 0;
+        int octet = 0;
+        int digits = 0;
+        int octets = 0;
+
+        for (int i = start; i <= end; i++)
+        {
+            char c = i < end ? address.charAt(i) : '.';
+
+            if (c >= '0' && c <= '9')
+            {
+                octet = octet * 10 + (c - '0');
+
+                if (++digits > 3 || octet > 255)
+                {
+                    throw new IllegalArgumentException("The IP address is not valid");
+                }
+            } else if (c == '.' && digits > 0 && octets < 4)
+            {
+                value = (value << 8) | octet;
+
+                octet = 0;
+                digits = 0;
+                octets++;
+            } else
+            {
+                throw new IllegalArgumentException("The IP address is not valid");
+            }
+        }
+
+        if (octets != 4)
+        {
+            throw new IllegalArgumentException("The IP address is not valid");
+        }
+
+        return value;
+    }
+
+    private static int indexOf(CharSequence chars, char c)
+    {
+        for (int i = 0; i < chars.length(); i++)
+        {
+            if (chars.charAt(i) == c)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int hexValue(char c)
+    {
+        if (c >= '0' && c <= '9')
+        {
+            return c - '0';
+        }
+
+        if (c >= 'a' && c <= 'f')
+        {
+            return c - 'a' + 10;
+        }
+
+        if (c >= 'A' && c <= 'F')
+        {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Whether this is an IPv6 address, rather than an IPv4 one
+     *
+     * @return If the address is IPv6
+     */
+    public boolean isIPv6()
+    {
+        return ipv6;
+    }
+
+    /**
+     * Gets the packed 32-bit value of an IPv4 address, the first octet in the high byte
+     *
+     * @return The address as an int
+     * @throws IllegalStateException If this is an IPv6 address
+     */
+    public int getValue()
+    {
+        if (isIPv6())
+        {
+            throw new IllegalStateException("The IP address is not an IPv4 address");
+        }
+
+        return (int) low;
+    }
+
+    /**
+     * Gets the first 64 bits of an IPv6 address, 0 for an IPv4 one
+     *
+     * @return The high half of the address
+     */
+    public long getHigh()
+    {
+        return high;
+    }
+
+    /**
+     * Gets the last 64 bits of an IPv6 address, the 32-bit value for an IPv4 one
+     *
+     * @return The low half of the address
+     */
+    public long getLow()
+    {
+        return low;
     }
 
     /**
@@ -40,7 +332,9 @@ public class IPAddress
     {
         if (address instanceof IPAddress)
         {
-            return toString().equalsIgnoreCase(address.toString());
+            IPAddress other = (IPAddress) address;
+
+            return high == other.high && low == other.low && ipv6 == other.ipv6;
         }
 
         return false;
@@ -49,12 +343,104 @@ public class IPAddress
     @Override
     public int hashCode()
     {
-        return address.hashCode();
+        return Long.hashCode(high * 31 + low) + (ipv6 ? 1 : 0);
     }
 
     @Override
     public String toString()
     {
-        return address;
+        String text = this.text;
+
+        if (text == null)
+        {
+            this.text = text = isIPv6() ? formatIPv6() : formatIPv4((int) low);
+        }
+
+        return text;
+    }
+
+    private static String formatIPv4(int address)
+    {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /**
+     * Formats the address the RFC 5952 way: lowercase, no leading zeros and the first longest run of two or more
+     * zero groups shortened to "::", with an IPv4-mapped address ending in its dotted quad
+     *
+     * @return The canonical text of the address
+     */
+    private String formatIPv6()
+    {
+        if (high == 0 && (low & ~0xFFFFFFFFL) == MAPPED_PREFIX)
+        {
+            return "::ffff:" + formatIPv4((int) low);
+        }
+
+        int runStart = -1;
+        int runLength = 0;
+
+        for (int i = 0; i < 8; i++)
+        {
+            int length = 0;
+
+            while (i + length < 8 && group(i + length) == 0)
+            {
+                length++;
+            }
+
+            if (length > runLength && length >= 2)
+            {
+                runStart = i;
+                runLength = length;
+            }
+
+            i += length;
+        }
+
+        char[] chars = new char[39];
+        int size = 0;
+
+        for (int i = 0; i < 8; i++)
+        {
+            if (i == runStart)
+            {
+                chars[size++] = ':';
+
+                if (i == 0)
+                {
+                    chars[size++] = ':';
+                }
+
+                i += runLength - 1;
+                continue;
+            }
+
+            int group = group(i);
+
+            for (int shift = 12; shift >= 0; shift -= 4)
+            {
+                int digit = (group >>> shift) & 0xF;
+
+                if (group >>> shift != 0 || shift == 0)
+                {
+                    chars[size++] = Character.forDigit(digit, 16);
+                }
+            }
+
+            if (i < 7)
+            {
+                chars[size++] = ':';
+            }
+        }
+
+        return new String(chars, 0, size);
+    }
+
+    private int group(int index)
+    {
+        long half = index < 4 ? high : low;
+
+        return (int) (half >>> (48 - 16 * (index & 3))) & 0xFFFF;
     }
 }
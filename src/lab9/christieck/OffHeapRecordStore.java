@@ -0,0 +1,903 @@
+package lab9.christieck;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+
+/**
+ * The records as an open-addressing table in direct memory, plus the changes made since the table was built as a
+ * small persistent map on the heap. The table never changes once built, so every version of the store shares it,
+ * and once the changes grow past a quarter of the table they are folded into a new one.
+ *
+ * The fold builds the new table on a background thread, so the update that starts it does not wait for it. The
+ * changes made while it runs go to a second map on top of the first. The first update after the fold finishes moves
+ * them onto the new table, which costs time in proportion to them alone. The direct memory a store holds is
+ * therefore its table plus at most one being built. Older tables stay reachable only through older versions that
+ * are still referenced, and DNS bounds how many of those its version history keeps.
+ *
+ * Looking a name up hashes it, probes the slots and compares the name against the bytes in the table, none of which
+ * allocates. Only the address handed back is an object, and not even that when it is asked for as an IPv4 value.
+ */
+final class OffHeapRecordStore implements RecordStore
+{
+    static final OffHeapRecordStore EMPTY = new OffHeapRecordStore(Table.EMPTY, PersistentHashMap.empty(), null, null, 0);
+
+    /**
+     * The fewest changes that are folded into a new table, so small stores are not rebuilt on every update
+     */
+    private static final int MIN_FOLD_SIZE = 1024;
+
+    /**
+     * Marks a name of the table that has been removed since
+     */
+    private static final Object REMOVED = new Object();
+
+    private final Table table;
+    private final PersistentHashMap<DomainName, Object> changes;
+
+    /**
+     * The changes made since a fold of the table and the changes started, null when no fold is running
+     */
+    private final PersistentHashMap<DomainName, Object> pending;
+
+    /**
+     * The store the running fold builds, with the table and changes folded together, null when none is running
+     */
+    private final CompletableFuture<OffHeapRecordStore> fold;
+
+    private final int size;
+
+    private OffHeapRecordStore(Table table, PersistentHashMap<DomainName, Object> changes,
+            PersistentHashMap<DomainName, Object> pending, CompletableFuture<OffHeapRecordStore> fold, int size)
+    {
+        this.table = table;
+        this.changes = changes;
+        this.pending = pending;
+        this.fold = fold;
+        this.size = size;
+    }
+
+    @Override
+    public RecordSet get(DomainName domain)
+    {
+        Object change = change(domain);
+
+        if (change != null)
+        {
+            return change == REMOVED ? null : (RecordSet) change;
+        }
+
+        int record = table.find(domain);
+
+        return record >= 0 ? table.recordSet(record) : null;
+    }
+
+    @Override
+    public IPAddress next(DomainName domain, RecordType type, long now)
+    {
+        Object change = change(domain);
+
+        if (change != null)
+        {
+            return change == REMOVED ? null : ((RecordSet) change).next(type, now);
+        }
+
+        int record = table.find(domain);
+
+        return record >= 0 ? table.next(record, type, now) : null;
+    }
+
+    @Override
+    public List<IPAddress> rotate(DomainName domain, RecordType type, long now)
+    {
+        Object change = change(domain);
+
+        if (change != null)
+        {
+            return change == REMOVED ? Collections.emptyList() : ((RecordSet) change).rotate(type, now);
+        }
+
+        int record = table.find(domain);
+
+        return record >= 0 ? table.rotate(record, type, now) : Collections.emptyList();
+    }
+
+    @Override
+    public long nextIPv4(CharSequence name, int hash, long now)
+    {
+        Object change = change(name, hash);
+
+        if (change != null)
+        {
+            return change == REMOVED ? -1 : ((RecordSet) change).nextIPv4(now);
+        }
+
+        int record = table.find(name, hash);
+
+        return record >= 0 ? table.nextIPv4(record, now) : -1;
+    }
+
+    @Override
+    public int rotateIPv4(CharSequence name, int hash, long now, int[] rotated, long[] expires)
+    {
+        Object change = change(name, hash);
+
+        if (change != null)
+        {
+            return change == REMOVED ? 0 : ((RecordSet) change).rotateIPv4(now, rotated, expires);
+        }
+
+        int record = table.find(name, hash);
+
+        return record >= 0 ? table.rotateIPv4(record, now, rotated, expires) : 0;
+    }
+
+    @Override
+    public RecordStore with(DomainName domain, RecordSet set)
+    {
+        Object change = change(domain);
+        boolean present = change != null ? change != REMOVED : table.find(domain) >= 0;
+        int newSize = present ? size : size + 1;
+
+        return pending == null ? fold(changes.put(domain, set), newSize) : folding(pending.put(domain, set), newSize);
+    }
+
+    @Override
+    public RecordStore without(DomainName domain)
+    {
+        Object change = change(domain);
+
+        if (change == REMOVED)
+        {
+            return this;
+        }
+
+        boolean inTable = table.find(domain) >= 0;
+
+        if (change == null && !inTable)
+        {
+            return this;
+        }
+
+        // A name of the table has to be hidden, one that only ever was a change can simply go
+        if (pending == null)
+        {
+            return fold(inTable ? changes.put(domain, REMOVED) : changes.remove(domain), size - 1);
+        }
+
+        // The table being built holds the names of the changes too
+        boolean inFold = inTable || changes.get(domain) != null;
+
+        return folding(inFold ? pending.put(domain, REMOVED) : pending.remove(domain), size - 1);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Object offHeapTable()
+    {
+        return table;
+    }
+
+    @Override
+    public void forEach(BiConsumer<DomainName, RecordSet> action)
+    {
+        table.forEach((domain, set) ->
+        {
+            if (change(domain) == null)
+            {
+                action.accept(domain, set);
+            }
+        });
+
+        changes.forEach((domain, change) ->
+        {
+            if (change != REMOVED && (pending == null || pending.get(domain) == null))
+            {
+                action.accept(domain, (RecordSet) change);
+            }
+        });
+
+        if (pending != null)
+        {
+            pending.forEach((domain, change) ->
+            {
+                if (change != REMOVED)
+                {
+                    action.accept(domain, (RecordSet) change);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the latest change of the name since the table was built
+     *
+     * @param domain The domain name
+     * @return The records, REMOVED, or null if the name is as the table has it
+     */
+    private Object change(DomainName domain)
+    {
+        Object change = pending != null ? pending.get(domain) : null;
+
+        return change != null ? change : changes.get(domain);
+    }
+
+    /**
+     * Gets the latest change of a name given as text since the table was built
+     *
+     * @param name The domain name in any case, not validated
+     * @param hash Its hash, from DomainName.hashIgnoreCase
+     * @return The records, REMOVED, or null if the name is as the table has it
+     */
+    private Object change(CharSequence name, int hash)
+    {
+        Object change = pending != null ? pending.get(hash, name, DomainName::equalsIgnoreCase) : null;
+
+        return change != null ? change : changes.get(hash, name, DomainName::equalsIgnoreCase);
+    }
+
+    /**
+     * Gets the store with the changes, starting a fold into a new table if there are enough of them
+     *
+     * @param changes The changes since the table was built
+     * @param size The number of names in the store
+     * @return The new store
+     */
+    private RecordStore fold(PersistentHashMap<DomainName, Object> changes, int size)
+    {
+        if (changes.size() < Math.max(MIN_FOLD_SIZE, table.size / 4))
+        {
+            return new OffHeapRecordStore(table, changes, null, null, size);
+        }
+
+        // The folded store never changes, so it can be read on another thread while updates go on
+        OffHeapRecordStore folded = new OffHeapRecordStore(table, changes, null, null, size);
+        CompletableFuture<OffHeapRecordStore> fold = CompletableFuture.supplyAsync(folded::rebuild, ForkJoinPool.commonPool());
+
+        return new OffHeapRecordStore(table, changes, PersistentHashMap.empty(), fold, size);
+    }
+
+    /**
+     * Gets the store with the changes made while a fold runs, moving them onto the new table once it is built
+     *
+     * @param pending The changes since the fold started
+     * @param size The number of names in the store
+     * @return The new store
+     */
+    private RecordStore folding(PersistentHashMap<DomainName, Object> pending, int size)
+    {
+        if (!fold.isDone())
+        {
+            return new OffHeapRecordStore(table, changes, pending, fold, size);
+        }
+
+        OffHeapRecordStore built;
+
+        try
+        {
+            built = fold.join();
+        } catch (CompletionException e)
+        {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+
+        Table newTable = built.table;
+        PersistentHashMap.Builder<DomainName, Object> rebased = new PersistentHashMap.Builder<>(built.changes);
+        List<DomainName> removed = new ArrayList<>();
+
+        pending.forEach((domain, change) ->
+        {
+            if (change != REMOVED)
+            {
+                rebased.put(domain, change);
+            } else if (newTable.find(domain) >= 0)
+            {
+                rebased.put(domain, REMOVED);
+            } else
+            {
+                removed.add(domain);
+            }
+        });
+
+        // Only a set too large for the table can be among the built changes, the builder cannot remove it
+        PersistentHashMap<DomainName, Object> newChanges = rebased.build();
+
+        for (DomainName domain : removed)
+        {
+            newChanges = newChanges.remove(domain);
+        }
+
+        return new OffHeapRecordStore(newTable, newChanges, null, null, size);
+    }
+
+    /**
+     * Builds a new table from the table and the changes
+     *
+     * @return The store with every record in the new table
+     */
+    private OffHeapRecordStore rebuild()
+    {
+        Builder builder = new Builder();
+
+        forEach(builder::put);
+
+        return builder.build();
+    }
+
+    /**
+     * Collects the records and writes the table once their number and size are known
+     */
+    static final class Builder implements RecordStore.Builder
+    {
+        private final List<DomainName> domains = new ArrayList<>();
+        private final List<RecordSet> sets = new ArrayList<>();
+
+        /**
+         * The sets with more addresses than a table record holds, they stay on the heap
+         */
+        private final PersistentHashMap.Builder<DomainName, Object> oversized = new PersistentHashMap.Builder<>();
+        private int oversizedCount;
+
+        @Override
+        public void put(DomainName domain, RecordSet set)
+        {
+            if (set.size() > Table.MAX_ADDRESSES)
+            {
+                oversized.put(domain, set);
+                oversizedCount++;
+
+                return;
+            }
+
+            domains.add(domain);
+            sets.add(set);
+        }
+
+        @Override
+        public OffHeapRecordStore build()
+        {
+            return new OffHeapRecordStore(Table.build(domains, sets), oversized.build(), null, null,
+                    domains.size() + oversizedCount);
+        }
+    }
+
+    /**
+     * The slots are [hash:4][record index + 1:4], zero for an empty slot, probed linearly. A record is
+     * [name length:1][name][count:2], then a rotation counter if it has more than one address, then when each address
+     * expires, eight bytes each, if the second bit of the count says some do, then the addresses: four bytes each, or
+     * [length:1][address:4 or 16] each when the top bit of the count says some are IPv6.
+     *
+     * The rotation counters are the only bytes written after the table is built. Like RecordSet's, they are bumped
+     * without synchronization and a lost increment only repeats an address.
+     */
+    private static final class Table
+    {
+        static final Table EMPTY = build(Collections.emptyList(), Collections.emptyList());
+
+        static final int MAX_ADDRESSES = 0x3FFF;
+
+        private static final int SLOT_SIZE = 8;
+        private static final int MIXED = 0x8000;
+        private static final int EXPIRING = 0x4000;
+
+        private final ByteBuffer slots;
+        private final ByteBuffer records;
+        private final int mask;
+        private final int size;
+
+        private Table(ByteBuffer slots, ByteBuffer records, int size)
+        {
+            this.slots = slots;
+            this.records = records;
+            this.mask = slots.capacity() / SLOT_SIZE - 1;
+            this.size = size;
+        }
+
+        static Table build(List<DomainName> domains, List<RecordSet> sets)
+        {
+            long recordsSize = 0;
+
+            for (int i = 0; i < domains.size(); i++)
+            {
+                recordsSize += recordSize(domains.get(i), sets.get(i));
+            }
+
+            int capacity = Integer.highestOneBit(Math.max(8, domains.size() * 2 - 1)) << 1;
+
+            if (recordsSize > Integer.MAX_VALUE || (long) capacity * SLOT_SIZE > Integer.MAX_VALUE)
+            {
+                throw new IllegalStateException("The records are too large for the off-heap table");
+            }
+
+            ByteBuffer slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            ByteBuffer records = ByteBuffer.allocateDirect((int) recordsSize);
+            int mask = capacity - 1;
+
+            for (int i = 0; i < domains.size(); i++)
+            {
+                DomainName domain = domains.get(i);
+                int slot = mix(domain.hashCode()) & mask;
+
+                while (slots.getInt(slot * SLOT_SIZE + 4) != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+
+                slots.putInt(slot * SLOT_SIZE, domain.hashCode());
+                slots.putInt(slot * SLOT_SIZE + 4, records.position() + 1);
+
+                writeRecord(records, domain, sets.get(i));
+            }
+
+            return new Table(slots, records, domains.size());
+        }
+
+        private static long recordSize(DomainName domain, RecordSet set)
+        {
+            boolean mixed = isMixed(set);
+            long size = 1 + domain.length() + 2 + (set.size() > 1 ? 4 : 0) + (isExpiring(set) ? 8 * set.size() : 0);
+
+            for (int i = 0; i < set.size(); i++)
+            {
+                size += set.get(i).isIPv6() ? 17 : mixed ? 5 : 4;
+            }
+
+            return size;
+        }
+
+        private static void writeRecord(ByteBuffer records, DomainName domain, RecordSet set)
+        {
+            boolean mixed = isMixed(set);
+            boolean expiring = isExpiring(set);
+
+            records.put((byte) domain.length());
+            domain.writeTo(records);
+            records.putShort((short) (set.size() | (mixed ? MIXED : 0) | (expiring ? EXPIRING : 0)));
+
+            if (set.size() > 1)
+            {
+                records.putInt(0);
+            }
+
+            for (int i = 0; expiring && i < set.size(); i++)
+            {
+                records.putLong(set.getExpires(i));
+            }
+
+            for (int i = 0; i < set.size(); i++)
+            {
+                IPAddress address = set.get(i);
+
+                if (address.isIPv6())
+                {
+                    records.put((byte) 16);
+                    records.putLong(address.getHigh());
+                    records.putLong(address.getLow());
+                } else
+                {
+                    if (mixed)
+                    {
+                        records.put((byte) 4);
+                    }
+
+                    records.putInt(address.getValue());
+                }
+            }
+        }
+
+        private static boolean isMixed(RecordSet set)
+        {
+            for (int i = 0; i < set.size(); i++)
+            {
+                if (set.get(i).isIPv6())
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static boolean isExpiring(RecordSet set)
+        {
+            for (int i = 0; i < set.size(); i++)
+            {
+                if (set.getExpires(i) != 0)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static int mix(int hash)
+        {
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Finds the record of the domain name
+         *
+         * @param domain The domain name
+         * @return The index of its record, -1 if it has none
+         */
+        int find(DomainName domain)
+        {
+            int hash = domain.hashCode();
+            int slot = mix(hash) & mask;
+
+            while (true)
+            {
+                int record = slots.getInt(slot * SLOT_SIZE + 4) - 1;
+
+                if (record < 0)
+                {
+                    return -1;
+                }
+
+                if (slots.getInt(slot * SLOT_SIZE) == hash
+                        && domain.equalsAscii(records, record + 1, records.get(record) & 0xFF))
+                {
+                    return record;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Finds the record of a name given as text
+         *
+         * @param name The domain name in any case
+         * @param hash Its hash, from DomainName.hashIgnoreCase
+         * @return The index of its record, -1 if it has none
+         */
+        int find(CharSequence name, int hash)
+        {
+            int slot = mix(hash) & mask;
+
+            while (true)
+            {
+                int record = slots.getInt(slot * SLOT_SIZE + 4) - 1;
+
+                if (record < 0)
+                {
+                    return -1;
+                }
+
+                if (slots.getInt(slot * SLOT_SIZE) == hash && equalsIgnoreCase(record, name))
+                {
+                    return record;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Gets the next address of the type in the record's rotation
+         *
+         * @param record The index of the record
+         * @param type The type of record to answer with
+         * @param now The current time in milliseconds, addresses expired by then are skipped
+         * @return The address, null if the record has none of the type
+         */
+        IPAddress next(int record, RecordType type, long now)
+        {
+            int start = start(record, type, now);
+
+            return start >= 0 ? toAddress(address(record, start), isMixed(record)) : null;
+        }
+
+        /**
+         * Gets every address of the type in the record, starting at the next one in its rotation
+         *
+         * @param record The index of the record
+         * @param type The type of record to answer with
+         * @param now The current time in milliseconds, addresses expired by then are skipped
+         * @return The rotated addresses
+         */
+        List<IPAddress> rotate(int record, RecordType type, long now)
+        {
+            int start = start(record, type, now);
+
+            if (start < 0)
+            {
+                return Collections.emptyList();
+            }
+
+            int count = count(record);
+            boolean mixed = isMixed(record);
+            List<IPAddress> rotated = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++)
+            {
+                int position = (start + i) % count;
+
+                if (isLive(record, position, type, mixed, now))
+                {
+                    rotated.add(toAddress(address(record, position), mixed));
+                }
+            }
+
+            return rotated;
+        }
+
+        /**
+         * Gets the next IPv4 address in the record's rotation as its value
+         *
+         * @param record The index of the record
+         * @param now The current time in milliseconds, addresses expired by then are skipped
+         * @return The 32 bit address in the low bits, -1 if the record has no IPv4 address
+         */
+        long nextIPv4(int record, long now)
+        {
+            int start = start(record, RecordType.A, now);
+
+            return start >= 0 ? records.getInt(address(record, start)) & 0xFFFFFFFFL : -1;
+        }
+
+        /**
+         * Copies the IPv4 addresses of the record, starting at the next one in its rotation, as their values
+         *
+         * @param record The index of the record
+         * @param now The current time in milliseconds, addresses expired by then are skipped
+         * @param rotated Where the addresses are copied, only as many as fit
+         * @param expires Where the time each copied address expires is copied, 0 for never, or null
+         * @return The number of addresses copied
+         */
+        int rotateIPv4(int record, long now, int[] rotated, long[] expires)
+        {
+            int start = start(record, RecordType.A, now);
+            int count = count(record);
+            boolean mixed = isMixed(record);
+            boolean expiring = isExpiring(record);
+            int copied = 0;
+
+            for (int i = 0; start >= 0 && i < count && copied < rotated.length; i++)
+            {
+                int position = (start + i) % count;
+
+                if (isLive(record, position, RecordType.A, mixed, now))
+                {
+                    if (expires != null)
+                    {
+                        expires[copied] = expiring ? records.getLong(expires(record, position)) : 0;
+                    }
+
+                    rotated[copied++] = records.getInt(address(record, position));
+                }
+            }
+
+            return copied;
+        }
+
+        /**
+         * Bumps the record's rotation and picks the address it starts at, counting only the live addresses of the
+         * type like RecordSet does
+         *
+         * @param record The index of the record
+         * @param type The type of record to answer with
+         * @param now The current time in milliseconds
+         * @return The position of the address to start at, -1 if the record has no live address of the type
+         */
+        private int start(int record, RecordType type, long now)
+        {
+            int count = count(record);
+            boolean mixed = isMixed(record);
+            int live = 0;
+
+            if (!mixed && !isExpiring(record))
+            {
+                // Every address is IPv4 and none expires, so no address needs to be looked at
+                live = type != RecordType.AAAA ? count : 0;
+            } else
+            {
+                for (int position = 0; position < count; position++)
+                {
+                    if (isLive(record, position, type, mixed, now))
+                    {
+                        live++;
+                    }
+                }
+            }
+
+            if (live == 0)
+            {
+                return -1;
+            }
+
+            int skip = live > 1 ? rotation(record) % live : 0;
+
+            if (live == count)
+            {
+                return skip;
+            }
+
+            for (int position = 0; ; position++)
+            {
+                if (isLive(record, position, type, mixed, now) && skip-- == 0)
+                {
+                    return position;
+                }
+            }
+        }
+
+        private boolean isLive(int record, int position, RecordType type, boolean mixed, long now)
+        {
+            return (type == RecordType.ANY || (type == RecordType.AAAA) == isIPv6(address(record, position), mixed))
+                    && !isExpired(record, position, now);
+        }
+
+        RecordSet recordSet(int record)
+        {
+            IPAddress[] addresses = new IPAddress[count(record)];
+            long[] expires = isExpiring(record) ? new long[addresses.length] : null;
+            boolean mixed = isMixed(record);
+
+            for (int i = 0; i < addresses.length; i++)
+            {
+                addresses[i] = toAddress(address(record, i), mixed);
+
+                if (expires != null)
+                {
+                    expires[i] = records.getLong(expires(record, i));
+                }
+            }
+
+            return RecordSet.of(addresses, expires);
+        }
+
+        void forEach(BiConsumer<DomainName, RecordSet> action)
+        {
+            ByteSequence name = new ByteSequence();
+
+            for (int record = 0; record < records.capacity(); )
+            {
+                int nameLength = records.get(record) & 0xFF;
+                DomainName domain = DomainName.ofCanonical(name.set(records, record + 1, record + 1 + nameLength));
+
+                action.accept(domain, recordSet(record));
+
+                int last = address(record, count(record) - 1);
+
+                record = last + (isIPv6(last, isMixed(record)) ? 16 : 4);
+            }
+        }
+
+        private int count(int record)
+        {
+            return records.getShort(countIndex(record)) & MAX_ADDRESSES;
+        }
+
+        private boolean isMixed(int record)
+        {
+            return (records.getShort(countIndex(record)) & MIXED) != 0;
+        }
+
+        private boolean isExpiring(int record)
+        {
+            return (records.getShort(countIndex(record)) & EXPIRING) != 0;
+        }
+
+        private boolean isExpired(int record, int position, long now)
+        {
+            if (!isExpiring(record))
+            {
+                return false;
+            }
+
+            long expires = records.getLong(expires(record, position));
+
+            return expires != 0 && expires <= now;
+        }
+
+        /**
+         * Compares the record's name with a name in any case
+         */
+        private boolean equalsIgnoreCase(int record, CharSequence name)
+        {
+            int length = records.get(record) & 0xFF;
+
+            if (length != name.length())
+            {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                char c = name.charAt(i);
+
+                if ((c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c) != records.get(record + 1 + i))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private int countIndex(int record)
+        {
+            return record + 1 + (records.get(record) & 0xFF);
+        }
+
+        /**
+         * Bumps the record's rotation counter
+         *
+         * @return The counter before it was bumped, never negative
+         */
+        private int rotation(int record)
+        {
+            int index = countIndex(record) + 2;
+            int rotation = records.getInt(index);
+
+            records.putInt(index, rotation + 1);
+
+            return rotation & Integer.MAX_VALUE;
+        }
+
+        /**
+         * Finds when an address of an expiring record expires
+         *
+         * @param record The index of the record
+         * @param position The position of the address in the record
+         * @return The index of the time in milliseconds
+         */
+        private int expires(int record, int position)
+        {
+            return countIndex(record) + 2 + (count(record) > 1 ? 4 : 0) + 8 * position;
+        }
+
+        /**
+         * Finds an address of the record
+         *
+         * @param record The index of the record
+         * @param position The position of the address in the record
+         * @return The index of the address bytes, the byte before holds the length in a mixed record
+         */
+        private int address(int record, int position)
+        {
+            int count = count(record);
+            int index = countIndex(record) + 2 + (count > 1 ? 4 : 0) + (isExpiring(record) ? 8 * count : 0);
+
+            if (!isMixed(record))
+            {
+                return index + 4 * position;
+            }
+
+            for (int i = 0; i < position; i++)
+            {
+                index += 1 + (records.get(index) & 0xFF);
+            }
+
+            return index + 1;
+        }
+
+        private boolean isIPv6(int address, boolean mixed)
+        {
+            return mixed && records.get(address - 1) == 16;
+        }
+
+        private IPAddress toAddress(int address, boolean mixed)
+        {
+            if (isIPv6(address, mixed))
+            {
+                return new IPAddress(records.getLong(address), records.getLong(address + 8));
+            }
+
+            return new IPAddress(records.getInt(address));
+        }
+    }
+}
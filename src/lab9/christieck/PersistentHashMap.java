@@ -0,0 +1,533 @@
+package lab9.christieck;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * An immutable hash array mapped trie. Every put or remove returns a new map that shares all but the changed path
+ * with the old one, so holding on to an old version costs nothing and reading one needs no locking.
+ *
+ * Each level of the trie consumes five bits of the hash, keys whose whole hash is equal share a collision node.
+ * A Builder edits the nodes it created in place, which is how a large map is loaded without copying every path.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class PersistentHashMap<K, V>
+{
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty()
+    {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Gets the value for the key
+     *
+     * @param key The key to look up
+     * @return The value, null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key)
+    {
+        return root == null ? null : (V) root.get(0, key.hashCode(), key);
+    }
+
+    /**
+     * Gets the value for the key that matches a probe, which finds a key without building one, such as a domain name
+     * still in the bytes of a query
+     *
+     * @param hash The hash code the key would have
+     * @param probe What the keys are matched against
+     * @param matcher Whether a key matches the probe, a non-capturing one keeps the lookup free of allocations
+     * @param <P> The type of the probe
+     * @return The value, null if no key matches
+     */
+    @SuppressWarnings("unchecked")
+    <P> V get(int hash, P probe, BiPredicate<? super K, ? super P> matcher)
+    {
+        return root == null ? null : (V) root.get(0, hash, probe, (BiPredicate<Object, Object>) matcher);
+    }
+
+    /**
+     * Gets a map with the key set to the value
+     *
+     * @param key The key to set
+     * @param value The value to set, not null
+     * @return The new map, this map if the key already had the value
+     */
+    PersistentHashMap<K, V> put(K key, V value)
+    {
+        Change change = new Change();
+        Node node = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = node.put(null, 0, key.hashCode(), key, value, change);
+
+        return newRoot == root ? this : new PersistentHashMap<>(newRoot, change.added ? size + 1 : size);
+    }
+
+    /**
+     * Gets a map without the key
+     *
+     * @param key The key to remove
+     * @return The new map, this map if the key was not in it
+     */
+    PersistentHashMap<K, V> remove(Object key)
+    {
+        if (root == null)
+        {
+            return this;
+        }
+
+        Node newRoot = root.remove(0, key.hashCode(), key);
+
+        return newRoot == root ? this : new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Calls the action for every key and value, in no particular order
+     *
+     * @param action The action to call
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action)
+    {
+        if (root != null)
+        {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    /**
+     * Builds a map with in-place edits, only the nodes the builder created itself are edited
+     *
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     */
+    static final class Builder<K, V>
+    {
+        private Object edit = new Object();
+
+        private Node root;
+        private int size;
+
+        Builder()
+        {
+        }
+
+        Builder(PersistentHashMap<K, V> map)
+        {
+            root = map.root;
+            size = map.size;
+        }
+
+        Builder<K, V> put(K key, V value)
+        {
+            ensureEditable();
+
+            Change change = new Change();
+            Node node = root == null ? BitmapNode.EMPTY : root;
+
+            root = node.put(edit, 0, key.hashCode(), key, value, change);
+
+            if (change.added)
+            {
+                size++;
+            }
+
+            return this;
+        }
+
+        /**
+         * Finishes the map, the builder can not be used afterwards
+         *
+         * @return The built map
+         */
+        PersistentHashMap<K, V> build()
+        {
+            ensureEditable();
+            edit = null;
+
+            return size == 0 ? empty() : new PersistentHashMap<>(root, size);
+        }
+
+        private void ensureEditable()
+        {
+            if (edit == null)
+            {
+                throw new IllegalStateException("The map has already been built");
+            }
+        }
+    }
+
+    /**
+     * Reports whether a put added a key rather than replacing a value
+     */
+    private static final class Change
+    {
+        boolean added;
+    }
+
+    private abstract static class Node
+    {
+        abstract Object get(int shift, int hash, Object key);
+
+        abstract Object get(int shift, int hash, Object probe, BiPredicate<Object, Object> matcher);
+
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, Change change);
+
+        /**
+         * @return The node without the key, this node if the key is not in it, null if the node is now empty
+         */
+        abstract Node remove(int shift, int hash, Object key);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * A node with up to 32 slots, the bitmap tells which are used. The array holds a key and value per slot, or a
+     * null key and the child node.
+     */
+    private static final class BitmapNode extends Node
+    {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        final Object edit;
+
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array)
+        {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if ((bitmap & bit) == 0)
+            {
+                return null;
+            }
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object slotKey = array[index];
+
+            if (slotKey == null)
+            {
+                return ((Node) array[index + 1]).get(shift + 5, hash, key);
+            }
+
+            return key.equals(slotKey) ? array[index + 1] : null;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object probe, BiPredicate<Object, Object> matcher)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if ((bitmap & bit) == 0)
+            {
+                return null;
+            }
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object slotKey = array[index];
+
+            if (slotKey == null)
+            {
+                return ((Node) array[index + 1]).get(shift + 5, hash, probe, matcher);
+            }
+
+            return matcher.test(slotKey, probe) ? array[index + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Change change)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+
+            if ((bitmap & bit) == 0)
+            {
+                Object[] newArray = new Object[array.length + 2];
+
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+
+                change.added = true;
+
+                if (edit != null && this.edit == edit)
+                {
+                    bitmap |= bit;
+                    array = newArray;
+
+                    return this;
+                }
+
+                return new BitmapNode(edit, bitmap | bit, newArray);
+            }
+
+            Object slotKey = array[index];
+            Object slotValue = array[index + 1];
+
+            if (slotKey == null)
+            {
+                Node child = ((Node) slotValue).put(edit, shift + 5, hash, key, value, change);
+
+                return child == slotValue ? this : set(edit, index + 1, child);
+            }
+
+            if (key.equals(slotKey))
+            {
+                return value.equals(slotValue) ? this : set(edit, index + 1, value);
+            }
+
+            change.added = true;
+
+            Node child = createNode(edit, shift + 5, slotKey, slotValue, hash, key, value);
+            BitmapNode node = set(edit, index, null);
+
+            node.array[index + 1] = child;
+
+            return node;
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if ((bitmap & bit) == 0)
+            {
+                return this;
+            }
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object slotKey = array[index];
+
+            if (slotKey == null)
+            {
+                Node child = ((Node) array[index + 1]).remove(shift + 5, hash, key);
+
+                if (child == array[index + 1])
+                {
+                    return this;
+                }
+
+                if (child != null)
+                {
+                    return set(null, index + 1, child);
+                }
+            } else if (!key.equals(slotKey))
+            {
+                return this;
+            }
+
+            if (bitmap == bit)
+            {
+                return null;
+            }
+
+            Object[] newArray = new Object[array.length - 2];
+
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+
+            return new BitmapNode(null, bitmap ^ bit, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (array[i] == null)
+                {
+                    ((Node) array[i + 1]).forEach(action);
+                } else
+                {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        /**
+         * Sets an array element, in place when the node belongs to the edit and on a copy otherwise
+         */
+        private BitmapNode set(Object edit, int index, Object element)
+        {
+            if (edit != null && this.edit == edit)
+            {
+                array[index] = element;
+
+                return this;
+            }
+
+            Object[] newArray = array.clone();
+            newArray[index] = element;
+
+            return new BitmapNode(edit, bitmap, newArray);
+        }
+
+        /**
+         * Creates the node that holds two keys which ended up in the same slot
+         */
+        private static Node createNode(Object edit, int shift, Object key1, Object value1, int hash2, Object key2,
+                                       Object value2)
+        {
+            int hash1 = key1.hashCode();
+
+            if (hash1 == hash2)
+            {
+                return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+            }
+
+            Change ignored = new Change();
+
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, shift, hash1, key1, value1, ignored)
+                    .put(edit, shift, hash2, key2, value2, ignored);
+        }
+    }
+
+    /**
+     * The keys and values of keys with the same hash, searched linearly
+     */
+    private static final class CollisionNode extends Node
+    {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array)
+        {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object get(int shift, int hash, Object key)
+        {
+            int index = indexOf(key);
+
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        Object get(int shift, int hash, Object probe, BiPredicate<Object, Object> matcher)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (matcher.test(array[i], probe))
+                {
+                    return array[i + 1];
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Change change)
+        {
+            if (hash != this.hash)
+            {
+                // Another hash reached this slot, push the collisions one level down behind a bitmap node
+                BitmapNode node = new BitmapNode(edit, 1 << ((this.hash >>> shift) & 31), new Object[] { null, this });
+
+                return node.put(edit, shift, hash, key, value, change);
+            }
+
+            int index = indexOf(key);
+
+            if (index >= 0)
+            {
+                if (value.equals(array[index + 1]))
+                {
+                    return this;
+                }
+
+                Object[] newArray = array.clone();
+                newArray[index + 1] = value;
+
+                return new CollisionNode(hash, newArray);
+            }
+
+            Object[] newArray = new Object[array.length + 2];
+
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+
+            change.added = true;
+
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key)
+        {
+            int index = indexOf(key);
+
+            if (index < 0)
+            {
+                return this;
+            }
+
+            if (array.length == 2)
+            {
+                return null;
+            }
+
+            Object[] newArray = new Object[array.length - 2];
+
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (key.equals(array[i]))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
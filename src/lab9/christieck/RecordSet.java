@@ -0,0 +1,353 @@
+package lab9.christieck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The IP addresses of one domain name, in the order they were added. A set never changes once made, adding or
+ * removing an address gives a new set.
+ *
+ * An address can expire, at a time in milliseconds kept next to it. Expired addresses are never handed out, even
+ * before the expiry engine gets round to removing them. A set without any expiring address keeps no times at all.
+ *
+ * Lookups hand the addresses out round-robin. The rotation turns over the live addresses of the type asked for alone,
+ * so each IPv4 address leads an A answer equally often however the IPv6 ones are interleaved with them. The rotation
+ * counter is a plain field that every reader bumps without synchronization, a lost increment only means two answers
+ * start at the same address, which is cheaper than contending on a shared atomic.
+ */
+final class RecordSet
+{
+    private final IPAddress[] addresses;
+
+    /**
+     * When each address expires, 0 for never, null if none of them ever does
+     */
+    private final long[] expires;
+
+    private int rotation;
+
+    private RecordSet(IPAddress[] addresses, long[] expires)
+    {
+        this.addresses = addresses;
+        this.expires = expires;
+    }
+
+    /**
+     * Creates a set holding a single address
+     *
+     * @param address The address of the record
+     * @return The new set
+     */
+    static RecordSet of(IPAddress address)
+    {
+        return new RecordSet(new IPAddress[] { address }, null);
+    }
+
+    /**
+     * Creates a set holding a single address that may expire
+     *
+     * @param address The address of the record
+     * @param expires When the record expires in milliseconds, 0 for never
+     * @return The new set
+     */
+    static RecordSet of(IPAddress address, long expires)
+    {
+        return new RecordSet(new IPAddress[] { address }, expires != 0 ? new long[] { expires } : null);
+    }
+
+    /**
+     * Creates a set holding the addresses, in their order
+     *
+     * @param addresses The addresses of the records, no two equal
+     * @param expires When each record expires in milliseconds, 0 for never, null if none of them does
+     * @return The new set
+     */
+    static RecordSet of(IPAddress[] addresses, long[] expires)
+    {
+        return new RecordSet(addresses, expires);
+    }
+
+    int size()
+    {
+        return addresses.length;
+    }
+
+    IPAddress get(int index)
+    {
+        return addresses[index];
+    }
+
+    /**
+     * Gets when the address at the position expires
+     *
+     * @param index The position of the address
+     * @return The time in milliseconds, 0 if it never expires
+     */
+    long getExpires(int index)
+    {
+        return expires != null ? expires[index] : 0;
+    }
+
+    /**
+     * Whether any address of the set expires
+     *
+     * @return If any address has an expiry
+     */
+    boolean isExpiring()
+    {
+        return expires != null;
+    }
+
+    /**
+     * Whether the address at the position has expired
+     *
+     * @param index The position of the address
+     * @param now The current time in milliseconds
+     * @return If it has expired
+     */
+    boolean isExpired(int index, long now)
+    {
+        return expires != null && expires[index] != 0 && expires[index] <= now;
+    }
+
+    /**
+     * Gets the position of the address in the set
+     *
+     * @param address The address to find
+     * @return The position, -1 if the address is not in the set
+     */
+    int indexOf(IPAddress address)
+    {
+        for (int i = 0; i < addresses.length; i++)
+        {
+            if (addresses[i].equals(address))
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets a set with the address inserted at the position
+     *
+     * @param address The address to insert, which is not in the set yet
+     * @param expires When the address expires in milliseconds, 0 for never
+     * @param index The position to insert it at, past the end appends it
+     * @return The new set
+     */
+    RecordSet with(IPAddress address, long expires, int index)
+    {
+        index = Math.min(index, addresses.length);
+
+        IPAddress[] newAddresses = new IPAddress[addresses.length + 1];
+
+        System.arraycopy(addresses, 0, newAddresses, 0, index);
+        newAddresses[index] = address;
+        System.arraycopy(addresses, index, newAddresses, index + 1, addresses.length - index);
+
+        long[] newExpires = null;
+
+        if (this.expires != null || expires != 0)
+        {
+            newExpires = new long[newAddresses.length];
+
+            if (this.expires != null)
+            {
+                System.arraycopy(this.expires, 0, newExpires, 0, index);
+                System.arraycopy(this.expires, index, newExpires, index + 1, addresses.length - index);
+            }
+
+            newExpires[index] = expires;
+        }
+
+        return new RecordSet(newAddresses, newExpires);
+    }
+
+    /**
+     * Gets a set without the address at the position
+     *
+     * @param index The position of the address to remove
+     * @return The new set, null if it would be empty
+     */
+    RecordSet without(int index)
+    {
+        if (addresses.length == 1)
+        {
+            return null;
+        }
+
+        IPAddress[] newAddresses = new IPAddress[addresses.length - 1];
+
+        System.arraycopy(addresses, 0, newAddresses, 0, index);
+        System.arraycopy(addresses, index + 1, newAddresses, index, addresses.length - index - 1);
+
+        long[] newExpires = null;
+
+        if (expires != null)
+        {
+            newExpires = new long[newAddresses.length];
+
+            System.arraycopy(expires, 0, newExpires, 0, index);
+            System.arraycopy(expires, index + 1, newExpires, index, addresses.length - index - 1);
+
+            // Only keep the times while some address still expires
+            boolean expiring = false;
+
+            for (long time : newExpires)
+            {
+                expiring |= time != 0;
+            }
+
+            if (!expiring)
+            {
+                newExpires = null;
+            }
+        }
+
+        return new RecordSet(newAddresses, newExpires);
+    }
+
+    /**
+     * Gets the next address of the type in the rotation
+     *
+     * @param type The type of record to answer with
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The address to answer with, null if the set has none of the type
+     */
+    IPAddress next(RecordType type, long now)
+    {
+        if (addresses.length == 1)
+        {
+            return type.matches(addresses[0]) && !isExpired(0, now) ? addresses[0] : null;
+        }
+
+        int start = start(type, now);
+
+        return start >= 0 ? addresses[start] : null;
+    }
+
+    /**
+     * Gets the next IPv4 address in the rotation as its value, so nothing is allocated for it
+     *
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The 32 bit address in the low bits, -1 if the set has no IPv4 address
+     */
+    long nextIPv4(long now)
+    {
+        IPAddress address = next(RecordType.A, now);
+
+        return address != null ? address.getValue() & 0xFFFFFFFFL : -1;
+    }
+
+    /**
+     * Copies the IPv4 addresses, starting at the next one in the rotation, as their values
+     *
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @param rotated Where the addresses are copied, only as many as fit
+     * @param expires Where the time each copied address expires is copied, 0 for never, or null
+     * @return The number of addresses copied
+     */
+    int rotateIPv4(long now, int[] rotated, long[] expires)
+    {
+        int start = start(RecordType.A, now);
+        int count = 0;
+
+        for (int i = 0; start >= 0 && i < addresses.length && count < rotated.length; i++)
+        {
+            int index = (start + i) % addresses.length;
+
+            if (isLive(index, RecordType.A, now))
+            {
+                if (expires != null)
+                {
+                    expires[count] = this.expires != null ? this.expires[index] : 0;
+                }
+
+                rotated[count++] = addresses[index].getValue();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets every address of the type, starting at the next one in the rotation
+     *
+     * @param type The type of record to answer with
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The rotated addresses
+     */
+    List<IPAddress> rotate(RecordType type, long now)
+    {
+        if (addresses.length == 1)
+        {
+            return type.matches(addresses[0]) && !isExpired(0, now)
+                    ? Collections.singletonList(addresses[0])
+                    : Collections.emptyList();
+        }
+
+        int start = start(type, now);
+
+        if (start < 0)
+        {
+            return Collections.emptyList();
+        }
+
+        List<IPAddress> rotated = new ArrayList<>(addresses.length);
+
+        for (int i = 0; i < addresses.length; i++)
+        {
+            int index = (start + i) % addresses.length;
+
+            if (isLive(index, type, now))
+            {
+                rotated.add(addresses[index]);
+            }
+        }
+
+        return rotated;
+    }
+
+    /**
+     * Bumps the rotation and picks the address it starts at, counting only the live addresses of the type
+     *
+     * @param type The type of record to answer with
+     * @param now The current time in milliseconds
+     * @return The position of the address to start at, -1 if the set has no live address of the type
+     */
+    private int start(RecordType type, long now)
+    {
+        int live = 0;
+
+        for (int i = 0; i < addresses.length; i++)
+        {
+            if (isLive(i, type, now))
+            {
+                live++;
+            }
+        }
+
+        if (live == 0)
+        {
+            return -1;
+        }
+
+        int skip = live > 1 ? (rotation++ & Integer.MAX_VALUE) % live : 0;
+
+        for (int i = 0; ; i++)
+        {
+            if (isLive(i, type, now) && skip-- == 0)
+            {
+                return i;
+            }
+        }
+    }
+
+    private boolean isLive(int index, RecordType type, long now)
+    {
+        return type.matches(addresses[index]) && !isExpired(index, now);
+    }
+}
@@ -0,0 +1,19 @@
+package lab9.christieck;
+
+/**
+ * Where the server keeps its records, chosen when it is created
+ */
+public enum RecordStorage
+{
+    /**
+     * A persistent hash trie on the heap, the default
+     */
+    HEAP,
+
+    /**
+     * An open-addressing table in direct memory, keyed on the bytes of the domain names with the addresses stored
+     * inline. The table is rebuilt from time to time and the changes since are kept on the heap, so a very large zone
+     * costs the garbage collector almost nothing to trace. The table is limited to 2 GB of names and addresses.
+     */
+    OFF_HEAP
+}
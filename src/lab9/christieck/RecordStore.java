@@ -0,0 +1,143 @@
+package lab9.christieck;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable version of the records, every change gives a new store and leaves this one as it was
+ */
+interface RecordStore
+{
+    /**
+     * Gets the records of the domain name
+     *
+     * @param domain The domain name
+     * @return The records, null if it has none
+     */
+    RecordSet get(DomainName domain);
+
+    /**
+     * Gets the next address of the type in the domain name's rotation
+     *
+     * @param domain The domain name
+     * @param type The type of record to answer with
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The address, null if the name has none of the type
+     */
+    IPAddress next(DomainName domain, RecordType type, long now);
+
+    /**
+     * Gets every address of the type the domain name has, starting at the next one in its rotation
+     *
+     * @param domain The domain name
+     * @param type The type of record to answer with
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The addresses, empty if the name has none of the type
+     */
+    List<IPAddress> rotate(DomainName domain, RecordType type, long now);
+
+    /**
+     * Gets the next IPv4 address in the rotation of a name given as text, comparing it against the stored names in
+     * place so neither a DomainName nor an IPAddress is allocated
+     *
+     * @param name The domain name in any case, not validated
+     * @param hash Its hash, from DomainName.hashIgnoreCase
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @return The 32 bit address in the low bits, -1 if the name has no IPv4 address
+     */
+    long nextIPv4(CharSequence name, int hash, long now);
+
+    /**
+     * Copies the IPv4 addresses of a name given as text, starting at the next one in its rotation, without
+     * allocating anything
+     *
+     * @param name The domain name in any case, not validated
+     * @param hash Its hash, from DomainName.hashIgnoreCase
+     * @param now The current time in milliseconds, addresses expired by then are skipped
+     * @param rotated Where the addresses are copied, only as many as fit
+     * @param expires Where the time each copied address expires in milliseconds is copied, 0 for never, or null
+     * @return The number of addresses copied
+     */
+    int rotateIPv4(CharSequence name, int hash, long now, int[] rotated, long[] expires);
+
+    /**
+     * Gets a store with the records of the domain name replaced
+     *
+     * @param domain The domain name
+     * @param set Its new records
+     * @return The new store
+     */
+    RecordStore with(DomainName domain, RecordSet set);
+
+    /**
+     * Gets a store without the domain name
+     *
+     * @param domain The domain name
+     * @return The new store, this store if the name had no records
+     */
+    RecordStore without(DomainName domain);
+
+    /**
+     * Gets the number of domain names with records
+     *
+     * @return The number of domain names
+     */
+    int size();
+
+    /**
+     * Gets the direct memory table the store reads from, which versions share until the table is rebuilt
+     *
+     * @return The table, null if the store keeps its records on the heap
+     */
+    Object offHeapTable();
+
+    /**
+     * Calls the action for every domain name and its records, in no particular order
+     *
+     * @param action The action to call
+     */
+    void forEach(BiConsumer<DomainName, RecordSet> action);
+
+    /**
+     * Creates an empty store of the kind
+     *
+     * @param storage Where the store keeps its records
+     * @return The empty store
+     */
+    static RecordStore empty(RecordStorage storage)
+    {
+        return storage == RecordStorage.OFF_HEAP ? OffHeapRecordStore.EMPTY : HeapRecordStore.EMPTY;
+    }
+
+    /**
+     * Creates a builder for a store of the kind
+     *
+     * @param storage Where the store keeps its records
+     * @return The builder
+     */
+    static Builder builder(RecordStorage storage)
+    {
+        return storage == RecordStorage.OFF_HEAP ? new OffHeapRecordStore.Builder() : new HeapRecordStore.Builder();
+    }
+
+    /**
+     * Builds a store from many records at once
+     */
+    interface Builder
+    {
+        /**
+         * Adds the records of a domain name, which is not in the store yet
+         *
+         * @param domain The domain name
+         * @param set Its records
+         */
+        void put(DomainName domain, RecordSet set);
+
+        /**
+         * Finishes the store, the builder can not be used afterwards
+         *
+         * @return The built store
+         */
+        RecordStore build();
+    }
+}
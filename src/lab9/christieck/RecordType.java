@@ -0,0 +1,33 @@
+package lab9.christieck;
+
+/**
+ * The kinds of address records a lookup can ask for
+ */
+public enum RecordType
+{
+    /**
+     * IPv4 addresses
+     */
+    A,
+
+    /**
+     * IPv6 addresses
+     */
+    AAAA,
+
+    /**
+     * Both IPv4 and IPv6 addresses
+     */
+    ANY;
+
+    /**
+     * Whether the address is a record of this type
+     *
+     * @param address The address to check
+     * @return If the address matches
+     */
+    public boolean matches(IPAddress address)
+    {
+        return this == ANY || (this == AAAA) == address.isIPv6();
+    }
+}
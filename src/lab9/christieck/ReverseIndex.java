@@ -0,0 +1,448 @@
+package lab9.christieck;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable index from IPv4 addresses to the domain names that point at them, so reverse lookups never scan the
+ * records. It is a radix trie over the packed address, four bits per level, so a CIDR range is one subtree plus at
+ * most one partly covered level. Changes copy only the eight nodes on the path, which lets every version of the
+ * records carry its own index.
+ *
+ * Each node keeps a bitmap of its used children and an array of just those, the last level holds the domain names
+ * of one address. A few names are kept in an array in the order they were added. An address shared by more than
+ * LARGE_LEAF names, such as a CDN's, keeps them in a PersistentHashMap instead, so adding or removing one is not a
+ * scan and a copy of all of them.
+ */
+final class ReverseIndex
+{
+    static final ReverseIndex EMPTY = new ReverseIndex(null);
+
+    private static final int LEVELS = 8;
+    private static final int BITS = 4;
+
+    // Leaves hash their names past this size and go back to an array at half of it, so they do not flip back and forth
+    private static final int LARGE_LEAF = 32;
+
+    private final Node root;
+
+    private ReverseIndex(Node root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Gets an index with the domain name added to the address
+     *
+     * @param address The packed IPv4 address
+     * @param domain The domain name pointing at it
+     * @return The new index, this index if the domain name was already there
+     */
+    ReverseIndex with(int address, DomainName domain)
+    {
+        Node newRoot = (Node) insert(root, 0, address, domain, null);
+
+        return newRoot == root ? this : new ReverseIndex(newRoot);
+    }
+
+    /**
+     * Gets an index without the domain name for the address
+     *
+     * @param address The packed IPv4 address
+     * @param domain The domain name that no longer points at it
+     * @return The new index, this index if the domain name was not there
+     */
+    ReverseIndex without(int address, DomainName domain)
+    {
+        if (root == null)
+        {
+            return this;
+        }
+
+        Node newRoot = (Node) remove(root, 0, address, domain);
+
+        return newRoot == root ? this : new ReverseIndex(newRoot);
+    }
+
+    /**
+     * Gets the domain names that point at the address
+     *
+     * @param address The packed IPv4 address
+     * @return The domain names, empty if there are none
+     */
+    List<DomainName> get(int address)
+    {
+        Object node = root;
+
+        for (int level = 0; level < LEVELS && node != null; level++)
+        {
+            node = ((Node) node).child(nibble(address, level));
+        }
+
+        List<DomainName> domains = new ArrayList<>();
+
+        if (node != null)
+        {
+            addAll(node, domains);
+        }
+
+        return domains;
+    }
+
+    /**
+     * Gets the domain names that point at any address of the range, ordered by address and without duplicates
+     *
+     * @param network The packed IPv4 address of the range, the bits past the prefix are ignored
+     * @param prefixLength The number of leading bits that fix the range, 0 to 32
+     * @return The domain names, empty if there are none
+     */
+    List<DomainName> range(int network, int prefixLength)
+    {
+        Set<DomainName> domains = new LinkedHashSet<>();
+
+        if (root != null)
+        {
+            collect(root, 0, network, prefixLength, domains);
+        }
+
+        return new ArrayList<>(domains);
+    }
+
+    private static void collect(Object node, int level, int network, int prefixLength, Set<DomainName> domains)
+    {
+        if (level == LEVELS)
+        {
+            addAll(node, domains);
+
+            return;
+        }
+
+        Node branch = (Node) node;
+
+        // How many bits of this level's nibble the prefix fixes, the rest may be anything
+        int fixedBits = Math.max(0, Math.min(BITS, prefixLength - level * BITS));
+        int mask = ((1 << BITS) - 1) & ~((1 << (BITS - fixedBits)) - 1);
+        int wanted = nibble(network, level) & mask;
+
+        int bits = branch.bitmap;
+
+        for (int i = 0; bits != 0; i++, bits &= bits - 1)
+        {
+            int nibble = Integer.numberOfTrailingZeros(bits);
+
+            if ((nibble & mask) == wanted)
+            {
+                collect(branch.children[i], level + 1, network, prefixLength, domains);
+            }
+        }
+    }
+
+    private static Object insert(Object node, int level, int address, DomainName domain, Object edit)
+    {
+        if (level == LEVELS)
+        {
+            return insertLeaf(node, domain, edit);
+        }
+
+        Node branch = node == null ? new Node(edit, 0, new Object[0]) : (Node) node;
+        int nibble = nibble(address, level);
+
+        Object child = branch.child(nibble);
+        Object newChild = insert(child, level + 1, address, domain, edit);
+
+        return newChild == child ? branch : branch.with(nibble, newChild, edit);
+    }
+
+    private static Object remove(Object node, int level, int address, DomainName domain)
+    {
+        if (level == LEVELS)
+        {
+            return removeLeaf(node, domain);
+        }
+
+        Node branch = (Node) node;
+        int nibble = nibble(address, level);
+
+        Object child = branch.child(nibble);
+
+        if (child == null)
+        {
+            return branch;
+        }
+
+        Object newChild = remove(child, level + 1, address, domain);
+
+        if (newChild == child)
+        {
+            return branch;
+        }
+
+        return newChild == null ? branch.without(nibble) : branch.with(nibble, newChild, null);
+    }
+
+    /**
+     * Adds the domain name to the names of an address
+     *
+     * @param leaf The names, null if there are none yet
+     * @param domain The domain name to add
+     * @param edit The builder's edit, null for a persistent change
+     * @return The new names, the same leaf if the domain name was already there or the builder added it in place
+     */
+    @SuppressWarnings("unchecked")
+    private static Object insertLeaf(Object leaf, DomainName domain, Object edit)
+    {
+        if (leaf == null)
+        {
+            return new DomainName[] { domain };
+        }
+
+        if (leaf instanceof PersistentHashMap.Builder)
+        {
+            ((PersistentHashMap.Builder<DomainName, DomainName>) leaf).put(domain, domain);
+
+            return leaf;
+        }
+
+        if (leaf instanceof PersistentHashMap)
+        {
+            PersistentHashMap<DomainName, DomainName> domains = (PersistentHashMap<DomainName, DomainName>) leaf;
+
+            return domains.get(domain) != null ? domains : domains.put(domain, domain);
+        }
+
+        DomainName[] domains = (DomainName[]) leaf;
+
+        for (DomainName existing : domains)
+        {
+            if (existing.equals(domain))
+            {
+                return domains;
+            }
+        }
+
+        if (domains.length == LARGE_LEAF)
+        {
+            // A builder fills a mutable map, which build() freezes, instead of copying the map for every name
+            PersistentHashMap.Builder<DomainName, DomainName> builder = new PersistentHashMap.Builder<>();
+
+            for (DomainName existing : domains)
+            {
+                builder.put(existing, existing);
+            }
+
+            builder.put(domain, domain);
+
+            return edit != null ? builder : builder.build();
+        }
+
+        DomainName[] newDomains = new DomainName[domains.length + 1];
+
+        System.arraycopy(domains, 0, newDomains, 0, domains.length);
+        newDomains[domains.length] = domain;
+
+        return newDomains;
+    }
+
+    /**
+     * Removes the domain name from the names of an address
+     *
+     * @param leaf The names
+     * @param domain The domain name to remove
+     * @return The new names, the same leaf if the domain name was not there, null if none are left
+     */
+    @SuppressWarnings("unchecked")
+    private static Object removeLeaf(Object leaf, DomainName domain)
+    {
+        if (leaf instanceof PersistentHashMap)
+        {
+            PersistentHashMap<DomainName, DomainName> domains = (PersistentHashMap<DomainName, DomainName>) leaf;
+            PersistentHashMap<DomainName, DomainName> newDomains = domains.remove(domain);
+
+            if (newDomains == domains || newDomains.size() > LARGE_LEAF / 2)
+            {
+                return newDomains;
+            }
+
+            DomainName[] small = new DomainName[newDomains.size()];
+            int[] count = new int[1];
+
+            newDomains.forEach((name, value) -> small[count[0]++] = name);
+
+            return small;
+        }
+
+        DomainName[] domains = (DomainName[]) leaf;
+
+        for (int i = 0; i < domains.length; i++)
+        {
+            if (domains[i].equals(domain))
+            {
+                if (domains.length == 1)
+                {
+                    return null;
+                }
+
+                DomainName[] newDomains = new DomainName[domains.length - 1];
+
+                System.arraycopy(domains, 0, newDomains, 0, i);
+                System.arraycopy(domains, i + 1, newDomains, i, domains.length - i - 1);
+
+                return newDomains;
+            }
+        }
+
+        return domains;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addAll(Object leaf, Collection<DomainName> domains)
+    {
+        if (leaf instanceof PersistentHashMap)
+        {
+            ((PersistentHashMap<DomainName, DomainName>) leaf).forEach((domain, value) -> domains.add(domain));
+        } else
+        {
+            Collections.addAll(domains, (DomainName[]) leaf);
+        }
+    }
+
+    private static int nibble(int address, int level)
+    {
+        return (address >>> (32 - BITS - level * BITS)) & ((1 << BITS) - 1);
+    }
+
+    /**
+     * Builds an index with in-place edits, only the nodes the builder created itself are edited
+     */
+    static final class Builder
+    {
+        private final Object edit = new Object();
+
+        private Node root;
+
+        Builder add(int address, DomainName domain)
+        {
+            root = (Node) insert(root, 0, address, domain, edit);
+
+            return this;
+        }
+
+        ReverseIndex build()
+        {
+            if (root == null)
+            {
+                return EMPTY;
+            }
+
+            freeze(root, 0);
+
+            return new ReverseIndex(root);
+        }
+
+        /**
+         * Replaces the maps the builder filled in place with the finished ones, every node here is the builder's
+         */
+        private static void freeze(Node node, int level)
+        {
+            for (int i = 0; i < node.children.length; i++)
+            {
+                Object child = node.children[i];
+
+                if (level + 1 < LEVELS)
+                {
+                    freeze((Node) child, level + 1);
+                } else if (child instanceof PersistentHashMap.Builder)
+                {
+                    node.children[i] = ((PersistentHashMap.Builder<?, ?>) child).build();
+                }
+            }
+        }
+    }
+
+    /**
+     * A level of the trie, the bitmap tells which of the sixteen children are used and the array holds just those
+     */
+    private static final class Node
+    {
+        final Object edit;
+
+        int bitmap;
+        Object[] children;
+
+        Node(Object edit, int bitmap, Object[] children)
+        {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        Object child(int nibble)
+        {
+            int bit = 1 << nibble;
+
+            return (bitmap & bit) == 0 ? null : children[Integer.bitCount(bitmap & (bit - 1))];
+        }
+
+        Node with(int nibble, Object child, Object edit)
+        {
+            int bit = 1 << nibble;
+            int index = Integer.bitCount(bitmap & (bit - 1));
+
+            if ((bitmap & bit) != 0)
+            {
+                if (edit != null && this.edit == edit)
+                {
+                    children[index] = child;
+
+                    return this;
+                }
+
+                Object[] newChildren = children.clone();
+                newChildren[index] = child;
+
+                return new Node(edit, bitmap, newChildren);
+            }
+
+            Object[] newChildren = new Object[children.length + 1];
+
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildren[index] = child;
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+
+            if (edit != null && this.edit == edit)
+            {
+                bitmap |= bit;
+                children = newChildren;
+
+                return this;
+            }
+
+            return new Node(edit, bitmap | bit, newChildren);
+        }
+
+        /**
+         * @return The node without the child, null if it has no children left
+         */
+        Node without(int nibble)
+        {
+            int bit = 1 << nibble;
+
+            if (bitmap == bit)
+            {
+                return null;
+            }
+
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            Object[] newChildren = new Object[children.length - 1];
+
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+
+            return new Node(null, bitmap ^ bit, newChildren);
+        }
+    }
+}
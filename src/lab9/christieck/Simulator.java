@@ -1,7 +1,5 @@
 package lab9.christieck;
 
-import javafx.util.Pair;
-
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -9,8 +7,12 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.InputMismatchException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 /**
  * The main simulator class that runs the DNS server
@@ -185,24 +187,48 @@ public class Simulator extends JFrame
      */
     private void onUpdateButtonClick(ActionEvent e)
     {
-        try (Scanner in = new Scanner(new File(UPDATE_FILE)))
+        updateButton.setEnabled(false);
+
+        new SwingWorker<UpdateSummary, Void>()
         {
-            while (in.hasNextLine())
+            @Override
+            protected UpdateSummary doInBackground() throws IOException
+            {
+                return dnsServer.applyUpdates(new File(UPDATE_FILE));
+            }
+
+            @Override
+            protected void done()
             {
+                updateButton.setEnabled(true);
+                updateUndoRedoButtons();
+
                 try
                 {
-                    dnsServer.update(in.nextLine());
-
-                    updateUndoRedoButtons();
-                } catch (InputMismatchException | IllegalArgumentException ex)
+                    UpdateSummary summary = get();
+
+                    if (summary.getRejected() > 0)
+                    {
+                        showError(summary + "\n" + String.join("\n", summary.getReasons()));
+                    } else
+                    {
+                        showMessage("Success", summary.toString());
+                    }
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex)
                 {
-                    showError(ex.getMessage());
+                    if (ex.getCause() instanceof FileNotFoundException)
+                    {
+                        showError("The DNS updates file could not be found");
+                    } else
+                    {
+                        showError("The DNS updates file could not be read: " + ex.getCause().getMessage());
+                    }
                 }
             }
-        } catch (FileNotFoundException e1)
-        {
-            showError("The DNS updates file could not be found");
-        }
+        }.execute();
     }
 
     /**
@@ -217,9 +243,11 @@ public class Simulator extends JFrame
             try
             {
                 String domain = domainNameField.getText();
-                IPAddress address = dnsServer.lookup(new DomainName(domain));
+                List<IPAddress> addresses = dnsServer.lookupAll(new DomainName(domain));
 
-                String ipAddress = address != null ? address.toString() : "Not found";
+                String ipAddress = !addresses.isEmpty()
+                        ? addresses.stream().map(IPAddress::toString).collect(Collectors.joining(", "))
+                        : "Not found";
 
                 showMessage("IP Address Lookup", "IP Address: " + ipAddress);
             } catch (IllegalArgumentException ex)
@@ -238,7 +266,7 @@ public class Simulator extends JFrame
     {
         try
         {
-            Pair<DomainName, IPAddress> domainAddress = getDomainAddressEntry();
+            Map.Entry<DomainName, IPAddress> domainAddress = getDomainAddressEntry();
 
             dnsServer.add(domainAddress.getKey(), domainAddress.getValue());
 
@@ -260,7 +288,7 @@ public class Simulator extends JFrame
     {
         try
         {
-            Pair<DomainName, IPAddress> domainAddress = getDomainAddressEntry();
+            Map.Entry<DomainName, IPAddress> domainAddress = getDomainAddressEntry();
 
             boolean success = dnsServer.delete(domainAddress.getKey(), domainAddress.getValue());
 
@@ -366,12 +394,12 @@ public class Simulator extends JFrame
      *
      * @return A pair of domain name and IP address
      */
-    private Pair<DomainName, IPAddress> getDomainAddressEntry()
+    private Map.Entry<DomainName, IPAddress> getDomainAddressEntry()
     {
         DomainName domain = new DomainName(domainNameField.getText());
         IPAddress address = new IPAddress(ipAddressField.getText());
 
-        return new Pair<>(domain, address);
+        return new AbstractMap.SimpleEntry<>(domain, address);
     }
 
     /**
@@ -0,0 +1,26 @@
+package lab9.christieck;
+
+/**
+ * The formats the records can be saved to the entries file in
+ */
+public enum SnapshotFormat
+{
+    /**
+     * One "ip\t\tdomain" line per record, re-parsed and re-validated on every start. A record that expires has the
+     * time it expires as a third column, "@" and the seconds since the epoch, so it is not kept past it by a restart.
+     * A hand-written TTL in seconds without the "@" counts from the start that loads it.
+     */
+    TEXT,
+
+    /**
+     * The magic and version, then [address length:1][address:4 or 16][domain length:1][domain bytes] per record,
+     * then the record count and a CRC32 of everything before it. The domains are stored already validated so loading
+     * skips the validation. A record that expires has the top bit of its address length set and the time it expires
+     * in milliseconds, eight bytes, after the address. Version 1 files, which only hold IPv4 addresses and no address
+     * length, and version 2 files, which have no expiring records, are still read.
+     */
+    BINARY;
+
+    static final int MAGIC = 0x444E5342;
+    static final int VERSION = 3;
+}
@@ -0,0 +1,190 @@
+package lab9.christieck;
+
+/**
+ * A hierarchical timing wheel, which schedules and fires timers in constant time each however many are pending.
+ * Each level is a ring of 64 slots, a slot of the first level spans one tick and a slot of every further level spans
+ * a whole turn of the level below. A timer goes into the lowest level whose turn reaches its deadline and moves down
+ * a level each time the level below wraps around, so it is touched at most once per level before it fires.
+ *
+ * Timers are never cancelled, the listener checks whether a fired timer still applies. The wheel is not thread safe.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class TimingWheel<K, V>
+{
+    private static final int LEVELS = 6;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private final long tickMillis;
+
+    private final Timer<K, V>[][] wheels = newWheels();
+
+    /**
+     * The last tick that has fired, the last one wholly in the past
+     */
+    private long tick;
+    private int size;
+
+    /**
+     * Creates an empty wheel
+     *
+     * @param tickMillis How many milliseconds a tick lasts, a timer fires once the tick its deadline is in has passed
+     * @param now The current time in milliseconds
+     */
+    TimingWheel(long tickMillis, long now)
+    {
+        this.tickMillis = tickMillis;
+        this.tick = lastPassed(now);
+    }
+
+    /**
+     * Creates the empty levels, an array of a generic type can only be created through a cast
+     *
+     * @return The slots of every level
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Timer<K, V>[][] newWheels()
+    {
+        return (Timer<K, V>[][]) new Timer<?, ?>[LEVELS][SLOTS];
+    }
+
+    /**
+     * Receives the timers as they fire
+     *
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     */
+    interface Listener<K, V>
+    {
+        void expired(K key, V value, long deadline);
+    }
+
+    /**
+     * Schedules a timer
+     *
+     * @param key The key handed to the listener
+     * @param value The value handed to the listener
+     * @param deadline When the timer fires in milliseconds, a deadline already passed fires on the next tick
+     */
+    void schedule(K key, V value, long deadline)
+    {
+        insert(new Timer<>(key, value, deadline), tick + 1);
+        size++;
+    }
+
+    /**
+     * Fires the timers of every tick that has passed by the time, so no timer fires before its deadline
+     *
+     * @param now The current time in milliseconds
+     * @param listener Receives the fired timers
+     */
+    void advance(long now, Listener<K, V> listener)
+    {
+        long target = lastPassed(now);
+
+        while (tick < target)
+        {
+            tick++;
+
+            // Move the timers of the coarser levels down as the levels below them wrap around
+            for (int level = 1; level < LEVELS && slot(tick, level - 1) == 0; level++)
+            {
+                Timer<K, V> timer = take(level, slot(tick, level));
+
+                while (timer != null)
+                {
+                    Timer<K, V> next = timer.next;
+
+                    insert(timer, tick);
+                    timer = next;
+                }
+            }
+
+            Timer<K, V> timer = take(0, slot(tick, 0));
+
+            while (timer != null)
+            {
+                size--;
+                listener.expired(timer.key, timer.value, timer.deadline);
+                timer = timer.next;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of timers that have not fired yet
+     *
+     * @return The number of pending timers
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Puts the timer in the slot for its deadline
+     *
+     * @param timer The timer
+     * @param earliest The first tick it may fire on, the next one for a new timer and the current one for a timer
+     *                 moved down from a coarser level, whose slot on the first level is yet to fire
+     */
+    private void insert(Timer<K, V> timer, long earliest)
+    {
+        long deadlineTick = Math.max(timer.deadline / tickMillis, earliest);
+        long delta = deadlineTick - tick;
+
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+        {
+            level++;
+        }
+
+        // A deadline beyond the last level waits in its furthest slot and is placed again when that slot comes up
+        if (delta >= 1L << (SLOT_BITS * LEVELS))
+        {
+            deadlineTick = tick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+
+        int slot = slot(deadlineTick, level);
+
+        timer.next = wheels[level][slot];
+        wheels[level][slot] = timer;
+    }
+
+    private long lastPassed(long now)
+    {
+        return (now + 1) / tickMillis - 1;
+    }
+
+    private Timer<K, V> take(int level, int slot)
+    {
+        Timer<K, V> timers = wheels[level][slot];
+        wheels[level][slot] = null;
+
+        return timers;
+    }
+
+    private static int slot(long tick, int level)
+    {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private static final class Timer<K, V>
+    {
+        final K key;
+        final V value;
+        final long deadline;
+
+        Timer<K, V> next;
+
+        Timer(K key, V value, long deadline)
+        {
+            this.key = key;
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+}
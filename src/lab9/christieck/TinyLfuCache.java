@@ -0,0 +1,439 @@
+package lab9.christieck;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded concurrent cache with W-TinyLFU eviction. New entries wait in a small LRU window, and when the window
+ * overflows its oldest entry only makes it into the main space, a segmented LRU, if it has been asked for more often
+ * than the entry it would push out. How often is estimated by a count-min sketch of every key asked for, which is
+ * halved from time to time so old popularity fades. A scan of names asked for once cannot flush the hot set.
+ *
+ * Entries also expire, an expired entry is a miss and is replaced by the next put. Reads never block: the map is
+ * concurrent, the sketch is bumped without synchronization like RecordSet's rotation counter, and reordering the
+ * queues is skipped when another thread holds the policy lock.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class TinyLfuCache<K, V>
+{
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+
+    /**
+     * Guards the queues and the sizes
+     */
+    private final ReentrantLock policyLock = new ReentrantLock();
+
+    private final AccessQueue<K, V> window = new AccessQueue<>();
+    private final AccessQueue<K, V> probation = new AccessQueue<>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<>();
+
+    private final int maximumSize;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+
+    private int size;
+    private int windowSize;
+    private int protectedSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache, with 1% of it as the window and 80% of the rest as the protected segment
+     *
+     * @param maximumSize The most entries the cache holds
+     */
+    TinyLfuCache(int maximumSize)
+    {
+        if (maximumSize < 1)
+        {
+            throw new IllegalArgumentException("The cache must hold at least one entry");
+        }
+
+        this.maximumSize = maximumSize;
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.protectedMaximum = (maximumSize - windowMaximum) * 4 / 5;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Gets the value of the key
+     *
+     * @param key The key
+     * @param now The current time in milliseconds, an entry that has expired by then is a miss
+     * @return The value, null on a miss
+     */
+    V get(K key, long now)
+    {
+        sketch.increment(key.hashCode());
+
+        Node<K, V> node = data.get(key);
+
+        if (node == null || node.expires <= now)
+        {
+            misses.increment();
+
+            return null;
+        }
+
+        hits.increment();
+
+        if (policyLock.tryLock())
+        {
+            try
+            {
+                onAccess(node);
+            } finally
+            {
+                policyLock.unlock();
+            }
+        }
+
+        return node.value;
+    }
+
+    /**
+     * Puts the value of the key, which may evict another entry or this one straight away
+     *
+     * @param key The key
+     * @param value The value
+     * @param expires When the entry expires in milliseconds
+     */
+    void put(K key, V value, long expires)
+    {
+        policyLock.lock();
+
+        try
+        {
+            Node<K, V> node = data.get(key);
+
+            if (node != null)
+            {
+                node.value = value;
+                node.expires = expires;
+                onAccess(node);
+
+                return;
+            }
+
+            node = new Node<>(key, value, expires);
+            data.put(key, node);
+
+            window.addLast(node);
+            node.queue = WINDOW;
+            windowSize++;
+            size++;
+
+            evict();
+        } finally
+        {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of entries
+     *
+     * @return The number of entries, expired ones included until they are replaced or evicted
+     */
+    int size()
+    {
+        return data.size();
+    }
+
+    long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Moves an entry that was asked for to the back of its queue, promoting it out of probation, the caller holds
+     * the policy lock
+     */
+    private void onAccess(Node<K, V> node)
+    {
+        switch (node.queue)
+        {
+            case WINDOW:
+                window.moveToBack(node);
+
+                break;
+            case PROBATION:
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                node.queue = PROTECTED;
+                protectedSize++;
+
+                // The protected segment is full, its oldest entry gets another chance in probation
+                if (protectedSize > protectedMaximum)
+                {
+                    Node<K, V> demoted = protectedQueue.peekFirst();
+
+                    protectedQueue.remove(demoted);
+                    probation.addLast(demoted);
+                    demoted.queue = PROBATION;
+                    protectedSize--;
+                }
+
+                break;
+            case PROTECTED:
+                protectedQueue.moveToBack(node);
+
+                break;
+            default:
+                // Evicted since it was read
+        }
+    }
+
+    /**
+     * Moves the overflow of the window into the main space, evicting whichever of each candidate and the oldest
+     * entry in probation is asked for less often, the caller holds the policy lock
+     */
+    private void evict()
+    {
+        while (windowSize > windowMaximum)
+        {
+            Node<K, V> candidate = window.peekFirst();
+
+            window.remove(candidate);
+            windowSize--;
+
+            Node<K, V> victim = size > maximumSize ? probation.peekFirst() : null;
+
+            if (victim != null && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode()))
+            {
+                remove(candidate);
+
+                continue;
+            }
+
+            probation.addLast(candidate);
+            candidate.queue = PROBATION;
+
+            if (victim != null)
+            {
+                probation.remove(victim);
+                remove(victim);
+            }
+        }
+
+        // Only happens while probation is empty, such as a cache smaller than a hundred entries
+        while (size > maximumSize)
+        {
+            Node<K, V> victim = protectedQueue.peekFirst();
+
+            if (victim != null)
+            {
+                protectedQueue.remove(victim);
+                protectedSize--;
+            } else
+            {
+                victim = window.peekFirst();
+                window.remove(victim);
+                windowSize--;
+            }
+
+            remove(victim);
+        }
+    }
+
+    /**
+     * Drops an entry that is no longer in any queue, the caller holds the policy lock
+     */
+    private void remove(Node<K, V> node)
+    {
+        data.remove(node.key, node);
+        node.queue = REMOVED;
+        size--;
+
+        evictions.increment();
+    }
+
+    private static final class Node<K, V>
+    {
+        final K key;
+        volatile V value;
+        volatile long expires;
+
+        /**
+         * The queue the node is in, guarded by the policy lock like the links
+         */
+        int queue;
+        Node<K, V> previous;
+        Node<K, V> next;
+
+        Node(K key, V value, long expires)
+        {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes from the least to the most recently used, threaded through the nodes themselves
+     */
+    private static final class AccessQueue<K, V>
+    {
+        private final Node<K, V> head = new Node<>(null, null, 0);
+
+        AccessQueue()
+        {
+            head.previous = head;
+            head.next = head;
+        }
+
+        Node<K, V> peekFirst()
+        {
+            return head.next != head ? head.next : null;
+        }
+
+        void addLast(Node<K, V> node)
+        {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+        }
+
+        void remove(Node<K, V> node)
+        {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node)
+        {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters, four per key, sixteen to a long. Once as many keys have been counted as
+     * ten times the cache size every counter is halved. Counters are bumped without synchronization, a lost update
+     * only makes an estimate a little low.
+     */
+    private static final class FrequencySketch
+    {
+        private static final long[] SEEDS = {
+                0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+
+        private int additions;
+
+        FrequencySketch(int maximumSize)
+        {
+            int length = Integer.highestOneBit(Math.max(4, Math.min(maximumSize, 1 << 30)) - 1) << 1;
+
+            table = new long[length];
+            tableMask = length - 1;
+            sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Estimates how often the key was counted
+         *
+         * @param hashCode The hash code of the key
+         * @return The estimate, at most 15
+         */
+        int frequency(int hashCode)
+        {
+            int hash = spread(hashCode);
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+
+            for (int i = 0; i < 4; i++)
+            {
+                int counter = (int) (table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xF;
+
+                frequency = Math.min(frequency, counter);
+            }
+
+            return frequency;
+        }
+
+        /**
+         * Counts the key once more
+         *
+         * @param hashCode The hash code of the key
+         */
+        void increment(int hashCode)
+        {
+            int hash = spread(hashCode);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+
+            for (int i = 0; i < 4; i++)
+            {
+                int index = indexOf(hash, i);
+                int shift = (start + i) << 2;
+
+                if (((table[index] >>> shift) & 0xF) != 0xF)
+                {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize)
+            {
+                reset();
+            }
+        }
+
+        private void reset()
+        {
+            for (int i = 0; i < table.length; i++)
+            {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int i)
+        {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+
+            h += h >>> 32;
+
+            return (int) h & tableMask;
+        }
+
+        private static int spread(int x)
+        {
+            x = ((x >>> 16) ^ x) * 0x45D9F3B;
+            x = ((x >>> 16) ^ x) * 0x45D9F3B;
+
+            return (x >>> 16) ^ x;
+        }
+    }
+}
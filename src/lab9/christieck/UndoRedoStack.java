@@ -1,21 +1,84 @@
 package lab9.christieck;
 
-import java.util.Stack;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * A undo / redo stack, holds the previous events and undoes / redoes them
+ * A undo / redo stack, holds the previous events and undoes / redoes them.
+ *
+ * The stack and both histories are fixed-size ring buffers, so memory stays flat: once the capacity is reached the
+ * oldest entries are evicted. The kind of each recorded operation is kept in a byte array next to its value.
+ * Given spill files and a codec, the undo and redo operations evicted from memory are appended to their file instead
+ * of being dropped, and are paged back in when undo() or redo() walks past the ones still in memory. Without them the
+ * history is as deep as the capacity, which the redo history can always hold.
+ * Not thread-safe, callers synchronize externally.
  *
  * @param <E> The type of the value to store
  */
-public class UndoRedoStack<E> extends Stack<E>
+public class UndoRedoStack<E>
 {
-    private Stack undoStack;
-    private Stack redoStack;
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    private static final byte PUSH = 0;
+    private static final byte POP = 1;
+
+    /**
+     * Writes and reads the values of the stack for the spill file
+     *
+     * @param <E> The type of the value to store
+     */
+    public interface Codec<E>
+    {
+        void write(E value, DataOutput out) throws IOException;
+
+        E read(DataInput in) throws IOException;
+    }
+
+    private Ring stack;
+    private Ring undoStack;
+    private Ring redoStack;
+
+    private SpillFile<E> undoSpill;
+    private SpillFile<E> redoSpill;
 
     public UndoRedoStack()
     {
-        undoStack = new Stack();
-        redoStack = new Stack();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a stack that keeps at most the given number of values and of undoable operations
+     *
+     * @param capacity The maximum number of entries kept
+     */
+    public UndoRedoStack(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        }
+
+        stack = new Ring(capacity);
+        undoStack = new Ring(capacity);
+        redoStack = new Ring(capacity);
+    }
+
+    /**
+     * Creates a stack that keeps the given number of undoable and redoable operations in memory and spills older ones
+     * to files
+     *
+     * @param capacity The maximum number of entries of each history kept in memory
+     * @param undoFile The file the older undo operations are spilled to, replaced if it exists
+     * @param redoFile The file the older redo operations are spilled to, replaced if it exists
+     * @param codec Writes and reads the values in the spill files
+     */
+    public UndoRedoStack(int capacity, File undoFile, File redoFile, Codec<E> codec)
+    {
+        this(capacity);
+
+        undoSpill = new SpillFile<>(undoFile, codec);
+        redoSpill = new SpillFile<>(redoFile, codec);
     }
 
     /**
@@ -26,10 +89,10 @@ public class UndoRedoStack<E> extends Stack<E>
      */
     public E push(E value)
     {
-        super.push(value);
+        stack.push(PUSH, value);
 
-        undoStack.push("push");
-        redoStack.clear();
+        record(undoStack, undoSpill, PUSH, value);
+        clearRedo();
 
         return value;
     }
@@ -41,15 +104,49 @@ public class UndoRedoStack<E> extends Stack<E>
      */
     public E pop()
     {
-        E value = super.pop();
+        if (stack.isEmpty())
+        {
+            throw new IllegalStateException("The stack is empty");
+        }
 
-        undoStack.push(value);
-        undoStack.push("pop");
+        E value = stack.pop();
+
+        record(undoStack, undoSpill, POP, value);
+        clearRedo();
 
-        redoStack.clear();
         return value;
     }
 
+    /**
+     * Gets the value at the top of the stack without removing it
+     *
+     * @return The value at the top of the stack
+     */
+    public E peek()
+    {
+        if (stack.isEmpty())
+        {
+            throw new IllegalStateException("The stack is empty");
+        }
+
+        return stack.peek();
+    }
+
+    /**
+     * Gets the number of values on the stack that are still held
+     *
+     * @return The number of values
+     */
+    public int size()
+    {
+        return stack.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return stack.isEmpty();
+    }
+
     /**
      * Whether or not a undo can be done
      *
@@ -57,7 +154,7 @@ public class UndoRedoStack<E> extends Stack<E>
      */
     public boolean canUndo()
     {
-        return !undoStack.isEmpty();
+        return !undoStack.isEmpty() || (undoSpill != null && undoSpill.count > 0);
     }
 
     /**
@@ -70,25 +167,30 @@ public class UndoRedoStack<E> extends Stack<E>
             throw new IllegalStateException("There are no operations to undo");
         }
 
-        Object action = undoStack.pop();
-
-        if (action.equals("push"))
+        if (undoStack.isEmpty())
         {
-            E value = super.pop();
+            pageIn(undoStack, undoSpill);
+        }
 
-            redoStack.push(value);
-            redoStack.push("push");
+        byte action = undoStack.peekOp();
+        E value = undoStack.pop();
 
-            return value;
-        } else
+        if (action == PUSH)
         {
-            E value = (E) undoStack.pop();
+            // The pushed value may already have been evicted from the bottom of the stack
+            if (!stack.isEmpty())
+            {
+                stack.pop();
+            }
 
-            super.push(value);
-            redoStack.push("pop");
-
-            return value;
+            record(redoStack, redoSpill, PUSH, value);
+        } else
+        {
+            stack.push(PUSH, value);
+            record(redoStack, redoSpill, POP, value);
         }
+
+        return value;
     }
 
     /**
@@ -98,7 +200,7 @@ public class UndoRedoStack<E> extends Stack<E>
      */
     public boolean canRedo()
     {
-        return !redoStack.isEmpty();
+        return !redoStack.isEmpty() || (redoSpill != null && redoSpill.count > 0);
     }
 
     /**
@@ -111,24 +213,336 @@ public class UndoRedoStack<E> extends Stack<E>
             throw new IllegalStateException("There are no operations to redo");
         }
 
-        Object action = redoStack.pop();
+        if (redoStack.isEmpty())
+        {
+            pageIn(redoStack, redoSpill);
+        }
+
+        byte action = redoStack.peekOp();
+        E value = redoStack.pop();
+
+        if (action == PUSH)
+        {
+            stack.push(PUSH, value);
+            record(undoStack, undoSpill, PUSH, value);
+        } else
+        {
+            if (!stack.isEmpty())
+            {
+                stack.pop();
+            }
+
+            record(undoStack, undoSpill, POP, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Empties the stack and both histories and closes and deletes the spill files, the stack can be used again
+     * afterwards
+     */
+    public void close()
+    {
+        stack.clear();
+        undoStack.clear();
+        redoStack.clear();
+
+        if (undoSpill != null)
+        {
+            undoSpill.close();
+            redoSpill.close();
+        }
+    }
+
+    /**
+     * Closes and deletes the spill files, dropping the operations spilled to them. The stack and the history still in
+     * memory are kept, and the files are created again once a history fills up.
+     */
+    public void closeSpillFiles()
+    {
+        if (undoSpill != null)
+        {
+            undoSpill.close();
+            redoSpill.close();
+        }
+    }
 
-        if (action.equals("push"))
+    /**
+     * Records an operation in a history, spilling the oldest one to disk when the history is full
+     *
+     * @param history The undo or redo history
+     * @param spill The history's spill file, null to evict the oldest operation instead
+     * @param action PUSH or POP
+     * @param value The value of the operation
+     */
+    private void record(Ring history, SpillFile<E> spill, byte action, E value)
+    {
+        if (spill != null && history.isFull())
         {
-            E value = (E) redoStack.pop();
+            byte oldestAction = history.oldestOp();
+            E oldest = history.removeOldest();
+
+            spill.append(oldestAction, oldest);
+        }
 
-            super.push(value);
-            undoStack.push("push");
+        history.push(action, value);
+    }
+
+    /**
+     * Forgets the redo history, a new operation makes it unreachable
+     */
+    private void clearRedo()
+    {
+        redoStack.clear();
+
+        if (redoSpill != null)
+        {
+            redoSpill.clear();
+        }
+    }
+
+    /**
+     * Reads the newest spilled operations back into an empty history, half a ring at a time
+     *
+     * @param history The undo or redo history
+     * @param spill The history's spill file
+     */
+    private void pageIn(Ring history, SpillFile<E> spill)
+    {
+        List<Object> values = new ArrayList<>();
+        byte[] actions = spill.removeNewest(Math.max(1, history.values.length / 2), values);
+
+        // They come back newest first, the oldest has to go in first
+        for (int i = values.size() - 1; i >= 0; i--)
+        {
+            history.push(actions[i], values.get(i));
+        }
+    }
+
+    /**
+     * A bounded stack of operations and their values, pushing onto a full ring evicts the oldest entry
+     */
+    private static class Ring
+    {
+        private final byte[] ops;
+        private final Object[] values;
+
+        private int top;
+        private int size;
+
+        Ring(int capacity)
+        {
+            ops = new byte[capacity];
+            values = new Object[capacity];
+        }
+
+        void push(byte op, Object value)
+        {
+            top = top + 1 == values.length ? 0 : top + 1;
+
+            ops[top] = op;
+            values[top] = value;
+
+            if (size < values.length)
+            {
+                size++;
+            }
+        }
+
+        byte peekOp()
+        {
+            return ops[top];
+        }
+
+        @SuppressWarnings("unchecked")
+        <E> E peek()
+        {
+            return (E) values[top];
+        }
+
+        <E> E pop()
+        {
+            E value = peek();
+
+            values[top] = null;
+            top = top == 0 ? values.length - 1 : top - 1;
+            size--;
 
             return value;
-        } else
+        }
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        boolean isFull()
+        {
+            return size == values.length;
+        }
+
+        private int oldestIndex()
         {
-            E value = super.pop();
+            int index = top - size + 1;
 
-            undoStack.push(value);
-            undoStack.push("pop");
+            return index < 0 ? index + values.length : index;
+        }
+
+        byte oldestOp()
+        {
+            return ops[oldestIndex()];
+        }
+
+        @SuppressWarnings("unchecked")
+        <E> E removeOldest()
+        {
+            int index = oldestIndex();
+            E value = (E) values[index];
+
+            values[index] = null;
+            size--;
 
             return value;
         }
+
+        void clear()
+        {
+            while (size > 0)
+            {
+                pop();
+            }
+        }
+    }
+
+    /**
+     * An append-only file of spilled operations, each written as [action:1][value][value length:4] so the newest
+     * ones can be read back from the end and cut off
+     *
+     * @param <E> The type of the value to store
+     */
+    private static class SpillFile<E>
+    {
+        private final File file;
+        private final Codec<E> codec;
+
+        private RandomAccessFile data;
+        private long count;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        SpillFile(File file, Codec<E> codec)
+        {
+            this.file = file;
+            this.codec = codec;
+        }
+
+        void append(byte action, E value)
+        {
+            try
+            {
+                if (data == null)
+                {
+                    data = new RandomAccessFile(file, "rw");
+                    data.setLength(0);
+
+                    file.deleteOnExit();
+                }
+
+                bytes.reset();
+                out.writeByte(action);
+                codec.write(value, out);
+                out.writeInt(bytes.size() - 1);
+
+                data.seek(data.length());
+                data.write(bytes.toByteArray());
+
+                count++;
+            } catch (IOException e)
+            {
+                throw new UncheckedIOException("Could not spill the undo history to " + file, e);
+            }
+        }
+
+        /**
+         * Reads and removes up to the given number of the newest operations
+         *
+         * @param limit The most operations to read
+         * @param values Receives the values, newest first
+         * @return The actions of the values
+         */
+        byte[] removeNewest(int limit, List<Object> values)
+        {
+            int read = (int) Math.min(limit, count);
+            byte[] actions = new byte[read];
+
+            try
+            {
+                long end = data.length();
+
+                for (int i = 0; i < read; i++)
+                {
+                    data.seek(end - 4);
+                    int length = data.readInt();
+
+                    long start = end - 4 - length - 1;
+                    byte[] record = new byte[length + 1];
+
+                    data.seek(start);
+                    data.readFully(record);
+
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+                    actions[i] = in.readByte();
+                    values.add(codec.read(in));
+
+                    end = start;
+                }
+
+                data.setLength(end);
+                count -= read;
+            } catch (IOException e)
+            {
+                throw new UncheckedIOException("Could not page the undo history in from " + file, e);
+            }
+
+            return actions;
+        }
+
+        /**
+         * Drops every spilled operation, keeping the file open for the next ones
+         */
+        void clear()
+        {
+            if (count == 0)
+            {
+                return;
+            }
+
+            try
+            {
+                data.setLength(0);
+                count = 0;
+            } catch (IOException e)
+            {
+                throw new UncheckedIOException("Could not clear the spilled history in " + file, e);
+            }
+        }
+
+        void close()
+        {
+            try
+            {
+                if (data != null)
+                {
+                    data.close();
+                    data = null;
+                }
+            } catch (IOException e) { }
+
+            file.delete();
+            count = 0;
+        }
     }
-}
\ No newline at end of file
+}
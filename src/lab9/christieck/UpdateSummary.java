@@ -0,0 +1,71 @@
+package lab9.christieck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of applying a file of update commands: how many were applied, how many were rejected and why
+ */
+public class UpdateSummary
+{
+    /**
+     * Only the first rejection reasons are kept so a bad million-line file cannot exhaust the heap
+     */
+    private static final int MAX_REASONS = 100;
+
+    private long applied;
+    private long rejected;
+    private List<String> reasons = new ArrayList<>();
+
+    void applied()
+    {
+        applied++;
+    }
+
+    void rejected(long lineNumber, String reason)
+    {
+        rejected++;
+
+        if (reasons.size() < MAX_REASONS)
+        {
+            reasons.add("Line " + lineNumber + ": " + reason);
+        }
+    }
+
+    /**
+     * Gets the number of commands that were applied
+     *
+     * @return The number of applied commands
+     */
+    public long getApplied()
+    {
+        return applied;
+    }
+
+    /**
+     * Gets the number of commands that were rejected
+     *
+     * @return The number of rejected commands
+     */
+    public long getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * Gets the reasons for the first rejected commands, each prefixed with its line number
+     *
+     * @return The rejection reasons
+     */
+    public List<String> getReasons()
+    {
+        return Collections.unmodifiableList(reasons);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Applied " + applied + " updates, rejected " + rejected;
+    }
+}
@@ -0,0 +1,53 @@
+package lab9.christieck;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A resolver that names missing from the records are forwarded to
+ *
+ * @see ForwardingResolver
+ */
+public interface Upstream
+{
+    /**
+     * Resolves every A and AAAA record of the domain name
+     *
+     * @param domain The domain name to resolve
+     * @return The answer, with no addresses if the name does not exist
+     * @throws IOException If the upstream could not be reached or failed to answer
+     */
+    Answer resolve(DomainName domain) throws IOException;
+
+    /**
+     * The addresses an upstream answered with and how long they may be cached for
+     */
+    final class Answer
+    {
+        private final List<IPAddress> addresses;
+        private final long ttlSeconds;
+
+        /**
+         * Creates an answer
+         *
+         * @param addresses The addresses of the name, empty if it does not exist
+         * @param ttlSeconds How many seconds the answer may be cached for, 0 to not cache it
+         */
+        public Answer(List<IPAddress> addresses, long ttlSeconds)
+        {
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public List<IPAddress> getAddresses()
+        {
+            return addresses;
+        }
+
+        public long getTtlSeconds()
+        {
+            return ttlSeconds;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package lab9.christieck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the applied record changes, so changes survive a crash between two saves of the entries file.
+ *
+ * Each record is [type:1][address:4][domain length:1][domain bytes][crc32:4], with a 16 byte address and the IPV6
+ * bit set in the type for an IPv6 address, and with the time the record expires after the address and the EXPIRES
+ * bit set for a record with a TTL. Appends only fill a memory buffer,
+ * the fsync happens in awaitDurable(), where one thread writes and fsyncs everything appended so far on behalf of
+ * all the threads waiting behind it (group commit).
+ */
+public class WriteAheadLog
+{
+    public static final byte ADD = 1;
+    public static final byte DELETE = 2;
+
+    /**
+     * The records between these markers are only replayed if the end marker made it to disk
+     */
+    public static final byte BATCH_BEGIN = 3;
+    public static final byte BATCH_END = 4;
+
+    /**
+     * Set in the type of a record whose address is IPv6
+     */
+    private static final byte IPV6 = 0x10;
+
+    /**
+     * Set in the type of a record that expires, the time in milliseconds follows the address
+     */
+    private static final byte EXPIRES = 0x20;
+
+    private static final int MAX_RECORD_LENGTH = 1 + 16 + 8 + 1 + 255 + 4;
+
+    /**
+     * Receives each record of the log in the order it was appended
+     */
+    public interface Replayer
+    {
+        void onRecord(byte type, IPAddress address, DomainName domain, long expires);
+    }
+
+    private final File file;
+    private final File rotatedFile;
+
+    private FileChannel channel;
+
+    /**
+     * The records appended since the last write, guarded by this
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long appended;
+    private long rotatedAt;
+
+    /**
+     * Guards the channel, held by the thread doing the group write and fsync
+     */
+    private final Object syncLock = new Object();
+    private volatile long durable;
+
+    private final CRC32 crc = new CRC32();
+
+    public WriteAheadLog(File file)
+    {
+        this.file = file;
+        this.rotatedFile = new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Replays the rotated log left by an interrupted compaction and then the current log, dropping a torn tail
+     *
+     * @param replayer Where the records are sent
+     * @return The number of records replayed
+     * @throws IOException If a log could not be read, or a record before the last one is corrupt
+     */
+    public long replay(Replayer replayer) throws IOException
+    {
+        long records = 0;
+
+        if (rotatedFile.exists())
+        {
+            records += replay(rotatedFile, replayer);
+        }
+
+        if (file.exists())
+        {
+            records += replay(file, replayer);
+        }
+
+        return records;
+    }
+
+    /**
+     * Opens the log for appending
+     *
+     * @throws IOException If the log could not be opened
+     */
+    public void open() throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        synchronized (this)
+        {
+            appended = channel.size();
+            rotatedAt = 0;
+            durable = appended;
+        }
+    }
+
+    /**
+     * Flushes and closes the log
+     *
+     * @throws IOException If the pending records could not be written
+     */
+    public void close() throws IOException
+    {
+        synchronized (syncLock)
+        {
+            if (channel == null)
+            {
+                return;
+            }
+
+            flush();
+
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Appends a record to the log, it is not durable until awaitDurable() returns for it
+     *
+     * @param type ADD or DELETE
+     * @param address The IP address of the record
+     * @param domain The domain name of the record
+     * @param expires When an added record expires in milliseconds, 0 for never
+     * @return The position the record ends at, to hand to awaitDurable()
+     */
+    public synchronized long append(byte type, IPAddress address, DomainName domain, long expires)
+    {
+        if (pending.remaining() < MAX_RECORD_LENGTH)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+
+        int start = pending.position();
+        byte flags = expires != 0 ? EXPIRES : 0;
+
+        if (address.isIPv6())
+        {
+            pending.put((byte) (type | IPV6 | flags));
+            pending.putLong(address.getHigh());
+            pending.putLong(address.getLow());
+        } else
+        {
+            pending.put((byte) (type | flags));
+            pending.putInt(address.getValue());
+        }
+
+        if (expires != 0)
+        {
+            pending.putLong(expires);
+        }
+
+        pending.put((byte) domain.length());
+        domain.writeTo(pending);
+
+        crc.reset();
+        crc.update(pending.array(), start, pending.position() - start);
+        pending.putInt((int) crc.getValue());
+
+        appended += pending.position() - start;
+
+        return appended;
+    }
+
+    /**
+     * Appends a BATCH_BEGIN or BATCH_END marker to the log
+     *
+     * @param type BATCH_BEGIN or BATCH_END
+     * @return The position the marker ends at, to hand to awaitDurable()
+     */
+    public long appendMarker(byte type)
+    {
+        return append(type, new IPAddress(0), DomainName.ofCanonical(""), 0);
+    }
+
+    /**
+     * Blocks until the log is durable up to the position. The first waiter writes and fsyncs every record appended
+     * so far, so the threads queued behind it usually find their records already on disk.
+     *
+     * @param position The position returned by append()
+     * @throws IOException If the log could not be written, or was closed before the position was written
+     */
+    public void awaitDurable(long position) throws IOException
+    {
+        if (durable >= position)
+        {
+            return;
+        }
+
+        synchronized (syncLock)
+        {
+            if (durable < position)
+            {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Gets the size the log will have once everything appended is written
+     *
+     * @return The size of the log in bytes
+     */
+    public synchronized long size()
+    {
+        return appended - rotatedAt;
+    }
+
+    /**
+     * Moves the current log aside and starts a new empty one. The caller then saves the entries file and calls
+     * dropRotated(), a crash in between replays the rotated log as well. If an earlier save failed and left a
+     * rotated log behind, the current log is appended to it instead so no record is lost.
+     *
+     * @throws IOException If the log could not be rotated
+     */
+    public void rotate() throws IOException
+    {
+        synchronized (syncLock)
+        {
+            flush();
+
+            if (rotatedFile.exists())
+            {
+                try (FileChannel rotated = FileChannel.open(rotatedFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                     FileChannel current = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    long size = current.size();
+                    long copied = 0;
+
+                    while (copied < size)
+                    {
+                        copied += current.transferTo(copied, size - copied, rotated);
+                    }
+
+                    rotated.force(false);
+                }
+
+                channel.truncate(0);
+                channel.force(false);
+            } else
+            {
+                channel.close();
+                channel = null;
+
+                try
+                {
+                    Files.move(file.toPath(), rotatedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally
+                {
+                    // Appends go on to the new log, or back to the one that failed to move so none are lost
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            }
+
+            synchronized (this)
+            {
+                rotatedAt = appended;
+            }
+        }
+    }
+
+    /**
+     * Deletes the rotated log once the records in it are safely in the entries file
+     *
+     * @throws IOException If the rotated log could not be deleted
+     */
+    public void dropRotated() throws IOException
+    {
+        Files.deleteIfExists(rotatedFile.toPath());
+    }
+
+    /**
+     * Writes everything appended so far and fsyncs it, the caller holds syncLock
+     *
+     * @throws ClosedChannelException If the log is not open
+     */
+    private void flush() throws IOException
+    {
+        if (channel == null)
+        {
+            throw new ClosedChannelException();
+        }
+
+        long target;
+
+        synchronized (this)
+        {
+            ByteBuffer full = pending;
+
+            pending = writing;
+            writing = full;
+            target = appended;
+        }
+
+        writing.flip();
+
+        while (writing.hasRemaining())
+        {
+            channel.write(writing);
+        }
+
+        writing.clear();
+        channel.force(false);
+
+        durable = target;
+    }
+
+    /**
+     * Whether a record of the type can come next in a log
+     *
+     * @param type The type of the record
+     * @param inBatch Whether a batch is open
+     * @return False for a marker out of place or an unknown type
+     */
+    private static boolean isExpected(byte type, boolean inBatch)
+    {
+        switch (type)
+        {
+            case ADD:
+            case DELETE:
+                return true;
+            case BATCH_BEGIN:
+                return !inBatch;
+            case BATCH_END:
+                return inBatch;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Replays one log file and truncates it after the last complete record
+     */
+    private static long replay(File log, Replayer replayer) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(log.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        ByteSequence name = new ByteSequence();
+        CRC32 crc = new CRC32();
+
+        long records = 0;
+        int valid = 0;
+
+        List<BatchRecord> batch = null;
+        int batchStart = 0;
+
+        while (buffer.remaining() >= 1 + 4 + 1)
+        {
+            int start = buffer.position();
+
+            byte type = buffer.get();
+            boolean isIPv6 = (type & IPV6) != 0;
+            boolean expiring = (type & EXPIRES) != 0;
+
+            if (buffer.remaining() < (isIPv6 ? 16 : 4) + (expiring ? 8 : 0) + 1)
+            {
+                break;
+            }
+
+            long high = isIPv6 ? buffer.getLong() : 0;
+            long low = isIPv6 ? buffer.getLong() : 0;
+            int address = isIPv6 ? 0 : buffer.getInt();
+            long expires = expiring ? buffer.getLong() : 0;
+            int length = buffer.get() & 0xFF;
+
+            type &= ~(IPV6 | EXPIRES);
+
+            if (buffer.remaining() < length + 4)
+            {
+                break;
+            }
+
+            int nameStart = buffer.position();
+            buffer.position(nameStart + length);
+
+            crc.reset();
+            crc.update(bytes, start, buffer.position() - start);
+
+            if (buffer.getInt() != (int) crc.getValue())
+            {
+                // Only the last record can have been torn by a crash, one with acknowledged records after it was not
+                if (buffer.hasRemaining())
+                {
+                    throw new IOException("Corrupt record at byte " + start + " of " + log + ", with " + buffer.remaining()
+                            + " bytes of records after it");
+                }
+
+                break;
+            }
+
+            // A marker out of place, such as a BATCH_END with no batch open, is treated like a torn record
+            if (!isExpected(type, batch != null))
+            {
+                break;
+            }
+
+            valid = buffer.position();
+
+            if (type == BATCH_BEGIN)
+            {
+                batch = new ArrayList<>();
+            } else if (type == BATCH_END)
+            {
+                for (BatchRecord record : batch)
+                {
+                    replayer.onRecord(record.type, record.address, record.domain, record.expires);
+                }
+
+                records += batch.size();
+                batch = null;
+                batchStart = valid;
+            } else
+            {
+                IPAddress recordAddress = isIPv6 ? new IPAddress(high, low) : new IPAddress(address);
+                DomainName recordDomain;
+
+                try
+                {
+                    recordDomain = new DomainName(name.set(buffer, nameStart, nameStart + length));
+                } catch (IllegalArgumentException e)
+                {
+                    // The checksum matched, so the record was written like this and is not just torn
+                    throw new IOException("Invalid domain name at byte " + nameStart + " of " + log, e);
+                }
+
+                if (batch != null)
+                {
+                    batch.add(new BatchRecord(type, recordAddress, recordDomain, expires));
+                } else
+                {
+                    replayer.onRecord(type, recordAddress, recordDomain, expires);
+
+                    records++;
+                    batchStart = valid;
+                }
+            }
+        }
+
+        // A batch without its end marker was torn by the crash, none of it was acknowledged
+        if (batch != null)
+        {
+            valid = batchStart;
+        }
+
+        if (valid < bytes.length)
+        {
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE))
+            {
+                channel.truncate(valid);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * A record held back during replay until the end marker of its batch is seen
+     */
+    private static class BatchRecord
+    {
+        private final byte type;
+        private final IPAddress address;
+        private final DomainName domain;
+        private final long expires;
+
+        BatchRecord(byte type, IPAddress address, DomainName domain, long expires)
+        {
+            this.type = type;
+            this.address = address;
+            this.domain = domain;
+            this.expires = expires;
+        }
+    }
+}
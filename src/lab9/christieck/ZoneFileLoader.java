@@ -0,0 +1,629 @@
+package lab9.christieck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an entries file of "ip domain [ttl]" lines by memory-mapping it and tokenizing the bytes in place.
+ * A TTL is in seconds from the time the file is loaded, or "@" and the seconds since the epoch when the record expires.
+ * Records that have already expired are still handed over, for the caller to drop.
+ * The file is split into newline-aligned chunks that are parsed in parallel on a fork-join pool.
+ * Binary snapshots are recognized by their magic and read straight from the mapping without revalidation.
+ */
+public class ZoneFileLoader
+{
+    /**
+     * The largest window of the file that is mapped at once, lines are never split across windows
+     */
+    private static final long MAX_WINDOW = 1L << 30;
+
+    /**
+     * Chunks smaller than this are not worth handing to another thread
+     */
+    private static final int MIN_CHUNK = 1 << 20;
+
+    /**
+     * Set in the address length of a version 3 binary record that expires, the time follows the address
+     */
+    static final int EXPIRING = 0x80;
+
+    /**
+     * Receives the valid records of the file. It may be called from several threads at once, but every
+     * record of a given domain is handed over on the same thread in file order, so the last line wins.
+     * The expiry is a time in milliseconds, 0 for a record that never expires.
+     */
+    public interface RecordHandler
+    {
+        void onRecord(IPAddress address, DomainName domain, long expires);
+    }
+
+    /**
+     * Receives each line of the file that could not be parsed, in file order on the calling thread
+     */
+    public interface ErrorHandler
+    {
+        void onMalformedLine(long lineNumber, String reason);
+    }
+
+    private final ForkJoinPool pool;
+
+    private long recordCount;
+    private long malformedCount;
+
+    public ZoneFileLoader()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ZoneFileLoader(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Loads every line of the file
+     *
+     * @param file The entries file to read
+     * @param records Where the valid records are sent
+     * @param errors Where the malformed lines are reported
+     * @return The number of valid records read
+     * @throws IOException If the file could not be read
+     */
+    public long load(File file, RecordHandler records, ErrorHandler errors) throws IOException
+    {
+        if (isBinary(file))
+        {
+            malformedCount = 0;
+
+            return recordCount = loadBinary(file, records);
+        }
+
+        List<Chunk> chunks = split(file);
+        long loadedAt = System.currentTimeMillis();
+
+        List<Runnable> parses = new ArrayList<>(chunks.size());
+
+        for (Chunk chunk : chunks)
+        {
+            parses.add(() -> chunk.parse(loadedAt));
+        }
+
+        invokeAll(parses);
+
+        recordCount = 0;
+        malformedCount = 0;
+
+        long lineBase = 0;
+
+        for (Chunk chunk : chunks)
+        {
+            recordCount += chunk.domains.size();
+            malformedCount += chunk.errorLines.size();
+
+            if (errors != null)
+            {
+                for (int i = 0; i < chunk.errorLines.size(); i++)
+                {
+                    errors.onMalformedLine(lineBase + chunk.errorLines.get(i), chunk.errorReasons.get(i));
+                }
+            }
+
+            lineBase += chunk.lineCount;
+        }
+
+        // Each partition owns the domains whose hash falls in it and walks the chunks in file order, so the records
+        // of one domain always arrive in file order on one thread
+        int partitions = chunks.size() > 1 ? pool.getParallelism() : 1;
+        List<Runnable> merges = new ArrayList<>(partitions);
+
+        for (int partition = 0; partition < partitions; partition++)
+        {
+            int owned = partition;
+
+            merges.add(() -> merge(chunks, owned, partitions, records));
+        }
+
+        invokeAll(merges);
+
+        return recordCount;
+    }
+
+    /**
+     * Runs the tasks in parallel on the pool and waits for all of them
+     *
+     * @param tasks The tasks to run
+     */
+    private void invokeAll(List<Runnable> tasks)
+    {
+        List<ForkJoinTask<?>> actions = new ArrayList<>(tasks.size());
+
+        for (Runnable task : tasks)
+        {
+            actions.add(ForkJoinTask.adapt(task));
+        }
+
+        pool.invoke(ForkJoinTask.adapt(() ->
+        {
+            ForkJoinTask.invokeAll(actions);
+        }));
+    }
+
+    /**
+     * Hands over the parsed records of the domains whose hash falls in the partition
+     *
+     * @param chunks The parsed chunks, in file order
+     * @param partition The partition to hand over
+     * @param partitions The number of partitions
+     * @param records Where the records are sent
+     */
+    private static void merge(List<Chunk> chunks, int partition, int partitions, RecordHandler records)
+    {
+        for (Chunk chunk : chunks)
+        {
+            for (int i = 0; i < chunk.domains.size(); i++)
+            {
+                DomainName domain = chunk.domains.get(i);
+
+                if (partitions == 1 || Math.floorMod(domain.hashCode(), partitions) == partition)
+                {
+                    records.onRecord(chunk.addresses.get(i), domain, chunk.expires[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of malformed lines seen by the last load
+     *
+     * @return The number of malformed lines
+     */
+    public long getMalformedCount()
+    {
+        return malformedCount;
+    }
+
+    /**
+     * Parses a TTL, a whole number of seconds of at least one
+     *
+     * @param text The TTL to parse
+     * @return The number of seconds
+     * @throws IllegalArgumentException If the TTL is not a valid number of seconds
+     */
+    static long parseTtl(CharSequence text)
+    {
+        long ttl = 0;
+
+        for (int i = 0; i < text.length() && ttl <= Integer.MAX_VALUE; i++)
+        {
+            char c = text.charAt(i);
+
+            ttl = c >= '0' && c <= '9' ? ttl * 10 + c - '0' : -1;
+
+            if (ttl < 0)
+            {
+                break;
+            }
+        }
+
+        if (ttl < 1 || ttl > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The TTL must be a number of seconds from 1 to " + Integer.MAX_VALUE);
+        }
+
+        return ttl;
+    }
+
+    /**
+     * Parses the expiry column of a text line, a TTL or "@" and the time it expires in seconds since the epoch
+     *
+     * @param text The column to parse
+     * @param loadedAt The time a TTL counts from, in milliseconds
+     * @return When the record expires in milliseconds
+     * @throws IllegalArgumentException If the column is neither a valid TTL nor a valid time
+     */
+    static long parseExpiry(CharSequence text, long loadedAt)
+    {
+        if (text.length() == 0 || text.charAt(0) != '@')
+        {
+            return loadedAt + parseTtl(text) * 1000;
+        }
+
+        long seconds = 0;
+
+        for (int i = 1; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c < '0' || c > '9' || seconds > Long.MAX_VALUE / 1000 / 10)
+            {
+                throw new IllegalArgumentException("The expiry must be \"@\" and a number of seconds since the epoch");
+            }
+
+            seconds = seconds * 10 + c - '0';
+        }
+
+        if (seconds < 1)
+        {
+            throw new IllegalArgumentException("The expiry must be \"@\" and a number of seconds since the epoch");
+        }
+
+        return seconds * 1000;
+    }
+
+    /**
+     * Checks whether the file starts with the magic of a binary snapshot
+     *
+     * @param file The file to check
+     * @return Whether the file is a binary snapshot
+     * @throws IOException If the file could not be read
+     */
+    public static boolean isBinary(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(4);
+
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+
+            return !header.hasRemaining() && header.getInt(0) == SnapshotFormat.MAGIC;
+        }
+    }
+
+    /**
+     * Reads the records of a binary snapshot, checking the CRC32 as it goes
+     *
+     * @param file The binary snapshot
+     * @param records Where the records are sent
+     * @return The number of records read
+     * @throws IOException If the file could not be read, or is truncated or corrupt
+     */
+    private static long loadBinary(File file, RecordHandler records) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+
+            if (size < 16)
+            {
+                throw new IOException("The binary snapshot " + file + " is truncated");
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            channel.read(trailer, size - 8);
+
+            int expectedCount = trailer.getInt(0);
+            int expectedCrc = trailer.getInt(4);
+
+            CRC32 crc = new CRC32();
+            ByteSequence name = new ByteSequence();
+
+            long recordsEnd = size - 8;
+            long position = 0;
+            long count = 0;
+
+            boolean hasAddressLength = true;
+            boolean hasExpiry = true;
+
+            while (position < recordsEnd)
+            {
+                long length = Math.min(MAX_WINDOW, recordsEnd - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int index = 0;
+
+                if (position == 0)
+                {
+                    int version = window.getInt(4);
+
+                    if (window.getInt(0) != SnapshotFormat.MAGIC || version < 1 || version > SnapshotFormat.VERSION)
+                    {
+                        throw new IOException("The binary snapshot " + file + " has an unsupported version");
+                    }
+
+                    // Version 1 only had IPv4 addresses, without the address length in front of them, and only
+                    // version 3 has expiring records
+                    hasAddressLength = version > 1;
+                    hasExpiry = version > 2;
+                    index = 8;
+                }
+
+                while (index + 6 <= length)
+                {
+                    int addressStart = hasAddressLength ? index + 1 : index;
+                    int addressLength = hasAddressLength ? window.get(index) & 0xFF : 4;
+                    boolean expiring = hasExpiry && (addressLength & EXPIRING) != 0;
+
+                    if (expiring)
+                    {
+                        addressLength &= ~EXPIRING;
+                    }
+
+                    if (addressLength != 4 && addressLength != 16)
+                    {
+                        throw new IOException("The binary snapshot " + file + " is corrupt");
+                    }
+
+                    int expiresStart = addressStart + addressLength;
+                    int nameStart = expiresStart + (expiring ? 8 : 0) + 1;
+
+                    if (nameStart > length)
+                    {
+                        break;
+                    }
+
+                    int nameLength = window.get(nameStart - 1) & 0xFF;
+
+                    if (nameStart + nameLength > length)
+                    {
+                        break;
+                    }
+
+                    String domain = name.set(window, nameStart, nameStart + nameLength).toString();
+
+                    IPAddress address = addressLength == 4
+                            ? new IPAddress(window.getInt(addressStart))
+                            : new IPAddress(window.getLong(addressStart), window.getLong(addressStart + 8));
+
+                    records.onRecord(address, DomainName.ofCanonical(domain), expiring ? window.getLong(expiresStart) : 0);
+
+                    index = nameStart + nameLength;
+                    count++;
+                }
+
+                if (index == 0)
+                {
+                    throw new IOException("The binary snapshot " + file + " is corrupt");
+                }
+
+                window.limit(index);
+                crc.update(window);
+
+                position += index;
+            }
+
+            ByteBuffer countBytes = ByteBuffer.allocate(4);
+            countBytes.putInt(0, expectedCount);
+            crc.update(countBytes);
+
+            if (position != recordsEnd || count != expectedCount || (int) crc.getValue() != expectedCrc)
+            {
+                throw new IOException("The binary snapshot " + file + " is corrupt");
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Maps the file and cuts it into chunks that each end on a newline
+     *
+     * @param file The file to split
+     * @return The chunks in file order
+     * @throws IOException If the file could not be mapped
+     */
+    private List<Chunk> split(File file) throws IOException
+    {
+        List<Chunk> chunks = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            long chunkSize = Math.max(MIN_CHUNK, size / (pool.getParallelism() * 4L));
+            long position = 0;
+
+            while (position < size)
+            {
+                long length = Math.min(MAX_WINDOW, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int windowEnd = (int) length;
+
+                if (position + length < size)
+                {
+                    windowEnd = lastLineEnd(window, 0, (int) length);
+
+                    if (windowEnd == 0)
+                    {
+                        throw new IOException("A line at byte " + position + " is longer than " + MAX_WINDOW + " bytes");
+                    }
+                }
+
+                int start = 0;
+
+                while (start < windowEnd)
+                {
+                    int end = (int) Math.min(windowEnd, start + chunkSize);
+
+                    if (end < windowEnd)
+                    {
+                        end = nextLineEnd(window, end, windowEnd);
+                    }
+
+                    chunks.add(new Chunk(window, start, end));
+                    start = end;
+                }
+
+                position += windowEnd;
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Finds the index just past the last newline in the range
+     */
+    private static int lastLineEnd(MappedByteBuffer window, int start, int end)
+    {
+        for (int i = end - 1; i >= start; i--)
+        {
+            if (window.get(i) == '\n')
+            {
+                return i + 1;
+            }
+        }
+
+        return start;
+    }
+
+    /**
+     * Finds the index just past the next newline at or after the index
+     */
+    private static int nextLineEnd(MappedByteBuffer window, int index, int end)
+    {
+        while (index < end && window.get(index) != '\n')
+        {
+            index++;
+        }
+
+        return Math.min(index + 1, end);
+    }
+
+    /**
+     * A newline-aligned range of the file and the records parsed out of it
+     */
+    private static class Chunk
+    {
+        private final MappedByteBuffer window;
+        private final int start;
+        private final int end;
+
+        private final ByteSequence token = new ByteSequence();
+
+        private final List<IPAddress> addresses = new ArrayList<>();
+        private final List<DomainName> domains = new ArrayList<>();
+
+        /**
+         * When each record expires in milliseconds, 0 for one that never does, grown like the lists beside it without
+         * boxing every time
+         */
+        private long[] expires = new long[16];
+
+        private final List<Long> errorLines = new ArrayList<>();
+        private final List<String> errorReasons = new ArrayList<>();
+
+        private long lineCount;
+
+        Chunk(MappedByteBuffer window, int start, int end)
+        {
+            this.window = window;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Parses every line of the chunk, a trailing line without a newline counts
+         *
+         * @param loadedAt The time the TTLs count from, in milliseconds
+         */
+        void parse(long loadedAt)
+        {
+            int lineStart = start;
+
+            for (int i = start; i < end; i++)
+            {
+                if (window.get(i) == '\n')
+                {
+                    parseLine(lineStart, i, loadedAt);
+                    lineStart = i + 1;
+                }
+            }
+
+            if (lineStart < end)
+            {
+                parseLine(lineStart, end, loadedAt);
+            }
+        }
+
+        /**
+         * Splits a line into its address, domain and optional TTL tokens and keeps the record
+         *
+         * @param start The index of the first byte of the line
+         * @param end The index of the newline, or the end of the chunk
+         * @param loadedAt The time the TTLs count from, in milliseconds
+         */
+        private void parseLine(int start, int end, long loadedAt)
+        {
+            lineCount++;
+
+            int addressStart = skipWhitespace(start, end);
+
+            if (addressStart == end)
+            {
+                return;
+            }
+
+            int addressEnd = skipToken(addressStart, end);
+            int domainStart = skipWhitespace(addressEnd, end);
+            int domainEnd = skipToken(domainStart, end);
+            int ttlStart = skipWhitespace(domainEnd, end);
+            int ttlEnd = skipToken(ttlStart, end);
+
+            if (domainStart == end || skipWhitespace(ttlEnd, end) != end)
+            {
+                malformed("Expected an IP address, a domain name and an optional TTL");
+                return;
+            }
+
+            try
+            {
+                IPAddress address = IPAddress.parse(token.set(window, addressStart, addressEnd));
+                DomainName domain = new DomainName(token.set(window, domainStart, domainEnd));
+                long expiry = ttlStart < ttlEnd ? parseExpiry(token.set(window, ttlStart, ttlEnd), loadedAt) : 0;
+
+                if (domains.size() == expires.length)
+                {
+                    expires = Arrays.copyOf(expires, expires.length * 2);
+                }
+
+                expires[domains.size()] = expiry;
+                addresses.add(address);
+                domains.add(domain);
+            } catch (IllegalArgumentException ex)
+            {
+                malformed(ex.getMessage());
+            }
+        }
+
+        private void malformed(String reason)
+        {
+            errorLines.add(lineCount);
+            errorReasons.add(reason);
+        }
+
+        private int skipWhitespace(int index, int end)
+        {
+            while (index < end && isWhitespace(window.get(index)))
+            {
+                index++;
+            }
+
+            return index;
+        }
+
+        private int skipToken(int index, int end)
+        {
+            while (index < end && !isWhitespace(window.get(index)))
+            {
+                index++;
+            }
+
+            return index;
+        }
+
+        private static boolean isWhitespace(byte b)
+        {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package lab9.christieck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an entries file crash-safely: the records go to a temp file next to the target, which is fsynced and then
+ * atomically renamed over the target, so a crash leaves either the old file or the new one and never a partial one
+ *
+ * @see SnapshotFormat
+ */
+public class ZoneFileWriter
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File target;
+    private final SnapshotFormat format;
+
+    private FileChannel channel;
+    private Path tempFile;
+    private ByteBuffer buffer;
+
+    private final CRC32 crc = new CRC32();
+    private int recordCount;
+
+    public ZoneFileWriter(File target)
+    {
+        this(target, SnapshotFormat.TEXT);
+    }
+
+    public ZoneFileWriter(File target, SnapshotFormat format)
+    {
+        this.target = target;
+        this.format = format;
+    }
+
+    /**
+     * Creates the temp file the records are written to
+     *
+     * @throws IOException If the temp file could not be created
+     */
+    public void open() throws IOException
+    {
+        Path directory = target.getAbsoluteFile().toPath().getParent();
+
+        tempFile = Files.createTempFile(directory, target.getName(), ".tmp");
+
+        // Temp files are created owner-only, keep the permissions the entries file already had
+        if (target.exists())
+        {
+            try
+            {
+                Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(target.toPath()));
+            } catch (UnsupportedOperationException e) { }
+        }
+
+        channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        crc.reset();
+        recordCount = 0;
+
+        if (format == SnapshotFormat.BINARY)
+        {
+            buffer.putInt(SnapshotFormat.MAGIC);
+            buffer.putInt(SnapshotFormat.VERSION);
+        }
+    }
+
+    /**
+     * Writes a record, as an "ip\t\tdomain" line for the text format
+     *
+     * @param address The IP address of the record
+     * @param domain The domain name of the record
+     * @throws IOException If the record could not be written
+     */
+    public void write(IPAddress address, DomainName domain) throws IOException
+    {
+        write(address, domain, 0);
+    }
+
+    /**
+     * Writes a record that may expire. The text format gets an "ip\t\tdomain\t@expires" line with the time in
+     * seconds since the epoch rounded up, the binary format keeps the time in milliseconds.
+     *
+     * @param address The IP address of the record
+     * @param domain The domain name of the record
+     * @param expires When the record expires in milliseconds, 0 for never
+     * @throws IOException If the record could not be written
+     */
+    public void write(IPAddress address, DomainName domain, long expires) throws IOException
+    {
+        int length = domain.length();
+
+        if (buffer.remaining() < 39 + 2 + length + 1 + 11 + 1)
+        {
+            flush();
+        }
+
+        recordCount++;
+
+        if (format == SnapshotFormat.BINARY)
+        {
+            int flags = expires != 0 ? ZoneFileLoader.EXPIRING : 0;
+
+            if (address.isIPv6())
+            {
+                buffer.put((byte) (16 | flags));
+                buffer.putLong(address.getHigh());
+                buffer.putLong(address.getLow());
+            } else
+            {
+                buffer.put((byte) (4 | flags));
+                buffer.putInt(address.getValue());
+            }
+
+            if (expires != 0)
+            {
+                buffer.putLong(expires);
+            }
+
+            buffer.put((byte) length);
+            domain.writeTo(buffer);
+
+            return;
+        }
+
+        if (address.isIPv6())
+        {
+            putAscii(address.toString());
+        } else
+        {
+            int value = address.getValue();
+
+            putOctet(value >>> 24);
+            buffer.put((byte) '.');
+            putOctet((value >>> 16) & 0xFF);
+            buffer.put((byte) '.');
+            putOctet((value >>> 8) & 0xFF);
+            buffer.put((byte) '.');
+            putOctet(value & 0xFF);
+        }
+
+        buffer.put((byte) '\t');
+        buffer.put((byte) '\t');
+
+        domain.writeTo(buffer);
+
+        if (expires != 0)
+        {
+            buffer.put((byte) '\t');
+            buffer.put((byte) '@');
+            putAscii(Long.toString((expires + 999) / 1000));
+        }
+
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Flushes and fsyncs the temp file and renames it over the target
+     *
+     * @throws IOException If the file could not be committed, the target is left untouched
+     */
+    public void commit() throws IOException
+    {
+        if (format == SnapshotFormat.BINARY)
+        {
+            if (buffer.remaining() < 4)
+            {
+                flush();
+            }
+
+            buffer.putInt(recordCount);
+            flush();
+
+            buffer.putInt((int) crc.getValue());
+        }
+
+        flush();
+
+        channel.force(true);
+        channel.close();
+
+        try
+        {
+            Files.move(tempFile, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(tempFile, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncDirectory(tempFile.getParent());
+    }
+
+    /**
+     * Throws away the temp file without touching the target
+     */
+    public void abort()
+    {
+        try
+        {
+            if (channel != null)
+            {
+                channel.close();
+            }
+
+            if (tempFile != null)
+            {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) { }
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+
+        if (format == SnapshotFormat.BINARY)
+        {
+            crc.update(buffer.duplicate());
+        }
+
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private void putAscii(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void putOctet(int octet)
+    {
+        if (octet >= 100)
+        {
+            buffer.put((byte) ('0' + octet / 100));
+        }
+
+        if (octet >= 10)
+        {
+            buffer.put((byte) ('0' + octet / 10 % 10));
+        }
+
+        buffer.put((byte) ('0' + octet % 10));
+    }
+
+    /**
+     * Fsyncs the directory so the rename itself survives a crash, not every platform allows opening a directory
+     *
+     * @param directory The directory holding the target
+     */
+    private static void syncDirectory(Path directory)
+    {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        } catch (IOException e) { }
+    }
+}
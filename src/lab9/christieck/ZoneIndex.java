@@ -0,0 +1,270 @@
+package lab9.christieck;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable trie of the domain names with records, keyed by their labels from the last one to the first, so every
+ * name under a zone sits in one subtree. Listing a zone and resolving a wildcard cost time in the depth of the name
+ * and the size of the answer, never in the number of records. Like the records, each change gives a new index that
+ * shares everything but the changed path.
+ *
+ * A child is keyed by its whole name rather than its label. For a compacted name that is the instance the records
+ * already hold, and its parents are the pooled names, so the trie adds no text of its own.
+ */
+final class ZoneIndex
+{
+    static final ZoneIndex EMPTY = new ZoneIndex(Node.EMPTY, 0);
+
+    private final Node root;
+
+    /**
+     * The number of wildcard names, lookups skip the wildcard search while there are none
+     */
+    private final int wildcardCount;
+
+    private ZoneIndex(Node root, int wildcardCount)
+    {
+        this.root = root;
+        this.wildcardCount = wildcardCount;
+    }
+
+    /**
+     * Gets an index with the domain name in it
+     *
+     * @param domain The domain name that now has records
+     * @return The new index, this index if the name was already in it
+     */
+    ZoneIndex with(DomainName domain)
+    {
+        Node newRoot = insert(root, ancestors(domain), 0, domain);
+
+        if (newRoot == root)
+        {
+            return this;
+        }
+
+        return new ZoneIndex(newRoot, domain.isWildcard() ? wildcardCount + 1 : wildcardCount);
+    }
+
+    /**
+     * Gets an index without the domain name
+     *
+     * @param domain The domain name that no longer has records
+     * @return The new index, this index if the name was not in it
+     */
+    ZoneIndex without(DomainName domain)
+    {
+        Node newRoot = remove(root, ancestors(domain), 0);
+
+        if (newRoot == root)
+        {
+            return this;
+        }
+
+        return new ZoneIndex(newRoot, domain.isWildcard() ? wildcardCount - 1 : wildcardCount);
+    }
+
+    /**
+     * Gets the zone's own name, if it has records, and every name under it, in no particular order
+     *
+     * @param zone The zone to list, such as amazon.com
+     * @return The domain names
+     */
+    List<DomainName> list(DomainName zone)
+    {
+        List<DomainName> domains = new ArrayList<>();
+        Node node = root;
+
+        for (DomainName name : ancestors(zone))
+        {
+            node = node.children.get(name);
+
+            if (node == null)
+            {
+                return domains;
+            }
+        }
+
+        collect(node, domains);
+
+        return domains;
+    }
+
+    /**
+     * Finds the wildcard that answers for a name without records of its own. That is "*." followed by the closest
+     * encloser, the longest suffix of the name that is in the index. A name that is in the index, even only as a
+     * parent of other names, is never answered by a wildcard.
+     *
+     * @param domain The domain name that has no records
+     * @return The wildcard name, null if there is none
+     */
+    DomainName wildcardFor(DomainName domain)
+    {
+        if (wildcardCount == 0)
+        {
+            return null;
+        }
+
+        Node node = root;
+        DomainName[] names = ancestors(domain);
+
+        for (int i = 0; i < names.length; i++)
+        {
+            Node child = node.children.get(names[i]);
+
+            if (child == null)
+            {
+                Node wildcard = i > 0 ? node.children.get(names[i - 1].wildcard()) : null;
+
+                return wildcard != null ? wildcard.domain : null;
+            }
+
+            node = child;
+        }
+
+        return null;
+    }
+
+    private static void collect(Node node, List<DomainName> domains)
+    {
+        if (node.domain != null)
+        {
+            domains.add(node.domain);
+        }
+
+        node.children.forEach((name, child) -> collect(child, domains));
+    }
+
+    private static Node insert(Node node, DomainName[] names, int index, DomainName domain)
+    {
+        if (index == names.length)
+        {
+            return node.domain != null ? node : new Node(domain, node.children);
+        }
+
+        Node child = node.children.get(names[index]);
+        Node newChild = insert(child != null ? child : Node.EMPTY, names, index + 1, domain);
+
+        return newChild == child ? node : new Node(node.domain, node.children.put(names[index], newChild));
+    }
+
+    private static Node remove(Node node, DomainName[] names, int index)
+    {
+        if (index == names.length)
+        {
+            return node.domain == null ? node : new Node(null, node.children);
+        }
+
+        Node child = node.children.get(names[index]);
+
+        if (child == null)
+        {
+            return node;
+        }
+
+        Node newChild = remove(child, names, index + 1);
+
+        if (newChild == child)
+        {
+            return node;
+        }
+
+        // Drop the labels that no longer lead to any name
+        PersistentHashMap<DomainName, Node> children = newChild.domain == null && newChild.children.size() == 0
+                ? node.children.remove(names[index])
+                : node.children.put(names[index], newChild);
+
+        return new Node(node.domain, children);
+    }
+
+    /**
+     * Gets the domain name and the names above it, such as com, example.com and www.example.com
+     *
+     * @param domain The domain name
+     * @return The names from the top of the hierarchy down
+     */
+    private static DomainName[] ancestors(DomainName domain)
+    {
+        DomainName[] names = new DomainName[domain.labelCount()];
+        DomainName name = domain;
+
+        for (int i = names.length - 1; i >= 0; i--)
+        {
+            names[i] = name;
+            name = name.parent();
+        }
+
+        return names;
+    }
+
+    /**
+     * Builds an index from many names at once, in a plain mutable trie that is frozen at the end
+     */
+    static final class Builder
+    {
+        private final MutableNode root = new MutableNode();
+        private int wildcardCount;
+
+        Builder add(DomainName domain)
+        {
+            MutableNode node = root;
+
+            for (DomainName name : ancestors(domain))
+            {
+                node = node.children.computeIfAbsent(name, key -> new MutableNode());
+            }
+
+            if (node.domain == null && domain.isWildcard())
+            {
+                wildcardCount++;
+            }
+
+            node.domain = domain;
+
+            return this;
+        }
+
+        ZoneIndex build()
+        {
+            return new ZoneIndex(freeze(root), wildcardCount);
+        }
+
+        private static Node freeze(MutableNode node)
+        {
+            PersistentHashMap.Builder<DomainName, Node> children = new PersistentHashMap.Builder<>();
+
+            for (Map.Entry<DomainName, MutableNode> entry : node.children.entrySet())
+            {
+                children.put(entry.getKey(), freeze(entry.getValue()));
+            }
+
+            return new Node(node.domain, children.build());
+        }
+    }
+
+    private static final class MutableNode
+    {
+        private final Map<DomainName, MutableNode> children = new HashMap<>(4);
+        private DomainName domain;
+    }
+
+    /**
+     * A label of the trie, with the domain name ending here if it has records
+     */
+    private static final class Node
+    {
+        static final Node EMPTY = new Node(null, PersistentHashMap.empty());
+
+        final DomainName domain;
+        final PersistentHashMap<DomainName, Node> children;
+
+        Node(DomainName domain, PersistentHashMap<DomainName, Node> children)
+        {
+            this.domain = domain;
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package lab9.christieck;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CountingBloomFilterTest
+{
+    private static final int NAMES = 10_000;
+
+    @Test
+    public void containsEveryAddedName()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(NAMES);
+
+        for (int i = 0; i < NAMES; i++)
+        {
+            filter.add(name(i));
+        }
+
+        for (int i = 0; i < NAMES; i++)
+        {
+            assertTrue(filter.mightContain(name(i)));
+
+            byte[] text = name(i).toString().toUpperCase().getBytes(StandardCharsets.US_ASCII);
+            assertTrue(filter.mightResolve(text, 0, text.length));
+        }
+    }
+
+    @Test
+    public void removedNamesAreTurnedAway()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(NAMES);
+
+        for (int i = 0; i < NAMES; i++)
+        {
+            filter.add(name(i));
+        }
+
+        for (int i = 0; i < NAMES; i += 2)
+        {
+            filter.remove(name(i));
+        }
+
+        int falsePositives = 0;
+
+        for (int i = 0; i < NAMES; i++)
+        {
+            if (i % 2 == 1)
+            {
+                // Removing other names never removes one that is still in the filter
+                assertTrue(filter.mightContain(name(i)));
+            } else if (filter.mightContain(name(i)))
+            {
+                falsePositives++;
+            }
+        }
+
+        assertTrue("False positives: " + falsePositives, falsePositives < NAMES / 2 / 20);
+    }
+
+    @Test
+    public void nameAddedTwiceStaysUntilRemovedTwice()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(16);
+        DomainName domain = new DomainName("twice.example.com");
+
+        filter.add(domain);
+        filter.add(domain);
+        filter.remove(domain);
+
+        assertTrue(filter.mightContain(domain));
+
+        filter.remove(domain);
+
+        assertFalse(filter.mightContain(domain));
+    }
+
+    @Test
+    public void wildcardCoversNamesUnderIt()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(16);
+
+        assertFalse(filter.hasWildcards());
+
+        filter.add(new DomainName("*.example.com"));
+
+        assertTrue(filter.hasWildcards());
+        assertTrue(filter.mightResolve("deep.under.example.com"));
+
+        filter.remove(new DomainName("*.example.com"));
+
+        assertFalse(filter.hasWildcards());
+    }
+
+    private static DomainName name(int i)
+    {
+        return new DomainName("host" + i + ".zone" + (i % 100) + ".example.com");
+    }
+}
@@ -0,0 +1,127 @@
+package lab9.christieck;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DNSTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void undoHistorySurvivesRestart() throws IOException
+    {
+        File entries = folder.newFile("entries.txt");
+        DNS dnsServer = new DNS(entries.getPath());
+
+        dnsServer.start();
+
+        // Enough changes that the oldest are spilled to disk
+        for (int i = 0; i < UndoRedoStack.DEFAULT_CAPACITY + 10; i++)
+        {
+            dnsServer.add(new DomainName("host" + i + ".example.com"), new IPAddress(i));
+        }
+
+        dnsServer.add(new DomainName("last.example.com"), new IPAddress("10.0.0.1"));
+
+        assertTrue(new File(entries.getPath() + ".undo").exists());
+        assertTrue(dnsServer.stop());
+        assertFalse(new File(entries.getPath() + ".undo").exists());
+
+        dnsServer.start();
+
+        assertTrue(dnsServer.canUndo());
+
+        dnsServer.undo();
+
+        assertNull(dnsServer.lookup(new DomainName("last.example.com")));
+        assertTrue(dnsServer.canRedo());
+
+        dnsServer.redo();
+
+        assertEquals(new IPAddress("10.0.0.1"), dnsServer.lookup(new DomainName("last.example.com")));
+
+        dnsServer.stop();
+    }
+
+    @Test
+    public void updateBatchIsPublishedAsOneVersion() throws IOException
+    {
+        DNS dnsServer = new DNS(folder.newFile("entries.txt").getPath());
+
+        dnsServer.start();
+
+        StringBuilder updates = new StringBuilder();
+
+        for (int i = 0; i < 100; i++)
+        {
+            updates.append("ADD 10.0.0.").append(i).append(" host").append(i).append(".example.com\n");
+        }
+
+        updates.append("DEL 10.0.0.200 host1.example.com\n");
+
+        long before = dnsServer.snapshot().getSequence();
+        UpdateSummary summary = dnsServer.applyUpdates(new StringReader(updates.toString()));
+
+        assertEquals(100, summary.getApplied());
+        assertEquals(1, summary.getRejected());
+        assertEquals(before + 1, dnsServer.snapshot().getSequence());
+        assertEquals(new IPAddress("10.0.0.99"), dnsServer.lookup(new DomainName("host99.example.com")));
+
+        dnsServer.stop();
+    }
+
+    @Test
+    public void historyDropsVersionsOfOldOffHeapTables() throws IOException
+    {
+        DNS dnsServer = new DNS(folder.newFile("entries.txt").getPath(), SnapshotFormat.TEXT, RecordStorage.OFF_HEAP);
+
+        dnsServer.start();
+        dnsServer.add(new DomainName("first.example.com"), new IPAddress("10.0.0.1"));
+
+        long first = dnsServer.snapshot().getSequence();
+        int added = 0;
+
+        // Every fold makes a new table, the version with the first one goes once enough newer tables are kept
+        while (isKept(dnsServer, first))
+        {
+            assertTrue("The first version is still kept after " + added + " changes", added < 1000000);
+
+            dnsServer.add(new DomainName("host" + added + ".example.com"), new IPAddress(added));
+            added++;
+        }
+
+        long latest = dnsServer.snapshot().getSequence();
+
+        assertEquals(latest - 1, dnsServer.snapshot(latest - 1).getSequence());
+        assertEquals(new IPAddress("10.0.0.1"), dnsServer.lookup(new DomainName("first.example.com")));
+
+        for (int i = 0; i < added; i++)
+        {
+            assertEquals(new IPAddress(i), dnsServer.lookup(new DomainName("host" + i + ".example.com")));
+        }
+
+        dnsServer.stop();
+    }
+
+    private static boolean isKept(DNS dnsServer, long sequence)
+    {
+        try
+        {
+            return dnsServer.snapshot(sequence).getSequence() == sequence;
+        } catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package lab9.christieck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Answers hand-built query packets without binding a socket
+ */
+public class DatagramServerTest
+{
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_ANY = 255;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private DNS dnsServer;
+    private DatagramServer server;
+
+    @Before
+    public void start() throws IOException
+    {
+        dnsServer = new DNS(folder.newFile("entries.txt").getPath());
+        dnsServer.start();
+        server = new DatagramServer(dnsServer, new InetSocketAddress(0), 1);
+    }
+
+    @After
+    public void stop()
+    {
+        dnsServer.stop();
+    }
+
+    @Test
+    public void periodInsideLabelIsNotJoined()
+    {
+        dnsServer.add(new DomainName("a.example.com"), new IPAddress("10.0.0.1"));
+
+        // One label "a.example" then "com", which must not read as a.example.com
+        ByteBuffer response = answer(query(TYPE_A, "a.example", "com"));
+
+        assertEquals(3, rcode(response));
+        assertEquals(0, answers(response));
+        assertEquals(3, rcode(answer(query(TYPE_A, "a_b", "example", "com"))));
+        assertEquals(0, rcode(answer(query(TYPE_A, "A", "Example", "com"))));
+    }
+
+    @Test
+    public void droppedIPv4AnswersSetTruncated()
+    {
+        DomainName domain = new DomainName("many.example.com");
+
+        for (int i = 0; i < 40; i++)
+        {
+            dnsServer.add(domain, new IPAddress(0x0A000000 + i));
+        }
+
+        ByteBuffer response = answer(query(TYPE_A, "many", "example", "com"));
+
+        assertTrue(truncated(response));
+        assertEquals((512 - response.position()) / 16, answers(response));
+
+        dnsServer.add(new DomainName("few.example.com"), new IPAddress("10.0.1.1"));
+
+        assertFalse(truncated(answer(query(TYPE_A, "few", "example", "com"))));
+    }
+
+    @Test
+    public void droppedAnyAnswersSetTruncated()
+    {
+        DomainName domain = new DomainName("many.example.com");
+
+        for (int i = 0; i < 40; i++)
+        {
+            dnsServer.add(domain, new IPAddress(0x20010DB800000000L, i));
+        }
+
+        ByteBuffer response = answer(query(TYPE_ANY, "many", "example", "com"));
+
+        assertTrue(truncated(response));
+        assertEquals(0, rcode(response));
+        assertTrue(answers(response) < 40);
+    }
+
+    @Test
+    public void aaaaAnswersTakeTurnsWithinTheType()
+    {
+        DomainName domain = new DomainName("mixed.example.com");
+
+        dnsServer.add(domain, new IPAddress("10.0.0.1"));
+        dnsServer.add(domain, new IPAddress("10.0.0.2"));
+        dnsServer.add(domain, new IPAddress("2001:db8::1"));
+        dnsServer.add(domain, new IPAddress("2001:db8::2"));
+
+        Map<IPAddress, Integer> leads = new HashMap<>();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            ByteBuffer response = answer(query(TYPE_AAAA, "mixed", "example", "com"));
+
+            assertEquals(2, answers(response));
+
+            // The first answer's data follows its 12 byte header
+            int data = response.position() + 12;
+
+            leads.merge(new IPAddress(response.getLong(data), response.getLong(data + 8)), 1, Integer::sum);
+        }
+
+        assertEquals(500, (int) leads.get(new IPAddress("2001:db8::1")));
+        assertEquals(500, (int) leads.get(new IPAddress("2001:db8::2")));
+    }
+
+    @Test
+    public void nameWithoutRecordsOfTheTypeHasNoError()
+    {
+        dnsServer.add(new DomainName("v4.example.com"), new IPAddress("10.0.0.1"));
+
+        ByteBuffer response = answer(query(TYPE_AAAA, "v4", "example", "com"));
+
+        assertEquals(0, rcode(response));
+        assertEquals(0, answers(response));
+        assertEquals(3, rcode(answer(query(TYPE_AAAA, "missing", "example", "com"))));
+        assertEquals(0, rcode(answer(query(15, "v4", "example", "com"))));
+    }
+
+    @Test
+    public void answersCarryTheTimeRecordsHaveLeft()
+    {
+        dnsServer.add(new DomainName("short.example.com"), new IPAddress("10.0.0.1"), 5);
+        dnsServer.add(new DomainName("short.example.com"), new IPAddress("2001:db8::1"), 5);
+        dnsServer.add(new DomainName("long.example.com"), new IPAddress("10.0.0.2"));
+
+        int ttl = firstTtl(answer(query(TYPE_A, "short", "example", "com")));
+
+        assertTrue("TTL " + ttl, ttl >= 1 && ttl <= 5);
+
+        ttl = firstTtl(answer(query(TYPE_AAAA, "short", "example", "com")));
+
+        assertTrue("TTL " + ttl, ttl >= 1 && ttl <= 5);
+        assertEquals(60, firstTtl(answer(query(TYPE_A, "long", "example", "com"))));
+    }
+
+    private ByteBuffer answer(ByteBuffer request)
+    {
+        ByteBuffer response = ByteBuffer.allocate(512);
+
+        assertTrue(server.answer(request, response, new DatagramServer.Scratch()));
+
+        // Leaves the position just past the echoed question
+        response.position(request.limit());
+        return response;
+    }
+
+    private static ByteBuffer query(int type, String... labels)
+    {
+        ByteBuffer request = ByteBuffer.allocate(512);
+
+        request.putShort((short) 0x1234);
+        request.putShort((short) 0x0100);
+        request.putShort((short) 1);
+        request.putShort((short) 0);
+        request.putShort((short) 0);
+        request.putShort((short) 0);
+
+        for (String label : labels)
+        {
+            request.put((byte) label.length());
+
+            for (int i = 0; i < label.length(); i++)
+            {
+                request.put((byte) label.charAt(i));
+            }
+        }
+
+        request.put((byte) 0);
+        request.putShort((short) type);
+        request.putShort((short) 1);
+        request.flip();
+        return request;
+    }
+
+    /**
+     * Reads the TTL of the first answer, after its name pointer, type and class
+     */
+    private static int firstTtl(ByteBuffer response)
+    {
+        return response.getInt(response.position() + 6);
+    }
+
+    private static int rcode(ByteBuffer response)
+    {
+        return response.getShort(2) & 0xF;
+    }
+
+    private static boolean truncated(ByteBuffer response)
+    {
+        return (response.getShort(2) & 0x0200) != 0;
+    }
+
+    private static int answers(ByteBuffer response)
+    {
+        return response.getShort(6) & 0xFFFF;
+    }
+}
@@ -0,0 +1,89 @@
+package lab9.christieck;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DatagramUpstreamTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesLabelsOfCompactedName()
+    {
+        // The first label in one part and the rest, periods and all, in the pooled parent
+        DomainName domain = new DomainName("mail.some.example.com").compact(new DomainName.Pool());
+
+        byte[] expected = { 4, 'm', 'a', 'i', 'l', 4, 's', 'o', 'm', 'e', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0 };
+
+        assertArrayEquals(expected, wire(domain));
+        assertArrayEquals(expected, wire(new DomainName("mail.some.example.com")));
+        assertArrayEquals(new byte[] { 1, '*', 3, 'c', 'o', 'm', 0 }, wire(new DomainName("*.com")));
+    }
+
+    @Test
+    public void concurrentResolvesGetTheirOwnAnswers() throws Exception
+    {
+        DNS dnsServer = new DNS(folder.newFile("entries.txt").getPath());
+        dnsServer.start();
+
+        for (int i = 0; i < 50; i++)
+        {
+            dnsServer.add(new DomainName("host" + i + ".example.com"), new IPAddress(0x0A000000 + i));
+        }
+
+        DatagramServer server = new DatagramServer(dnsServer, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (DatagramUpstream upstream = new DatagramUpstream((InetSocketAddress) server.getLocalAddress()))
+        {
+            List<Future<Upstream.Answer>> answers = new ArrayList<>();
+
+            for (int i = 0; i < 200; i++)
+            {
+                DomainName domain = new DomainName("host" + (i % 50) + ".example.com");
+
+                answers.add(executor.submit(() -> upstream.resolve(domain)));
+            }
+
+            for (int i = 0; i < answers.size(); i++)
+            {
+                assertEquals(Arrays.asList(new IPAddress(0x0A000000 + i % 50)), answers.get(i).get().getAddresses());
+            }
+
+            assertTrue(upstream.resolve(new DomainName("missing.example.com")).getAddresses().isEmpty());
+        } finally
+        {
+            executor.shutdown();
+            server.stop();
+            dnsServer.stop();
+        }
+    }
+
+    private static byte[] wire(DomainName domain)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(domain.wireLength());
+
+        domain.writeWire(buffer);
+
+        assertEquals(0, buffer.remaining());
+        return buffer.array();
+    }
+}
@@ -0,0 +1,44 @@
+package lab9.christieck;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IPAddressTest
+{
+    @Test
+    public void mappedAddressIsAnAAAARecord()
+    {
+        IPAddress mapped = new IPAddress("::ffff:192.0.2.1");
+        IPAddress ipv4 = new IPAddress("192.0.2.1");
+
+        assertTrue(mapped.isIPv6());
+        assertFalse(ipv4.isIPv6());
+        assertNotEquals(ipv4, mapped);
+
+        assertTrue(RecordType.AAAA.matches(mapped));
+        assertFalse(RecordType.A.matches(mapped));
+
+        assertEquals("::ffff:192.0.2.1", mapped.toString());
+        assertEquals(mapped, new IPAddress(mapped.toString()));
+        assertEquals(mapped, new IPAddress(mapped.getHigh(), mapped.getLow()));
+        assertEquals(mapped, new IPAddress("0:0:0:0:0:ffff:c000:201"));
+    }
+
+    @Test
+    public void bothFormsOfTheAddressAreKeptForOneName()
+    {
+        RecordSet set = RecordSet.of(new IPAddress("192.0.2.1"), 0);
+
+        assertEquals(-1, set.indexOf(new IPAddress("::ffff:192.0.2.1")));
+
+        set = set.with(new IPAddress("::ffff:192.0.2.1"), 0, 1);
+
+        assertEquals(2, set.size());
+        assertEquals(new IPAddress("192.0.2.1"), set.next(RecordType.A, 0));
+        assertEquals(new IPAddress("::ffff:192.0.2.1"), set.next(RecordType.AAAA, 0));
+    }
+}
@@ -0,0 +1,66 @@
+package lab9.christieck;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the off-heap store keeps every change while its table is folded into a new one in the background
+ */
+public class OffHeapRecordStoreTest
+{
+    private static final int NAMES = 5000;
+    private static final int CHANGES = 50000;
+
+    @Test
+    public void changesDuringFoldsAreKept()
+    {
+        Random random = new Random(42);
+        Map<DomainName, IPAddress> expected = new HashMap<>();
+        RecordStore store = RecordStore.empty(RecordStorage.OFF_HEAP);
+
+        for (int i = 0; i < CHANGES; i++)
+        {
+            DomainName domain = new DomainName("host" + random.nextInt(NAMES) + ".example.com");
+
+            if (random.nextInt(4) == 0)
+            {
+                store = store.without(domain);
+                expected.remove(domain);
+            } else
+            {
+                IPAddress address = new IPAddress(i);
+
+                store = store.with(domain, RecordSet.of(address));
+                expected.put(domain, address);
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+
+        for (int i = 0; i < NAMES; i++)
+        {
+            DomainName domain = new DomainName("host" + i + ".example.com");
+            IPAddress address = expected.get(domain);
+
+            if (address == null)
+            {
+                assertNull(store.get(domain));
+            } else
+            {
+                assertEquals(address, store.next(domain, RecordType.A, 0));
+            }
+        }
+
+        Map<DomainName, IPAddress> listed = new HashMap<>();
+
+        store.forEach((domain, set) -> listed.put(domain, set.next(RecordType.A, 0)));
+
+        assertEquals(expected, listed);
+    }
+}
@@ -0,0 +1,141 @@
+package lab9.christieck;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PersistentHashMapTest
+{
+    @Test
+    public void putAndRemoveCollidingKeys()
+    {
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+
+        for (int i = 0; i < 10; i++)
+        {
+            map = map.put(new Key(i, 42), i);
+        }
+
+        assertEquals(10, map.size());
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(Integer.valueOf(i), map.get(new Key(i, 42)));
+        }
+
+        PersistentHashMap<Key, Integer> removed = map.remove(new Key(3, 42)).remove(new Key(7, 42));
+
+        assertEquals(8, removed.size());
+        assertNull(removed.get(new Key(3, 42)));
+        assertNull(removed.get(new Key(7, 42)));
+        assertEquals(Integer.valueOf(5), removed.get(new Key(5, 42)));
+
+        // The old version is untouched
+        assertEquals(10, map.size());
+        assertEquals(Integer.valueOf(3), map.get(new Key(3, 42)));
+    }
+
+    @Test
+    public void removingMissingKeyKeepsTheMap()
+    {
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.<Key, Integer>empty()
+                .put(new Key(1, 42), 1)
+                .put(new Key(2, 42), 2);
+
+        assertSame(map, map.remove(new Key(3, 42)));
+        assertSame(map, map.remove(new Key(3, 7)));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomChanges()
+    {
+        Random random = new Random(1);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+
+        for (int i = 0; i < 100_000; i++)
+        {
+            // Few distinct hashes, so most keys share a collision node or a long path with another
+            Key key = new Key(random.nextInt(2000), random.nextInt(64) << random.nextInt(27));
+
+            if (random.nextInt(3) == 0)
+            {
+                expected.remove(key);
+                map = map.remove(key);
+            } else
+            {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+
+        for (Map.Entry<Key, Integer> entry : expected.entrySet())
+        {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        Map<Key, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void builderMatchesPuts()
+    {
+        PersistentHashMap.Builder<Key, Integer> builder = new PersistentHashMap.Builder<>();
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+
+        for (int i = 0; i < 5000; i++)
+        {
+            Key key = new Key(i, i % 100);
+
+            builder.put(key, i);
+            map = map.put(key, i);
+        }
+
+        PersistentHashMap<Key, Integer> built = builder.build();
+
+        assertEquals(map.size(), built.size());
+
+        for (int i = 0; i < 5000; i++)
+        {
+            assertEquals(map.get(new Key(i, i % 100)), built.get(new Key(i, i % 100)));
+        }
+    }
+
+    /**
+     * A key with a chosen hash code, so keys can be made to collide
+     */
+    private static final class Key
+    {
+        final int id;
+        final int hash;
+
+        Key(int id, int hash)
+        {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Key && ((Key) other).id == id && ((Key) other).hash == hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
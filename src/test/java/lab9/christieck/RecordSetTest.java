@@ -0,0 +1,128 @@
+package lab9.christieck;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the round-robin of a set with both IPv4 and IPv6 addresses leads with every address of the type asked
+ * for equally often, in both record stores
+ */
+public class RecordSetTest
+{
+    private static final DomainName DOMAIN = new DomainName("mixed.example.com");
+
+    private static final IPAddress V4_A = new IPAddress("10.0.0.1");
+    private static final IPAddress V4_B = new IPAddress("10.0.0.2");
+    private static final IPAddress V6_A = new IPAddress("2001:db8::1");
+    private static final IPAddress V6_B = new IPAddress("2001:db8::2");
+
+    private static final int ROUNDS = 1000;
+
+    /**
+     * Both IPv4 addresses sit behind the IPv6 ones, which a rotation over the whole set would hand to the first
+     */
+    private static RecordSet mixed()
+    {
+        return RecordSet.of(new IPAddress[] { V6_A, V6_B, V4_A, V4_B }, null);
+    }
+
+    @Test
+    public void nextTakesTurnsWithinTheType()
+    {
+        RecordSet set = mixed();
+        Map<IPAddress, Integer> leads = new HashMap<>();
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            leads.merge(set.next(RecordType.A, 0), 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_A));
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_B));
+    }
+
+    @Test
+    public void rotateStartsAtEachAddressOfTheTypeInTurn()
+    {
+        RecordSet set = mixed();
+        Map<IPAddress, Integer> leads = new HashMap<>();
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            List<IPAddress> rotated = set.rotate(RecordType.AAAA, 0);
+
+            assertEquals(2, rotated.size());
+            leads.merge(rotated.get(0), 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V6_A));
+        assertEquals(ROUNDS / 2, (int) leads.get(V6_B));
+    }
+
+    @Test
+    public void expiredAddressesAreNotInTheRotation()
+    {
+        RecordSet set = RecordSet.of(new IPAddress[] { V4_A, V6_A, V4_B }, new long[] { 0, 0, 1000 });
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(V4_A, set.next(RecordType.A, 2000));
+        }
+
+        assertNull(RecordSet.of(V4_A, 1000).next(RecordType.A, 2000));
+        assertEquals(1, set.rotate(RecordType.A, 2000).size());
+    }
+
+    @Test
+    public void offHeapTakesTurnsWithinTheType()
+    {
+        RecordStore.Builder builder = RecordStore.builder(RecordStorage.OFF_HEAP);
+
+        builder.put(DOMAIN, mixed());
+
+        RecordStore store = builder.build();
+        int[] rotated = new int[4];
+
+        // Each kind of lookup gets its own rounds, as they all turn the same rotation
+        Map<Object, Integer> leads = new HashMap<>();
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            leads.merge(store.nextIPv4("MIXED.example.com", DOMAIN.hashCode(), 0), 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_A.getValue() & 0xFFFFFFFFL));
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_B.getValue() & 0xFFFFFFFFL));
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            assertEquals(2, store.rotateIPv4("mixed.example.com", DOMAIN.hashCode(), 0, rotated, null));
+            leads.merge(rotated[0], 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_A.getValue()));
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_B.getValue()));
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            leads.merge(store.next(DOMAIN, RecordType.AAAA, 0), 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V6_A));
+        assertEquals(ROUNDS / 2, (int) leads.get(V6_B));
+
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            leads.merge(store.rotate(DOMAIN, RecordType.A, 0).get(0), 1, Integer::sum);
+        }
+
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_A));
+        assertEquals(ROUNDS / 2, (int) leads.get(V4_B));
+    }
+}
@@ -0,0 +1,143 @@
+package lab9.christieck;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Saves records in each format and checks that starting from the saved file gives the same records back
+ */
+public class SnapshotFormatTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void textRoundTrip() throws IOException
+    {
+        roundTrip(SnapshotFormat.TEXT, RecordStorage.HEAP);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException
+    {
+        roundTrip(SnapshotFormat.BINARY, RecordStorage.HEAP);
+    }
+
+    @Test
+    public void binaryRoundTripOffHeap() throws IOException
+    {
+        roundTrip(SnapshotFormat.BINARY, RecordStorage.OFF_HEAP);
+    }
+
+    @Test
+    public void exportedFileLoadsInEitherFormat() throws IOException
+    {
+        File entries = folder.newFile("entries.txt");
+        DNS dnsServer = new DNS(entries.getPath());
+
+        dnsServer.start();
+        dnsServer.add(new DomainName("a.example.com"), new IPAddress("10.0.0.1"));
+        dnsServer.add(new DomainName("*.example.com"), new IPAddress("10.0.0.9"));
+
+        File exported = new File(folder.getRoot(), "exported.bin");
+        dnsServer.export(exported, SnapshotFormat.BINARY);
+        dnsServer.stop();
+
+        DNS loaded = new DNS(exported.getPath());
+
+        assertTrue(loaded.start());
+        assertEquals(new IPAddress("10.0.0.1"), loaded.lookup(new DomainName("a.example.com")));
+        assertEquals(new IPAddress("10.0.0.9"), loaded.lookup(new DomainName("other.example.com")));
+
+        loaded.stop();
+    }
+
+    @Test
+    public void textKeepsTheTimeRecordsExpire() throws IOException
+    {
+        File entries = folder.newFile("entries.txt");
+        long expires = System.currentTimeMillis() + 3_600_000;
+
+        try (FileWriter writer = new FileWriter(entries))
+        {
+            writer.write("10.0.0.1\t\texpired.example.com\t@" + (System.currentTimeMillis() / 1000 - 60) + "\n");
+            writer.write("10.0.0.2\t\tlater.example.com\t@" + expires / 1000 + "\n");
+            writer.write("10.0.0.3\t\tttl.example.com\t60\n");
+        }
+
+        DNS loaded = new DNS(entries.getPath());
+
+        assertTrue(loaded.start());
+        assertEquals(0, loaded.getSkippedRecordCount());
+        assertNull(loaded.lookup(new DomainName("expired.example.com")));
+        assertEquals(new IPAddress("10.0.0.3"), loaded.lookup(new DomainName("ttl.example.com")));
+        assertTrue(loaded.stop());
+
+        // Saving writes the time itself, so the records do not live longer for the time the server was down
+        assertTrue(new String(Files.readAllBytes(entries.toPath()), StandardCharsets.US_ASCII)
+                .contains("later.example.com\t@" + expires / 1000 + "\n"));
+    }
+
+    private void roundTrip(SnapshotFormat format, RecordStorage storage) throws IOException
+    {
+        File entries = folder.newFile("entries-" + format + "-" + storage);
+        DNS dnsServer = new DNS(entries.getPath(), format, storage);
+
+        assertTrue(dnsServer.start());
+
+        for (int i = 0; i < 1000; i++)
+        {
+            dnsServer.add(new DomainName("host" + i + ".zone" + (i % 10) + ".example.com"), new IPAddress(i));
+        }
+
+        dnsServer.add(new DomainName("multi.example.com"), new IPAddress("10.0.0.1"));
+        dnsServer.add(new DomainName("multi.example.com"), new IPAddress("2001:db8::1"));
+        dnsServer.add(new DomainName("multi.example.com"), new IPAddress("10.0.0.2"));
+        dnsServer.add(new DomainName("multi.example.com"), new IPAddress("::ffff:10.0.0.1"));
+        dnsServer.add(new DomainName("ttl.example.com"), new IPAddress("10.0.0.3"), 3600);
+        dnsServer.delete(new DomainName("host7.zone7.example.com"), new IPAddress(7));
+
+        assertTrue(dnsServer.stop());
+
+        DNS loaded = new DNS(entries.getPath(), format, storage);
+
+        assertTrue(loaded.start());
+        assertEquals(0, loaded.getSkippedRecordCount());
+        assertEquals(1001, loaded.snapshot().size());
+
+        for (int i = 0; i < 1000; i++)
+        {
+            DomainName domain = new DomainName("host" + i + ".zone" + (i % 10) + ".example.com");
+
+            if (i == 7)
+            {
+                assertNull(loaded.lookup(domain));
+            } else
+            {
+                assertEquals(new IPAddress(i), loaded.lookup(domain));
+            }
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(new IPAddress("10.0.0.1"), new IPAddress("2001:db8::1"), new IPAddress("10.0.0.2"),
+                new IPAddress("::ffff:10.0.0.1"))), new HashSet<>(loaded.lookupAll(new DomainName("multi.example.com"))));
+        assertEquals(new HashSet<>(Arrays.asList(new IPAddress("2001:db8::1"), new IPAddress("::ffff:10.0.0.1"))),
+                new HashSet<>(loaded.lookupAll(new DomainName("multi.example.com"), RecordType.AAAA)));
+        assertEquals(new IPAddress("10.0.0.3"), loaded.lookup(new DomainName("ttl.example.com")));
+        assertEquals(Arrays.asList(new DomainName("multi.example.com")), loaded.reverseLookup(new IPAddress("10.0.0.2")));
+
+        loaded.stop();
+    }
+}
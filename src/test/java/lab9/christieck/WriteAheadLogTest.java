@@ -0,0 +1,218 @@
+package lab9.christieck;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysRecordsInOrder() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        log.append(WriteAheadLog.ADD, new IPAddress("2001:db8::1"), new DomainName("b.example.com"), 1234);
+        log.append(WriteAheadLog.ADD, new IPAddress("::ffff:10.0.0.1"), new DomainName("b.example.com"), 0);
+        log.awaitDurable(log.append(WriteAheadLog.DELETE, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0));
+        log.close();
+
+        assertEquals(Arrays.asList(
+                "ADD 10.0.0.1 a.example.com 0",
+                "ADD 2001:db8::1 b.example.com 1234",
+                "ADD ::ffff:10.0.0.1 b.example.com 0",
+                "DEL 10.0.0.1 a.example.com 0"), replay(file));
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        long complete = log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.2"), new DomainName("b.example.com"), 0);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.3"), new DomainName("c.example.com"), 0);
+        log.close();
+
+        // A crash in the middle of the last write
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw"))
+        {
+            data.setLength(data.length() - 3);
+        }
+
+        assertEquals(Arrays.asList("ADD 10.0.0.1 a.example.com 0", "ADD 10.0.0.2 b.example.com 0"), replay(file));
+        assertEquals(complete, file.length());
+    }
+
+    @Test
+    public void dropsLastRecordWithBadChecksum() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        long complete = log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.2"), new DomainName("b.example.com"), 0);
+        log.close();
+
+        flipByte(file, file.length() - 6);
+
+        assertEquals(Arrays.asList("ADD 10.0.0.1 a.example.com 0"), replay(file));
+        assertEquals(complete, file.length());
+    }
+
+    @Test
+    public void failsOnCorruptRecordBeforeTheTail() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.2"), new DomainName("b.example.com"), 0);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.3"), new DomainName("c.example.com"), 0);
+        log.close();
+
+        long length = file.length();
+
+        flipByte(file, 8);
+
+        try
+        {
+            replay(file);
+            fail("A corrupt record in the middle of the log was skipped");
+        } catch (IOException e)
+        {
+            // The acknowledged records after it are left for someone to recover
+            assertEquals(length, file.length());
+        }
+    }
+
+    @Test
+    public void dropsBatchWithoutItsEnd() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        log.appendMarker(WriteAheadLog.BATCH_BEGIN);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.2"), new DomainName("b.example.com"), 0);
+        log.appendMarker(WriteAheadLog.BATCH_END);
+        log.appendMarker(WriteAheadLog.BATCH_BEGIN);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.3"), new DomainName("c.example.com"), 0);
+        log.close();
+
+        assertEquals(Arrays.asList("ADD 10.0.0.1 a.example.com 0", "ADD 10.0.0.2 b.example.com 0"), replay(file));
+    }
+
+    @Test
+    public void dropsStrayBatchEnd() throws IOException
+    {
+        File file = folder.newFile("entries.txt.wal");
+        WriteAheadLog log = new WriteAheadLog(file);
+
+        log.open();
+        long complete = log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0);
+        log.appendMarker(WriteAheadLog.BATCH_END);
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.2"), new DomainName("b.example.com"), 0);
+        log.close();
+
+        assertEquals(Arrays.asList("ADD 10.0.0.1 a.example.com 0"), replay(file));
+        assertEquals(complete, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void awaitingAfterCloseFails() throws IOException
+    {
+        WriteAheadLog log = new WriteAheadLog(folder.newFile("entries.txt.wal"));
+
+        log.open();
+        log.close();
+
+        log.awaitDurable(log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), new DomainName("a.example.com"), 0));
+    }
+
+    @Test
+    public void serverDoesNotStartFromInvalidLog() throws IOException
+    {
+        File entries = folder.newFile("entries.txt");
+        WriteAheadLog log = new WriteAheadLog(new File(entries.getPath() + ".wal"));
+
+        log.open();
+        log.append(WriteAheadLog.ADD, new IPAddress("10.0.0.1"), DomainName.ofCanonical("invalid..example.com"), 0);
+        log.close();
+
+        assertFalse(new DNS(entries.getPath()).start());
+    }
+
+    @Test
+    public void serverRecoversChangesThatWereNotSaved() throws IOException
+    {
+        File entries = folder.newFile("entries.txt");
+        DNS crashed = new DNS(entries.getPath());
+
+        crashed.start();
+        crashed.add(new DomainName("a.example.com"), new IPAddress("10.0.0.1"));
+        crashed.add(new DomainName("a.example.com"), new IPAddress("10.0.0.2"));
+        crashed.add(new DomainName("b.example.com"), new IPAddress("2001:db8::1"));
+        crashed.delete(new DomainName("a.example.com"), new IPAddress("10.0.0.1"));
+        crashed.beginTransaction()
+                .add(new DomainName("c.example.com"), new IPAddress("10.0.0.3"))
+                .delete(new DomainName("b.example.com"), new IPAddress("2001:db8::1"))
+                .commit();
+
+        // Never stopped, so only the log has the changes
+        DNS recovered = new DNS(entries.getPath());
+
+        recovered.start();
+
+        assertEquals(Arrays.asList(new IPAddress("10.0.0.2")), recovered.lookupAll(new DomainName("a.example.com")));
+        assertNull(recovered.lookup(new DomainName("b.example.com")));
+        assertEquals(new IPAddress("10.0.0.3"), recovered.lookup(new DomainName("c.example.com")));
+
+        recovered.stop();
+    }
+
+    private static void flipByte(File file, long position) throws IOException
+    {
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw"))
+        {
+            data.seek(position);
+
+            int b = data.read();
+
+            data.seek(position);
+            data.write(b ^ 0xFF);
+        }
+    }
+
+    private static List<String> replay(File file) throws IOException
+    {
+        List<String> records = new ArrayList<>();
+
+        new WriteAheadLog(file).replay((type, address, domain, expires) ->
+                records.add((type == WriteAheadLog.ADD ? "ADD " : "DEL ") + address + " " + domain + " " + expires));
+
+        return records;
+    }
+}